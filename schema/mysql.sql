@@ -37,7 +37,9 @@ CREATE TABLE site (
 	lastUpdate		DATETIME NOT NULL,					-- Time when site was last updated
 	subject			VARCHAR(256) NOT NULL,				-- Owner of resource
 	localUsername	VARCHAR(64) NOT NULL,				-- Local username of owner
-	CONSTRAINT pk_site PRIMARY KEY (id)
+	CONSTRAINT pk_site PRIMARY KEY (id),
+	INDEX idx_site_state (state),
+	INDEX idx_site_user_state (localUsername, state)
 ) type=InnoDB;
 
 /**
@@ -65,6 +67,10 @@ CREATE TABLE execution_service (
 	serviceType		ENUM('GT2','GT4','GT5') NOT NULL,	-- The version of grid service
 	project			VARCHAR(255),						-- The desired project name/id
 	queue			VARCHAR(255),						-- The target queue name/id
+	minPollInterval	INTEGER,							-- Min seconds between log polls
+	maxPollInterval	INTEGER,							-- Max seconds between log polls
+	maxSubmitted	INTEGER,							-- Max jobs submitted but not queued
+	maxSubmitRate	INTEGER,							-- Max jobs submitted per minute
 	CONSTRAINT pk_execution_service PRIMARY KEY (site,function),
 	CONSTRAINT fk_execution_service_01 FOREIGN KEY (site) REFERENCES site(id) ON DELETE CASCADE
 ) type=InnoDB;
@@ -101,5 +107,8 @@ CREATE TABLE glidein (
 	lowport				INTEGER,						-- Lowest port number used by Condor
 	ccbAddress			VARCHAR(256),					-- CCB broker
 	CONSTRAINT pk_glidein PRIMARY KEY (id),
-	CONSTRAINT fk_glidein_01 FOREIGN KEY (site) REFERENCES site(id) ON DELETE SET NULL
+	CONSTRAINT fk_glidein_01 FOREIGN KEY (site) REFERENCES site(id) ON DELETE SET NULL,
+	INDEX idx_glidein_state (state),
+	INDEX idx_glidein_site (site),
+	INDEX idx_glidein_user_state (localUsername, state)
 ) type=InnoDB;
@@ -39,6 +39,9 @@ CREATE TABLE site (
 	localUsername	TEXT NOT NULL		-- Local username of owner
 );
 
+CREATE INDEX idx_site_state ON site (state);
+CREATE INDEX idx_site_user_state ON site (localUsername, state);
+
 /**
  * Each site has a list of built-in environment variables that will be
  * included in each job submitted for that site.
@@ -63,6 +66,10 @@ CREATE TABLE execution_service (
 	serviceType		TEXT NOT NULL,		-- The version of grid service
 	project			TEXT,				-- The desired project name/id
 	queue			TEXT,				-- The target queue name/id
+	minPollInterval	INTEGER,			-- Min seconds between log polls
+	maxPollInterval	INTEGER,			-- Max seconds between log polls
+	maxSubmitted	INTEGER,			-- Max jobs submitted but not queued
+	maxSubmitRate	INTEGER,			-- Max jobs submitted per minute
 	PRIMARY KEY (site, function)
 );
 
@@ -98,3 +105,7 @@ CREATE TABLE glidein (
 	lowport			INTEGER,			-- Lowest port number used by Condor
 	ccbAddress		TEXT				-- CCB broker
 );
+
+CREATE INDEX idx_glidein_state ON glidein (state);
+CREATE INDEX idx_glidein_site ON glidein (site);
+CREATE INDEX idx_glidein_user_state ON glidein (localUsername, state);
@@ -16,6 +16,7 @@
 package edu.usc.corral.api;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.BindException;
@@ -25,16 +26,21 @@ import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.commons.httpclient.ConnectTimeoutException;
 import org.apache.commons.httpclient.HostConfiguration;
 import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpConnectionManager;
 import org.apache.commons.httpclient.HttpException;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.SimpleHttpConnectionManager;
 import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.commons.httpclient.params.HttpConnectionParams;
 import org.apache.commons.httpclient.protocol.Protocol;
 import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
@@ -43,6 +49,7 @@ import org.globus.gsi.gssapi.GSSConstants;
 import org.globus.gsi.gssapi.GlobusGSSManagerImpl;
 import org.globus.gsi.gssapi.auth.Authorization;
 import org.globus.gsi.gssapi.auth.GSSAuthorization;
+import org.globus.gsi.gssapi.auth.IdentityAuthorization;
 import org.globus.gsi.gssapi.net.GssOutputStream;
 import org.globus.gsi.gssapi.net.impl.GSIGssSocket;
 import org.gridforum.jgss.ExtendedGSSContext;
@@ -59,24 +66,42 @@ import edu.usc.corral.types.ErrorResponse;
 import edu.usc.corral.types.ListRequest;
 import edu.usc.corral.types.ListGlideinsResponse;
 
+/**
+ * Client for the Corral server.
+ * 
+ * Connections are kept open between requests. If sessionReuse is enabled,
+ * which is the default, then clients in the same JVM that use the same 
+ * credential and GSI settings share their connections, so only the first
+ * request pays for the GSI handshake. The credential is cached until the
+ * proxy file changes.
+ * 
+ * Sessions only last as long as the JVM. Each run of the command-line 
+ * tools is a new process and still does a full handshake.
+ */
 public class Client {
 	
+	/** Max connections per server for a shared session */
+	private static final int MAX_SESSION_CONNECTIONS = 8;
+	
+	/** Connections shared by clients, by credential and GSI settings */
+	private static Map<String,Session> sessions = new HashMap<String,Session>();
+	
+	private static GSSManager manager = new GlobusGSSManagerImpl();
+	private static GSSCredential credential;
+	private static String credentialFile;
+	private static long credentialModified;
+	
 	private ClientConfiguration config = ClientConfiguration.getDefault();
-	private SimpleHttpConnectionManager connmgr;
+	private String host;
+	private int port;
+	private HttpConnectionManager connmgr;
 	private HttpClient httpclient;
+	private Session session;
 	private boolean closed = false;
 	
 	public Client(String host, int port) {
-		Protocol httpg = new Protocol("httpg", new SocketFactory(), 9443);
-		
-		HostConfiguration hc = new HostConfiguration();
-		hc.setHost(host, port, httpg);
-		
-		connmgr = new SimpleHttpConnectionManager();
-		
-		httpclient = new HttpClient();
-		httpclient.setHostConfiguration(hc);
-		httpclient.setHttpConnectionManager(connmgr);
+		this.host = host;
+		this.port = port;
 	}
 	
 	public void setConfiguration(ClientConfiguration config) {
@@ -91,6 +116,107 @@ public class Client {
 			throw new IllegalStateException("Connection closed");
 	}
 	
+	/**
+	 * Get the http client for the current configuration. A new one is 
+	 * created if the configuration or the proxy file changed.
+	 */
+	private synchronized HttpClient getHttpClient() throws IOException {
+		if (config.isSessionReuse()) {
+			Session s = getSession(config);
+			if (s != session) {
+				session = s;
+				connmgr = s.connmgr;
+				httpclient = newHttpClient(s.protocol, connmgr);
+			}
+		} else if (httpclient == null || session != null) {
+			session = null;
+			Protocol httpg = new Protocol("httpg", 
+					new SocketFactory(config.copy()), 9443);
+			connmgr = new SimpleHttpConnectionManager();
+			httpclient = newHttpClient(httpg, connmgr);
+		}
+		return httpclient;
+	}
+	
+	private HttpClient newHttpClient(Protocol httpg, HttpConnectionManager connmgr) {
+		HostConfiguration hc = new HostConfiguration();
+		hc.setHost(host, port, httpg);
+		
+		HttpClient httpclient = new HttpClient();
+		httpclient.setHostConfiguration(hc);
+		httpclient.setHttpConnectionManager(connmgr);
+		return httpclient;
+	}
+	
+	/**
+	 * Get the shared session for a configuration. A session is replaced
+	 * when the proxy file changes so that connections are not reused with
+	 * an old credential.
+	 */
+	private static Session getSession(ClientConfiguration config) throws IOException {
+		String proxy = CoGProperties.getDefault().getProxyFile();
+		long modified = new File(proxy).lastModified();
+		
+		Authorization authz = config.getAuthorization();
+		String key = proxy+"|"+config.getDelegation()+"|"+config.getLifetime()+
+			"|"+authz.getClass().getName()+"|"+
+			(authz instanceof IdentityAuthorization ? 
+					((IdentityAuthorization)authz).getIdentity() : "")+
+			"|"+config.getGssMode()+"|"+config.getWrapMode()+
+			"|"+config.isRequestEncryption()+"|"+config.isRequestAnonymous()+
+			"|"+config.isRejectLimitedProxy();
+		
+		synchronized (sessions) {
+			Session session = sessions.get(key);
+			if (session != null && session.modified != modified) {
+				session.connmgr.shutdown();
+				session = null;
+			}
+			if (session == null) {
+				session = new Session(config.copy(), modified);
+				sessions.put(key, session);
+			}
+			return session;
+		}
+	}
+	
+	/**
+	 * Get the user's credential. The credential is loaded again when the
+	 * proxy file changes or the credential expires.
+	 */
+	private static synchronized GSSCredential getCredential() throws GSSException {
+		String proxy = CoGProperties.getDefault().getProxyFile();
+		long modified = new File(proxy).lastModified();
+		if (credential == null || !proxy.equals(credentialFile) || 
+				modified != credentialModified || 
+				credential.getRemainingLifetime() <= 0) {
+			credential = manager.createCredential(GSSCredential.INITIATE_AND_ACCEPT);
+			credentialFile = proxy;
+			credentialModified = modified;
+		}
+		return credential;
+	}
+	
+	/**
+	 * Connections that can be shared by clients that use the same 
+	 * credential and GSI settings.
+	 */
+	private static class Session {
+		private MultiThreadedHttpConnectionManager connmgr;
+		private Protocol protocol;
+		private long modified;
+		
+		public Session(ClientConfiguration config, long modified) {
+			this.modified = modified;
+			this.protocol = new Protocol("httpg", new SocketFactory(config), 9443);
+			this.connmgr = new MultiThreadedHttpConnectionManager();
+			HttpConnectionManagerParams params = connmgr.getParams();
+			params.setDefaultMaxConnectionsPerHost(MAX_SESSION_CONNECTIONS);
+			params.setMaxTotalConnections(MAX_SESSION_CONNECTIONS*4);
+			params.setStaleCheckingEnabled(true);
+		}
+	}
+	
 	private void handleError(InputStream is) throws GlideinException {
 		ErrorResponse resp;
 		try {
@@ -108,7 +234,7 @@ public class Client {
 		Serializer serializer = new Persister();
 		GetMethod get = new GetMethod(path);
 		try {
-			int status = httpclient.executeMethod(get);
+			int status = getHttpClient().executeMethod(get);
 			InputStream is = get.getResponseBodyAsStream();
 			if (status<200 || status>299) {
 				handleError(is);
@@ -143,7 +269,7 @@ public class Client {
 		PostMethod post = new PostMethod(path);
 		try {
 			post.setRequestEntity(entity);
-			int status = httpclient.executeMethod(post);
+			int status = getHttpClient().executeMethod(post);
 			InputStream is = post.getResponseBodyAsStream();
 			if (status<200 || status>299) {
 				handleError(is);
@@ -162,20 +288,39 @@ public class Client {
 		}
 	}
 	
-	public void close() {
+	/**
+	 * Close the client. Connections in a shared session are left open for
+	 * other clients.
+	 */
+	public synchronized void close() {
 		if (closed) return;
-		connmgr.shutdown();
+		if (session == null && connmgr != null) {
+			((SimpleHttpConnectionManager)connmgr).shutdown();
+		}
 		closed = true;
 	}
 	
-	private class SocketFactory implements ProtocolSocketFactory {
-		public SocketFactory() {
+	/**
+	 * Close all the connections in shared sessions.
+	 */
+	public static void closeSessions() {
+		synchronized (sessions) {
+			for (Session session : sessions.values()) {
+				session.connmgr.shutdown();
+			}
+			sessions.clear();
+		}
+	}
+	
+	private static class SocketFactory implements ProtocolSocketFactory {
+		private ClientConfiguration config;
+		
+		public SocketFactory(ClientConfiguration config) {
+			this.config = config;
 		}
 		
 		private ExtendedGSSContext getClientContext(String host) throws GSSException {
-			GSSManager manager = new GlobusGSSManagerImpl();
-			
-			GSSCredential cred = manager.createCredential(GSSCredential.INITIATE_AND_ACCEPT);
+			GSSCredential cred = getCredential();
 			
 			// XXX: When doing delegation targetName cannot be null.
 			// additional authorization will be performed after the handshake
@@ -139,6 +139,16 @@ public class CreateSiteCommand extends Command implements SiteListener {
 				  .hasArgument()
 		);
 		
+		options.add(
+			Option.create()
+				  .setOption("sspi")
+				  .setLongOption("staging-service-poll-interval")
+				  .setUsage("-sspi | --staging-service-poll-interval <min>[,<max>]")
+				  .setDescription("The minimum and maximum number of seconds between checks \n" +
+				  				  "of the logs of staging jobs. Default: set by the server")
+				  .hasArgument()
+		);
+		
 		options.add(
 			Option.create()
 				  .setOption("gs")
@@ -167,6 +177,39 @@ public class CreateSiteCommand extends Command implements SiteListener {
 				  .hasArgument()
 		);
 		
+		options.add(
+			Option.create()
+				  .setOption("gspi")
+				  .setLongOption("glidein-service-poll-interval")
+				  .setUsage("-gspi | --glidein-service-poll-interval <min>[,<max>]")
+				  .setDescription("The minimum and maximum number of seconds between checks \n" +
+				  				  "of the logs of glidein jobs. The logs are checked less often \n" +
+				  				  "while the glidein is waiting in the remote queue. \n" +
+				  				  "Default: set by the server")
+				  .hasArgument()
+		);
+		
+		options.add(
+			Option.create()
+				  .setOption("gsms")
+				  .setLongOption("glidein-service-max-submitted")
+				  .setUsage("-gsms | --glidein-service-max-submitted <n>")
+				  .setDescription("The maximum number of glidein jobs that may be waiting to be \n" +
+				  				  "accepted by the glidein service at once. Other glideins wait \n" +
+				  				  "until there is room. Default: set by the server")
+				  .hasArgument()
+		);
+		
+		options.add(
+			Option.create()
+				  .setOption("gsmr")
+				  .setLongOption("glidein-service-max-submit-rate")
+				  .setUsage("-gsmr | --glidein-service-max-submit-rate <n>")
+				  .setDescription("The maximum number of glidein jobs submitted to the glidein \n" +
+				  				  "service per minute. Default: set by the server")
+				  .hasArgument()
+		);
+		
 		options.add(
 			Option.create()
 				  .setOption("cv")
@@ -260,6 +303,7 @@ public class CreateSiteCommand extends Command implements SiteListener {
 					"for site '"+siteName+"'. Are you sure you used the right " +
 					"format for staging-service?");
 		}
+		setPollInterval(req.getStagingService(), "staging", cmdln.getOptionValue("sspi"));
 		
 		/* Glidein service */
 		try {
@@ -276,6 +320,11 @@ public class CreateSiteCommand extends Command implements SiteListener {
 					"for site '"+siteName+"'. Are you sure you used the right " +
 					"format for glidein-service?");
 		}
+		setPollInterval(req.getGlideinService(), "glidein", cmdln.getOptionValue("gspi"));
+		req.getGlideinService().setMaxSubmitted(
+				getInteger("glidein-service-max-submitted", cmdln.getOptionValue("gsms")));
+		req.getGlideinService().setMaxSubmitRate(
+				getInteger("glidein-service-max-submit-rate", cmdln.getOptionValue("gsmr")));
 		
 		/* Environment */
 		String env = cmdln.getOptionValue("e");
@@ -307,6 +356,30 @@ public class CreateSiteCommand extends Command implements SiteListener {
 		}
 	}
 	
+	private void setPollInterval(ExecutionService service, String name, String value) 
+	throws CommandException {
+		if (value == null) return;
+		try {
+			String[] comp = value.split(",", 2);
+			service.setMinPollInterval(Integer.valueOf(comp[0].trim()));
+			if (comp.length > 1) {
+				service.setMaxPollInterval(Integer.valueOf(comp[1].trim()));
+			}
+		} catch (NumberFormatException nfe) {
+			throw new CommandException("Invalid "+name+"-service-poll-interval: "+
+					value+". Expected <min>[,<max>] in seconds.");
+		}
+	}
+	
+	private Integer getInteger(String name, String value) throws CommandException {
+		if (value == null) return null;
+		try {
+			return Integer.valueOf(value.trim());
+		} catch (NumberFormatException nfe) {
+			throw new CommandException("Invalid "+name+": "+value);
+		}
+	}
+	
 	public void execute() throws CommandException {
 		if (isDebug()) System.out.printf("Creating site...\n");
 		
@@ -380,7 +453,10 @@ public class CreateSiteCommand extends Command implements SiteListener {
 		return "Usage:\n" +
 				"   create-site [options] --site-name <name> --install-path <path> --local-path <path>\n" +
 				"                  --staging-service <svc> [--staging-service-project <proj>] [--staging-service-queue <queue>]\n" +
+				"                  [--staging-service-poll-interval <min>[,<max>]]\n" +
 				"                  --glidein-service <svc> [--glidein-service-project <proj>] [--glidein-service-queue <queue>]\n" +
+				"                  [--glidein-service-poll-interval <min>[,<max>]]\n" +
+				"                  [--glidein-service-max-submitted <n>] [--glidein-service-max-submit-rate <n>]\n" +
 				"                  [--condor-version <ver> | --condor-package <pkg>] [--environment <env>]";
 	}
 	
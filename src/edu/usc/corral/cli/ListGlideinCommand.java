@@ -27,10 +27,15 @@ import edu.usc.corral.types.ListRequest;
 import edu.usc.corral.types.ListGlideinsResponse;
 
 public class ListGlideinCommand extends Command {
+	private static final int DEFAULT_PAGE_SIZE = 100;
+	
 	private boolean longFormat = false;
 	private boolean allUsers = false;
 	private String user = null;
 	private List<Integer> ids;
+	private List<String> states = null;
+	private List<Integer> sites = null;
+	private int pageSize = DEFAULT_PAGE_SIZE;
 	
 	public ListGlideinCommand() {
 		ids = new LinkedList<Integer>();
@@ -59,6 +64,30 @@ public class ListGlideinCommand extends Command {
 				  .setDescription("Show glideins for the specified user (default: current user)")
 				  .hasArgument()
 		);
+		options.add(
+			Option.create()
+				  .setOption("st")
+				  .setLongOption("state")
+				  .setUsage("-st | --state <state,...>")
+				  .setDescription("Only show glideins in the specified states")
+				  .hasArgument()
+		);
+		options.add(
+			Option.create()
+				  .setOption("s")
+				  .setLongOption("site")
+				  .setUsage("-s | --site <id,...>")
+				  .setDescription("Only show glideins for the specified sites")
+				  .hasArgument()
+		);
+		options.add(
+			Option.create()
+				  .setOption("ps")
+				  .setLongOption("page-size")
+				  .setUsage("-ps | --page-size <n>")
+				  .setDescription("The number of glideins to retrieve at a time (default: "+DEFAULT_PAGE_SIZE+")")
+				  .hasArgument()
+		);
 	}
 
 	public void setArguments(CommandLine cmdln) throws CommandException {		
@@ -77,6 +106,39 @@ public class ListGlideinCommand extends Command {
 			user = cmdln.getOptionValue("user");
 		}
 		
+		/* States */
+		if (cmdln.hasOption("st")) {
+			states = new LinkedList<String>();
+			for (String state : cmdln.getOptionValue("st").split(",")) {
+				states.add(state.trim());
+			}
+		}
+		
+		/* Sites */
+		if (cmdln.hasOption("s")) {
+			sites = new LinkedList<Integer>();
+			for (String site : cmdln.getOptionValue("s").split(",")) {
+				try {
+					sites.add(Integer.parseInt(site.trim()));
+				} catch (NumberFormatException nfe) {
+					throw new CommandException("Invalid site id: "+site);
+				}
+			}
+		}
+		
+		/* Page size */
+		if (cmdln.hasOption("ps")) {
+			String value = cmdln.getOptionValue("ps");
+			try {
+				pageSize = Integer.parseInt(value);
+			} catch (NumberFormatException nfe) {
+				throw new CommandException("Invalid page size: "+value);
+			}
+			if (pageSize < 1) {
+				throw new CommandException("Invalid page size: "+value);
+			}
+		}
+		
 		/* Remaining arguments */
 		String[] args = cmdln.getArgs();
 		for (String arg : args) {
@@ -102,16 +164,26 @@ public class ListGlideinCommand extends Command {
 		if (isDebug()) System.out.printf("Listing glideins\n");
 		
 		try {
-			// Get the sites
 			GlideinService svc = new GlideinService(getHost(), getPort());
 			ListRequest req = new ListRequest();
 			req.setLongFormat(longFormat);
 			req.setUser(user);
 			req.setAllUsers(allUsers);
-			ListGlideinsResponse resp = svc.listGlideins(req);
+			req.setStates(states);
+			req.setSites(sites);
+			req.setLimit(pageSize);
 			
-			// Print out the site list
-			printGlideins(resp.getGlideins());
+			// Get the glideins one page at a time and print them as they come
+			boolean header = true;
+			while (true) {
+				ListGlideinsResponse resp = svc.listGlideins(req);
+				printGlideins(resp.getGlideins(), header);
+				if (resp.getNextAfterId() == null) {
+					break;
+				}
+				req.setAfterId(resp.getNextAfterId());
+				header = false;
+			}
 		} catch (Exception e) {
 			throw new CommandException("Unable to list glideins: "+
 					"Error communicating with service: "+e.getMessage(), e);
@@ -136,10 +208,10 @@ public class ListGlideinCommand extends Command {
 			}
 		}
 		if(isDebug()) System.out.println("Done retrieving glideins");
-		printGlideins(glideins);
+		printGlideins(glideins, true);
 	}
 	
-	public void printGlideins(List<Glidein> glideins) throws CommandException {
+	public void printGlideins(List<Glidein> glideins, boolean header) throws CommandException {
 		if (isDebug()) System.out.println("Printing glideins");
 		
 		if (glideins == null || glideins.size() == 0) {
@@ -154,16 +226,9 @@ public class ListGlideinCommand extends Command {
 				System.out.println();
 			}
 		} else {
-			System.out.printf("%-8s","ID");
-			System.out.printf("%-25s","SITE");
-			System.out.printf("%-12s","OWNER");
-			System.out.printf("%-8s","SLOTS");
-			System.out.printf("%-8s","WTIME");
-			System.out.printf("%-15s","CREATED");
-			System.out.printf("%-15s","LAST UPDATE");
-			System.out.printf("%-10s","STATE");
-			System.out.printf("%s","MESSAGE");
-			System.out.printf("\n");
+			if (header) {
+				printHeader();
+			}
 			for (Glidein g : glideins) {
 				System.out.printf("%-8d",g.getId());
 				System.out.printf("%-25s",""+g.getSiteName()+" ("+g.getSiteId()+")");
@@ -186,6 +251,19 @@ public class ListGlideinCommand extends Command {
 		if (isDebug()) System.out.println("Done printing glideins.");
 	}
 	
+	private void printHeader() {
+		System.out.printf("%-8s","ID");
+		System.out.printf("%-25s","SITE");
+		System.out.printf("%-12s","OWNER");
+		System.out.printf("%-8s","SLOTS");
+		System.out.printf("%-8s","WTIME");
+		System.out.printf("%-15s","CREATED");
+		System.out.printf("%-15s","LAST UPDATE");
+		System.out.printf("%-10s","STATE");
+		System.out.printf("%s","MESSAGE");
+		System.out.printf("\n");
+	}
+	
 	public String getName() {
 		return "list-glideins";
 	}
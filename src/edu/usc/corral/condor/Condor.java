@@ -15,20 +15,59 @@
  */
 package edu.usc.corral.condor;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import edu.usc.corral.config.Registry;
 import edu.usc.corral.util.CommandLine;
+import edu.usc.corral.util.ProcessRunner;
 
 /**
- * This class is an interface for managing condor jobs.
+ * This class is an interface for managing condor jobs. This 
+ * implementation runs the Condor command-line tools. Other backends 
+ * (e.g. SimulatedCondor) extend this class and are selected by the type
+ * of the corral/Condor resource.
  *
  * @author Gideon Juve <juve@usc.edu>
  */
 public class Condor {
+	private static final Pattern JOBID_PATTERN = 
+		Pattern.compile("[*]{2} Proc (([0-9]+).([0-9]+)):");
+	private static final Pattern CLUSTER_PATTERN = 
+		Pattern.compile("submitted to cluster ([0-9]+)");
+	
+	/** Submit commands that CondorJob only writes for some jobs */
+	private static final String[] OPTIONAL_COMMANDS = {
+		"globus_rsl", "globus_xml", "x509userproxy", "transfer_executable",
+		"arguments", "environment", "requirements", "remote_initialdir",
+		"transfer_input_files", "transfer_output_files", 
+		"when_to_transfer_output"
+	};
+	
+	/** 
+	 * Output format of condor_q and condor_history. Attributes that are
+	 * undefined are not printed, so optional fields are named.
+	 */
+	private static final String[] STATUS_FORMAT = {
+		"-format", "%d.", "ClusterId",
+		"-format", "%d|", "ProcId",
+		"-format", "%d|", "JobStatus",
+		"-format", "%d|", "EnteredCurrentStatus",
+		"-format", "grid=%s|", "GridJobStatus",
+		"-format", "hold=%s|", "HoldReason",
+		"-format", "\\n", "ClusterId"
+	};
+	
 	private File condorHome;
 	private File condorConfig;
 	
@@ -74,7 +113,52 @@ public class Condor {
 	 */
 	public void submitJob(CondorJob job) throws CondorException {
 		// Prepare the job
+		prepareJob(job);
+		
+		List<CondorJob> jobs = new LinkedList<CondorJob>();
+		jobs.add(job);
+		submitJobs(jobs);
+		
+		startJob(job);
+	}
+	
+	/**
+	 * Choose the log for a job and prepare it for submission.
+	 * 
+	 * @param job The job to prepare
+	 * @throws CondorException If the job cannot be prepared
+	 */
+	public void prepareJob(CondorJob job) throws CondorException {
+		CondorLogWatcher.getInstance().assignLog(job);
 		job.prepareForSubmit();
+	}
+	
+	/**
+	 * Submit several jobs with one condor_submit. The jobs must already 
+	 * have been prepared using prepareJob(). When this
+	 * returns the job IDs have been set, but the jobs have not been 
+	 * started (see startJob()).
+	 * 
+	 * @param jobs The jobs to submit
+	 * @throws CondorException If the submission fails. In that case none
+	 * of the jobs were submitted.
+	 */
+	public void submitJobs(List<CondorJob> jobs) throws CondorException {
+		if (jobs.size() == 0)
+			return;
+		
+		// A single job uses its own submit script, several jobs
+		// are put in one submit script with one queue command each
+		File submitScript;
+		File workingDirectory;
+		if (jobs.size() == 1) {
+			CondorJob job = jobs.get(0);
+			submitScript = job.getSubmitScript();
+			workingDirectory = job.getJobDirectory();
+		} else {
+			workingDirectory = jobs.get(0).getJobDirectory().getParentFile();
+			submitScript = writeBatchSubmitScript(jobs, workingDirectory);
+		}
 		
 		// Run submit command
 		CommandLine submit = new CommandLine();
@@ -84,11 +168,15 @@ public class Condor {
 			File condorSubmit = new File(condorBin,"condor_submit");
 			
 			submit.setCommand(condorSubmit.getAbsolutePath());
-			submit.setWorkingDirectory(job.getJobDirectory());
+			submit.setWorkingDirectory(workingDirectory);
+			
+			// The verbose output has the ad of every job, and all of
+			// it is needed to find the job IDs
+			submit.setMaxOutput(Integer.MAX_VALUE);
 			
 			// Arguments
 			submit.addArgument("-verbose");
-			submit.addArgument(job.getSubmitScript().getAbsolutePath());
+			submit.addArgument(submitScript.getAbsolutePath());
 			
 			// Set environment
 			submit.addEnvironmentVariable(
@@ -97,9 +185,13 @@ public class Condor {
 					"CONDOR_CONFIG",getCondorConfig());
 			
 			// Run condor_submit
-			submit.execute();
+			ProcessRunner.getInstance().execute(submit);
 		} catch(IOException ioe) {
 			throw new CondorException("Unable to submit job",ioe);
+		} finally {
+			if (jobs.size() > 1) {
+				submitScript.delete();
+			}
 		}
 			
 		// Check exit code and throw an exception if it failed
@@ -111,24 +203,94 @@ public class Condor {
 					"Standard error:\n"+submit.getError());
 		}
 		
-		// Parse condor job ID from output
-		Pattern p = Pattern.compile("[*]{2} Proc (([0-9]+).([0-9]+)):");
-		Matcher m = p.matcher(submit.getOutput());
-		if(m.find()) {
-			String jobid = m.group(1);
-			job.setJobId(jobid);
-			job.saveJobId();
-		} else {
-			throw new CondorException("Unable to parse cluster and job id\n\n"+
+		// Parse condor job IDs from output. They are in the 
+		// same order as the queue commands in the submit script.
+		List<String> jobids = new LinkedList<String>();
+		Matcher m = JOBID_PATTERN.matcher(submit.getOutput());
+		while (m.find()) {
+			jobids.add(m.group(1));
+		}
+		if (jobids.size() != jobs.size()) {
+			// Don't leave jobs in the queue that nobody knows about
+			Set<String> clusters = new HashSet<String>();
+			Matcher c = CLUSTER_PATTERN.matcher(submit.getOutput());
+			while (c.find()) {
+				clusters.add(c.group(1));
+			}
+			for (String jobid : jobids) {
+				clusters.add(jobid.substring(0, jobid.indexOf('.')));
+			}
+			String removed = "";
+			if (clusters.size() > 0) {
+				try {
+					remove(new LinkedList<String>(clusters), workingDirectory);
+					removed = "Removed clusters "+clusters+"\n\n";
+				} catch (CondorException ce) {
+					removed = "Unable to remove clusters "+clusters+": "+
+						ce.getMessage()+"\n\n";
+				}
+			}
+			throw new CondorException("Unable to parse cluster and job id: "+
+					"expected "+jobs.size()+" ids, found "+jobids.size()+"\n\n"+
+					removed+
 					"Standard out:\n"+submit.getOutput()+"\n"+
 					"Standard error:\n"+submit.getError());
 		}
+		Iterator<String> ids = jobids.iterator();
+		for (CondorJob job : jobs) {
+			job.setJobId(ids.next());
+		}
+	}
+	
+	/**
+	 * Save the ID of a job that has been submitted and start delivering
+	 * its events to its listeners.
+	 */
+	public void startJob(CondorJob job) throws CondorException {
+		job.saveJobId();
 		
 		// Attach event generator to log
 		CondorEventGenerator gen = new CondorEventGenerator(job);
 		gen.start();
 	}
 	
+	/**
+	 * Write one submit script for several jobs. Submit commands carry
+	 * over from one queue command to the next, so optional commands that
+	 * a job does not set are cleared before its commands are written.
+	 */
+	private File writeBatchSubmitScript(List<CondorJob> jobs, File dir)
+	throws CondorException {
+		File script = null;
+		try {
+			script = File.createTempFile("submit", ".batch", dir);
+			Writer out = new BufferedWriter(new FileWriter(script));
+			try {
+				Set<String> xattrs = new HashSet<String>();
+				for (CondorJob job : jobs) {
+					for (String command : OPTIONAL_COMMANDS) {
+						out.write(command+" =\n");
+					}
+					for (String attr : xattrs) {
+						if (!job.getXAttrs().containsKey(attr)) {
+							out.write("+"+attr+" = UNDEFINED\n");
+						}
+					}
+					xattrs.addAll(job.getXAttrs().keySet());
+					
+					job.writeSubmitDescription(out);
+					out.write("queue\n\n");
+				}
+			} finally {
+				out.close();
+			}
+			return script;
+		} catch (IOException ioe) {
+			if (script != null) script.delete();
+			throw new CondorException("Unable to write batch submit script",ioe);
+		}
+	}
+	
 	/**
 	 * Cancel a condor job
 	 * 
@@ -136,6 +298,133 @@ public class Condor {
 	 * @throws CondorException If there is an error cancelling the job
 	 */
 	public void cancelJob(CondorJob job) throws CondorException {
+		List<String> args = new LinkedList<String>();
+		args.add(job.getJobId());
+		remove(args, job.getJobDirectory());
+	}
+	
+	/**
+	 * Cancel several condor jobs with one condor_rm
+	 * 
+	 * @param jobIds The IDs of the jobs to cancel
+	 * @throws CondorException If there is an error cancelling the jobs
+	 */
+	public void cancelJobs(List<String> jobIds) throws CondorException {
+		if (jobIds.size() == 0)
+			return;
+		remove(new LinkedList<String>(jobIds), null);
+	}
+	
+	/**
+	 * Cancel all the condor jobs that match a ClassAd constraint. The 
+	 * attributes set with CondorJob.addXAttr() can be used to select 
+	 * jobs, e.g. "CorralSiteId == 12".
+	 * 
+	 * @param constraint The constraint
+	 * @throws CondorException If there is an error cancelling the jobs
+	 */
+	public void cancelJobs(String constraint) throws CondorException {
+		List<String> args = new LinkedList<String>();
+		args.add("-constraint");
+		args.add(constraint);
+		remove(args, null);
+	}
+	
+	/**
+	 * Get the status of all the jobs in the queue that match a ClassAd
+	 * constraint.
+	 * 
+	 * @param constraint The constraint
+	 * @return The status of each matching job
+	 * @throws CondorException If condor_q fails
+	 */
+	public List<CondorJobStatus> queryQueue(String constraint) 
+	throws CondorException {
+		List<String> args = new LinkedList<String>();
+		args.add("-constraint");
+		args.add(constraint);
+		return query("condor_q", args);
+	}
+	
+	/**
+	 * Get the final status of jobs that have left the queue.
+	 * 
+	 * @param jobIds The IDs of the jobs
+	 * @return The status of each job that was found in the history
+	 * @throws CondorException If condor_history fails
+	 */
+	public List<CondorJobStatus> queryHistory(List<String> jobIds) 
+	throws CondorException {
+		if (jobIds.size() == 0)
+			return new LinkedList<CondorJobStatus>();
+		
+		StringBuilder constraint = new StringBuilder();
+		for (String jobId : jobIds) {
+			String[] ids = jobId.split("[.]");
+			if (constraint.length() > 0) {
+				constraint.append(" || ");
+			}
+			constraint.append("(ClusterId == ").append(ids[0]);
+			constraint.append(" && ProcId == ").append(ids[1]).append(")");
+		}
+		
+		List<String> args = new LinkedList<String>();
+		args.add("-constraint");
+		args.add(constraint.toString());
+		return query("condor_history", args);
+	}
+	
+	private List<CondorJobStatus> query(String command, List<String> args) 
+	throws CondorException {
+		for (String arg : STATUS_FORMAT) {
+			args.add(arg);
+		}
+		
+		// Run query command
+		CommandLine query = new CommandLine();
+		try {
+			File condorBin = new File(condorHome,"bin");
+			File executable = new File(condorBin,command);
+			
+			query.setCommand(executable.getAbsolutePath());
+			query.setArguments(args);
+			
+			// The output grows with the number of jobs, and a truncated
+			// listing cannot be parsed
+			query.setMaxOutput(Integer.MAX_VALUE);
+			
+			// Set environment
+			query.addEnvironmentVariable("CONDOR_HOME",
+					getCondorHome());
+			query.addEnvironmentVariable("CONDOR_CONFIG",
+					getCondorConfig());
+			
+			// Run query
+			ProcessRunner.getInstance().execute(query);
+		} catch(IOException ioe) {
+			throw new CondorException("Unable to run "+command,ioe);
+		}
+		
+		// Check exit code and throw an exception if it failed
+		int exit = query.getExitCode();
+		if(exit != 0) {
+			throw new CondorException(
+					command+" failed with code "+exit+":\n\n"+
+					"Standard out:\n\n"+query.getOutput()+"\n\n"+
+					"Standard error:\n\n"+query.getError());
+		}
+		
+		List<CondorJobStatus> result = new LinkedList<CondorJobStatus>();
+		for (String line : query.getOutput().split("\n")) {
+			if (line.trim().length() > 0) {
+				result.add(CondorJobStatus.parse(line));
+			}
+		}
+		return result;
+	}
+	
+	private void remove(List<String> args, File workingDirectory) 
+	throws CondorException {
 		//Run rm command
 		CommandLine cancel = new CommandLine();
 		try {
@@ -144,10 +433,12 @@ public class Condor {
 			File condorRm = new File(condorBin,"condor_rm");
 			
 			cancel.setCommand(condorRm.getAbsolutePath());
-			cancel.setWorkingDirectory(job.getJobDirectory());
+			if (workingDirectory != null) {
+				cancel.setWorkingDirectory(workingDirectory);
+			}
 			
 			// Arguments
-			cancel.addArgument(job.getJobId());
+			cancel.setArguments(args);
 			
 			// Set environment
 			cancel.addEnvironmentVariable("CONDOR_HOME",
@@ -156,7 +447,7 @@ public class Condor {
 					getCondorConfig());
 			
 			// Run condor_rm
-			cancel.execute();
+			ProcessRunner.getInstance().execute(cancel);
 		} catch(IOException ioe) {
 			throw new CondorException("Unable to cancel job",ioe);
 		}
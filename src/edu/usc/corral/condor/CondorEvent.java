@@ -15,6 +15,9 @@
  */
 package edu.usc.corral.condor;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.Date;
 
 /**
@@ -31,6 +34,21 @@ public class CondorEvent {
 	private Date time;
 	private CondorException exception;
 	
+	/** Offset in the job log just after this event, or 0 */
+	private long position;
+	
+	/** Number of this event in the job log, starting from 1 */
+	private int sequence;
+	
+	/** Raw event text, only valid while the event is being delivered */
+	private byte[] rawDetails;
+	private int rawOffset;
+	private int rawLength;
+	
+	/** Location of the raw event text in the job log */
+	private File log;
+	private long logOffset;
+	
 	public CondorException getException()
 	{
 		return exception;
@@ -91,11 +109,93 @@ public class CondorEvent {
 		this.generator = generator;
 	}
 	
-	public void setDetails(String details) {
+	public long getPosition()
+	{
+		return position;
+	}
+	
+	void setPosition(long position)
+	{
+		this.position = position;
+	}
+	
+	public int getSequence()
+	{
+		return sequence;
+	}
+	
+	void setSequence(int sequence)
+	{
+		this.sequence = sequence;
+	}
+	
+	/**
+	 * @return A checkpoint that resumes the job log after this event, 
+	 * or null if this event was not read from the log
+	 */
+	public CondorLogCheckpoint getCheckpoint()
+	{
+		if (position <= 0 || job == null)
+			return null;
+		return new CondorLogCheckpoint(job.getLogCheckpoint(), 
+				job.getJobId(), position, sequence);
+	}
+	
+	public synchronized void setDetails(String details) {
 		this.details = details;
+		this.rawDetails = null;
+		this.log = null;
 	}
 	
-	public String getDetails() {
+	/**
+	 * Set the details from the parser's buffer without decoding them.
+	 * The buffer is only borrowed until detachDetails() is called.
+	 */
+	synchronized void setDetails(byte[] data, int offset, int length) {
+		this.rawDetails = data;
+		this.rawOffset = offset;
+		this.rawLength = length;
+	}
+	
+	/**
+	 * Stop referring to the parser's buffer. If the details have not 
+	 * been requested yet they will be read back from the log on demand.
+	 */
+	synchronized void detachDetails(File log, long offset) {
+		if (rawDetails != null) {
+			this.log = log;
+			this.logOffset = offset;
+			this.rawDetails = null;
+		}
+	}
+	
+	public synchronized String getDetails() {
+		if (details == null) {
+			if (rawDetails != null) {
+				details = new String(rawDetails, rawOffset, rawLength);
+				rawDetails = null;
+				log = null;
+			} else if (log != null) {
+				details = readDetails();
+				log = null;
+			}
+		}
 		return this.details;
 	}
+	
+	private String readDetails() {
+		try {
+			RandomAccessFile file = new RandomAccessFile(log, "r");
+			try {
+				byte[] data = new byte[rawLength];
+				file.seek(logOffset);
+				file.readFully(data);
+				return new String(data);
+			} finally {
+				file.close();
+			}
+		} catch (IOException ioe) {
+			return null;
+		}
+	}
 }
@@ -16,112 +16,76 @@
 package edu.usc.corral.condor;
 
 import java.io.File;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
 
 /**
  * This class generates Condor job events by tailing and parsing a Condor
  * user job log file. The file should be standard format (i.e. not XML).
  * 
+ * Generators do not have their own thread. Instead they are registered 
+ * with a shared CondorLogWatcher that polls the log on their behalf.
+ * 
  * @author Gideon Juve <juve@usc.edu>
  */
-public class CondorEventGenerator extends Thread
+public class CondorEventGenerator
 {
-	/** The interval (in milliseconds) to poll the log file for new data */
-	private int pollInterval = 10000; // Default: 10 sec
+	private static final Logger logger = Logger.getLogger(CondorEventGenerator.class);
 	
 	/** The job to generate events for */
 	private CondorJob job;
 	
+	/** The watcher that is polling the log for this generator */
+	private CondorLogWatcher watcher;
+	
 	/** Is this event generator running? */
-	private boolean running = false;
+	private volatile boolean running = false;
+	
+	/** Is a reader currently polling the log? */
+	private AtomicBoolean busy = new AtomicBoolean(false);
+	
+	/** Parses the log and remembers partial events between polls */
+	private CondorLogParser parser = new CondorLogParser();
+	
+	/** The position in the log up to which data has been read */
+	private volatile long filePointer = 0;
+	
+	/** The number of events read from the log */
+	private int sequence = 0;
+	
+	/** Where to resume the log when the generator is started */
+	private CondorLogCheckpoint checkpoint;
+	
+	/** When the log should be checked for new data */
+	private CondorPollSchedule schedule;
 	
-	/** The format of dates in the log file */
-	private SimpleDateFormat eventDateFormat;
+	/** The condor cluster and proc IDs of the job */
+	private int cluster;
+	private int proc;
 	
 	/**
-	 * Create a new event generator for the given job.
+	 * Create a new event generator for the given job that uses the
+	 * configured log watcher.
 	 * @param job The job to generate events for.
 	 */
 	public CondorEventGenerator(CondorJob job)
 	{
-		this.job = job;
-		this.eventDateFormat = new SimpleDateFormat("MM/dd HH:mm:ss");
+		this(job, null);
 	}
 	
 	/**
-	 * Parse the current event.
-	 * @throws CondorException If there is an error parsing the event.
+	 * Create a new event generator for the given job.
+	 * @param job The job to generate events for.
+	 * @param watcher The log watcher to use, or null to use the 
+	 * configured log watcher
 	 */
-	private CondorEvent parseEvent(LinkedList<String> currentEvent)
-	throws CondorException
+	public CondorEventGenerator(CondorJob job, CondorLogWatcher watcher)
 	{
-		// Process header
-		String header = currentEvent.poll();
-		String[] fields = header.split(" ",5);
-		if(fields.length != 5)
-			throw new CondorException("Error parsing event header: "+header);
-		
-		// New event
-		CondorEvent event = new CondorEvent();
-		event.setGenerator(this);
-		event.setJob(job);
-		event.setTime(new Date());
-		
-		// Event code
-		try {
-			int intCode = Integer.parseInt(fields[0]);
-			CondorEventCode code = CondorEventCode.fromEventCode(intCode);
-			event.setEventCode(code);
-		} catch(IllegalArgumentException e) {
-			throw new CondorException("Unrecognized event code: "+fields[0],e);
-		}
-		
-		// Job ID
-		try {
-			String id = fields[1].substring(1,fields[1].length()-2);
-			String[] tokens = id.split("[.]");
-			if(tokens.length != 3)
-				throw new CondorException("Error parsing job id: "+fields[1]);
-			String condorId = 
-				Integer.parseInt(tokens[0])+"."+Integer.parseInt(tokens[1]);
-			if(!condorId.equals(job.getJobId())) {
-				throw new CondorException("Condor ID mismatch: got "+
-						condorId + " expected " + job.getJobId());
-			}
-		} catch(CondorException ce) {
-			throw ce; /* No need to wrap these */
-		} catch(Exception e) {
-			throw new CondorException("Error parsing job id: "+fields[1],e);
-		}
-		
-		// Date / time
-		String eventTime = fields[2] + " " + fields[3];
-		try {
-			Date date = eventDateFormat.parse(eventTime);
-			event.setTime(date);
-		} catch(ParseException pe) {
-			throw new CondorException("Error parsing event time: "+eventTime);
-		}
-		
-		// Message
-		event.setMessage(fields[4].trim());
-		
-		// Event details
-		StringBuffer details = new StringBuffer();
-		details.append(header);
-		for (String s : currentEvent) {
-			details.append(s);
-		}
-		event.setDetails(details.toString());
-		
-		return event;
+		this.job = job;
+		this.watcher = watcher;
 	}
-	
+
 	/**
 	 * Deliver an event to all the job's event listeners
 	 * @param event The event to deliver
@@ -132,6 +96,14 @@ public class CondorEventGenerator extends Thread
 			listener.handleEvent(event);
 	}
 	
+	/**
+	 * @return The job this generator is generating events for
+	 */
+	public CondorJob getJob()
+	{
+		return job;
+	}
+	
 	/**
 	 * Is this event generator running?
 	 * @return true if running, false otherwise
@@ -141,143 +113,233 @@ public class CondorEventGenerator extends Thread
 		return running;
 	}
 	
+	/**
+	 * Resume the log from a checkpoint instead of reading it from the
+	 * beginning. This must be called before start(). If the checkpoint 
+	 * does not match the job log when the generator starts, then it is
+	 * ignored.
+	 * @param checkpoint The checkpoint to resume from
+	 */
+	public void resume(CondorLogCheckpoint checkpoint)
+	{
+		this.checkpoint = checkpoint;
+	}
+	
+	/**
+	 * Start tailing the job log and generating events.
+	 * @throws CondorException If the log watcher is not available
+	 */
+	public void start() throws CondorException
+	{
+		try {
+			String[] tokens = job.getJobId().split("[.]");
+			cluster = Integer.parseInt(tokens[0]);
+			proc = Integer.parseInt(tokens[1]);
+		} catch (Exception e) {
+			throw new CondorException("Invalid job id: "+job.getJobId(),e);
+		}
+		if (checkpoint != null) {
+			if (checkpoint.isValidFor(job)) {
+				logger.debug("Resuming log of job "+checkpoint);
+				parser.reset(checkpoint.getPosition());
+				filePointer = checkpoint.getPosition();
+				sequence = checkpoint.getSequence();
+			} else {
+				logger.info("Ignoring log checkpoint of job "+
+						job.getJobId()+": "+checkpoint);
+			}
+			checkpoint = null;
+		}
+		if (watcher == null)
+			watcher = CondorLogWatcher.getInstance();
+		running = true;
+		watcher.add(this);
+	}
+	
 	/**
 	 * Tell the event generator to stop running.
 	 */
 	public void terminate()
 	{
 		this.running = false;
-		this.interrupt();
+		if (watcher != null)
+			watcher.remove(this);
 	}
 	
 	/**
-	 * 
-	 * @return The log file polling interval
+	 * @return A key identifying the job's cluster and proc IDs
 	 */
-	public int getPollInterval()
+	long getJobKey()
 	{
-		return this.pollInterval;
+		return jobKey(cluster, proc);
+	}
+	
+	static long jobKey(int cluster, int proc)
+	{
+		return ((long)cluster << 32) | (proc & 0xffffffffL);
 	}
 	
 	/**
-	 * Set the polling interval
-	 * @param pollInterval The new poll interval
-	 * @throws CondorException If the new poll interval <= 0
+	 * @return The position in the log up to which data has been read.
+	 * Before the generator has polled the log this is where it was 
+	 * resumed from.
 	 */
-	public void setPollInterval(int pollInterval)
-	throws CondorException
+	long getFilePointer()
 	{
-		if(pollInterval<=0)
-			throw new CondorException(
-					"The poll interval must be greater than 0");
-		this.pollInterval = pollInterval;
+		return filePointer;
+	}
+	
+	CondorPollSchedule getSchedule()
+	{
+		return schedule;
+	}
+	
+	void setSchedule(CondorPollSchedule schedule)
+	{
+		this.schedule = schedule;
 	}
 	
 	/**
-	 * Start tailing the job log and generating events.
+	 * Try to claim this generator for reading. Only one thread
+	 * may poll the log at a time.
+	 * @return true if the caller may poll the log
+	 */
+	boolean acquire()
+	{
+		return busy.compareAndSet(false, true);
+	}
+	
+	/**
+	 * Release the claim acquired by acquire().
+	 */
+	void release()
+	{
+		busy.set(false);
+	}
+	
+	/**
+	 * Check whether the log has changed since it was last read. This
+	 * only stats the log, it does not open it.
+	 * @return true if the log should be read
+	 */
+	boolean hasNewData()
+	{
+		return running && job.getLog().length() != filePointer;
+	}
+	
+	/**
+	 * Read any new data from the job log and deliver the events. If
+	 * the log cannot be read or parsed then an EXCEPTION event is 
+	 * delivered and the generator is terminated.
+	 */
+	void poll()
+	{
+		if (!running)
+			return;
+		
+		try
+		{
+			tailJobLog();
+		}
+		catch(CondorException ce)
+		{
+			fail(ce);
+		}
+	}
+	
+	/**
+	 * Terminate the generator and deliver an EXCEPTION event.
+	 * @param ce The reason the log cannot be followed
+	 */
+	void fail(CondorException ce)
+	{
+		terminate();
+		
+		// Notify any listeners before exiting
+		CondorEvent event = new CondorEvent();
+		event.setEventCode(CondorEventCode.EXCEPTION);
+		event.setJob(job);
+		event.setException(ce);
+		event.setMessage(ce.getMessage());
+		event.setGenerator(this);
+		deliverEvent(event);
+	}
+	
+	/**
+	 * Read the new part of the job log and generate events.
 	 * @throws CondorException If there is a problem parsing the log file.
 	 */
 	private void tailJobLog() throws CondorException
 	{
-		long filePointer = 0;
-	    File log = job.getLog();
-	    LinkedList<String> currentEvent = new LinkedList<String>();
-	    StringBuffer buffer = new StringBuffer();
-	    
-		while(running)
+		File log = job.getLog();
+		
+		long fileLength = log.length();
+		
+		if(fileLength < filePointer) 
 		{
-			long fileLength = log.length();
-			
-			if(fileLength < filePointer) 
+			// The file was truncated
+			parser.reset();
+			filePointer = 0;
+			sequence = 0;
+		}
+		
+		if(fileLength > filePointer)
+		{
+			try
 			{
-				// The file was truncated
-	            filePointer = 0;
+				parser.parse(log, handler);
 			}
-
-			if(fileLength > filePointer)
+			finally
 			{
-				try 
-				{
-					// It is a bit ugly to constantly reopen
-					// the file, but this is the only way it
-					// will work on Mac OS X
-					RandomAccessFile file = new RandomAccessFile(log, "r");
-					
-					// Seek to the last place we read from
-					file.seek(filePointer);
-					
-					// Read {length} bytes
-					int length = (int)(fileLength - filePointer);
-					byte[] data = new byte[length];
-					file.read(data);
-					char[] chars = new String(data).toCharArray();
-					for(char c : chars)
-					{
-						buffer.append(c);
-						if(c=='\n')
-						{
-							String line = buffer.toString();
-							
-							// Add the current line to the current event
-							currentEvent.add(line);
-							
-							// Look for the end-of-event marker
-							if(line.startsWith("...")){
-								CondorEvent event = parseEvent(currentEvent);
-								deliverEvent(event);
-								currentEvent = new LinkedList<String>();
-							}
-							
-							buffer = new StringBuffer();
-						}
-					}
-					
-					// Get the new position
-					filePointer = file.getFilePointer();
-					
-					file.close();
-				}
-				catch(IOException ioe)
-				{
-					throw new CondorException("Unable to read job log",ioe);
-				}
+				// Get the new position
+				filePointer = parser.getPosition();
 			}
-
-			// Sleep for the specified interval
-			try { Thread.sleep(pollInterval); } 
-			catch(InterruptedException ie){ /* Ignore */ }
 		}
-		
 	}
 	
-	public void run()
+	/**
+	 * Checks and delivers the events found by the parser
+	 */
+	private CondorLogParser.Handler handler = new CondorLogParser.Handler()
 	{
-		try
+		public boolean handle(CondorEvent event, int eventCluster, 
+				int eventProc) throws CondorException
 		{
-			running = true;
-			tailJobLog();
-			running = false;
-		}
-		catch(CondorException ce)
-		{
-			// Notify any listeners before exiting
-			CondorEvent event = new CondorEvent();
-			event.setEventCode(CondorEventCode.EXCEPTION);
-			event.setJob(job);
-			event.setException(ce);
-			event.setMessage(ce.getMessage());
-			event.setGenerator(this);
-			deliverEvent(event);
+			if(eventCluster != cluster || eventProc != proc) {
+				throw new CondorException("Condor ID mismatch: got "+
+						eventCluster+"."+eventProc+" expected "+
+						job.getJobId());
+			}
+			
+			return dispatch(event);
 		}
+	};
+	
+	/**
+	 * Deliver an event read from the job log
+	 * @return false if one of the listeners terminated the generator
+	 */
+	boolean dispatch(CondorEvent event)
+	{
+		event.setSequence(++sequence);
+		event.setGenerator(this);
+		event.setJob(job);
+		deliverEvent(event);
+		
+		// Stop if one of the listeners terminated us
+		return running;
 	}
 	
-	public static void main(String[] args)
+	public static void main(String[] args) throws Exception
 	{
 		CondorJob j = new CondorJob(new File("/Users/juve/Workspace/Condor"),System.getProperty("user.name"));
 		j.setJobId("8.0");
 		j.setLog(new File("/Users/juve/Workspace/Condor/terminated.log"));
 		
-		CondorEventGenerator gen = new CondorEventGenerator(j);
+		CondorLogWatcher watcher = new CondorLogWatcher();
+		watcher.initialize();
+		
+		final CondorEventGenerator gen = new CondorEventGenerator(j, watcher);
 		
 		j.addListener(new CondorEventListener()
 		{
@@ -301,11 +363,10 @@ public class CondorEventGenerator extends Thread
 		
 		gen.start();
 		
-		try {
-			gen.join();
-		} catch(InterruptedException ie){
-			ie.printStackTrace();
+		while (gen.isRunning()) {
+			Thread.sleep(1000);
 		}
+		watcher.shutdown();
 		System.out.println("done");
 	}
 }
@@ -15,7 +15,9 @@
  */
 package edu.usc.corral.condor;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Serializable;
@@ -28,6 +30,7 @@ import java.util.Map;
 
 import org.globus.gsi.GlobusCredential;
 
+import edu.usc.corral.types.ExecutionService;
 import edu.usc.corral.util.CredentialUtil;
 import edu.usc.corral.util.FilesystemUtil;
 
@@ -65,6 +68,11 @@ public class CondorJob implements Serializable
 	 */
 	private File log;
 	
+	/**
+	 * Checkpoint recording how much of the log has been processed
+	 */
+	private File logCheckpoint;
+	
 	/**
 	 * Standard error for this job
 	 */
@@ -160,6 +168,13 @@ public class CondorJob implements Serializable
 	 */
 	private Map<String,Object> xattrs;
 	
+	/**
+	 * The minimum and maximum intervals (in milliseconds) between polls
+	 * of the job log, or 0 to use the log watcher's defaults
+	 */
+	private int minPollInterval = 0;
+	private int maxPollInterval = 0;
+	
 	/**
 	 * Create a job with a given job directory and set of parameters
 	 * @param jobDirectory The directory where the files for this job 
@@ -169,7 +184,8 @@ public class CondorJob implements Serializable
 	public CondorJob(File jobDirectory, String owner)
 	{
 		this.jobDirectory = jobDirectory;
-		this.log = new File(jobDirectory,"log");
+		this.log = readLogLocation();
+		this.logCheckpoint = new File(jobDirectory,"logpos");
 		this.error = new File(jobDirectory,"error");
 		this.output = new File(jobDirectory,"output");
 		this.submitScript = new File(jobDirectory,"submit");
@@ -227,6 +243,47 @@ public class CondorJob implements Serializable
 		return this.log;
 	}
 	
+	/**
+	 * @return true if the job writes its events to a log that is shared
+	 * with other jobs instead of a log in the job directory
+	 */
+	public boolean hasSharedLog()
+	{
+		return !jobDirectory.getAbsoluteFile().equals(
+				log.getAbsoluteFile().getParentFile());
+	}
+	
+	/**
+	 * Find the log of a job that was submitted earlier. Jobs that use 
+	 * a shared log leave its path in the job directory.
+	 */
+	private File readLogLocation()
+	{
+		File location = new File(jobDirectory,"logfile");
+		if (location.exists()) {
+			try {
+				BufferedReader reader = new BufferedReader(
+						new FileReader(location));
+				try {
+					String path = reader.readLine();
+					if (path != null && path.length() > 0) {
+						return new File(path);
+					}
+				} finally {
+					reader.close();
+				}
+			} catch (IOException ioe) {
+				// Fall back on the job's own log
+			}
+		}
+		return new File(jobDirectory,"log");
+	}
+	
+	public File getLogCheckpoint()
+	{
+		return this.logCheckpoint;
+	}
+	
 	public File getError()
 	{
 		return this.error;
@@ -247,6 +304,11 @@ public class CondorJob implements Serializable
 		this.log = log;
 	}
 
+	public void setLogCheckpoint(File logCheckpoint)
+	{
+		this.logCheckpoint = logCheckpoint;
+	}
+
 	public void setError(File error)
 	{
 		this.error = error;
@@ -423,6 +485,41 @@ public class CondorJob implements Serializable
 		return owner;
 	}
 	
+	public int getMinPollInterval()
+	{
+		return minPollInterval;
+	}
+	
+	public int getMaxPollInterval()
+	{
+		return maxPollInterval;
+	}
+	
+	/**
+	 * Set the limits on how often the job log is polled. The log is 
+	 * polled less often while it is unchanged, but never less often 
+	 * than the maximum.
+	 * @param minPollInterval The minimum interval in ms, or 0 for default
+	 * @param maxPollInterval The maximum interval in ms, or 0 for default
+	 */
+	public void setPollInterval(int minPollInterval, int maxPollInterval)
+	{
+		this.minPollInterval = minPollInterval;
+		this.maxPollInterval = maxPollInterval;
+	}
+	
+	/**
+	 * Apply the limits of the service the job is submitted to
+	 * @param service The service, whose limits are given in seconds
+	 */
+	public void setPollInterval(ExecutionService service)
+	{
+		Integer min = service.getMinPollInterval();
+		Integer max = service.getMaxPollInterval();
+		setPollInterval(min == null ? 0 : min*1000, 
+				max == null ? 0 : max*1000);
+	}
+	
 	public boolean hasCredential()
 	{
 		return credential != null;
@@ -463,13 +560,20 @@ public class CondorJob implements Serializable
 	public void writeSubmitScript(Writer out) throws CondorException
 	{
 		try {
-			_writeSubmitScript(out);
+			writeSubmitDescription(out);
+			
+			// Queue 1 job
+			out.write("queue\n");
 		} catch (IOException ioe) {
 			throw new CondorException("Unable to write submit script",ioe);
 		}
 	}
 	
-	private void _writeSubmitScript(Writer out) throws IOException
+	/**
+	 * Write the submit commands for this job without the queue 
+	 * command. This is used to put several jobs in one submit file.
+	 */
+	void writeSubmitDescription(Writer out) throws IOException
 	{	
 		// UNIVERSE
 		out.write("universe = "+getUniverse().getTypeString()+"\n");
@@ -628,9 +732,6 @@ public class CondorJob implements Serializable
 			}
 			out.write("\n");
 		}
-		
-		// Queue 1 job
-		out.write("queue\n");
 	}
 	
 	public void saveJobId() throws CondorException {
@@ -647,11 +748,29 @@ public class CondorJob implements Serializable
 					"Unable to save Condor job id to file",ioe);
 		}
 		
+		// Remember which shared log the job writes to
+		File location = new File(jobDirectory,"logfile");
+		if (hasSharedLog()) {
+			try {
+				Writer writer = new FileWriter(location);
+				writer.write(log.getAbsolutePath());
+				writer.write("\n");
+				writer.close();
+			} catch (IOException ioe) {
+				throw new CondorException(
+						"Unable to save Condor job log location",ioe);
+			}
+		}
+		
 		// Change the ownership
 		if (owner != null && !System.getProperty("user.name").equals(owner)) {
 			try {
 				FilesystemUtil.chmod(jobidFile, 644);
 				FilesystemUtil.chown(jobidFile, owner);
+				if (hasSharedLog()) {
+					FilesystemUtil.chmod(location, 644);
+					FilesystemUtil.chown(location, owner);
+				}
 			} catch(IOException ioe) {
 				throw new CondorException(
 					"Unable to chmod/chown job ID file", ioe);
@@ -676,8 +795,8 @@ public class CondorJob implements Serializable
 		// Generate submit script
 		writeSubmitScript();
 		
-		// Delete the log file if it exists
-		if (log.exists()) {
+		// Delete the log file if it exists. Shared logs are kept.
+		if (!hasSharedLog() && log.exists()) {
 			try {
 				FilesystemUtil.rm(log);
 			} catch(IOException ioe) {
@@ -685,6 +804,17 @@ public class CondorJob implements Serializable
 			}
 		}
 		
+		// The old location refers to the old log
+		File location = new File(jobDirectory,"logfile");
+		if (location.exists() && !location.delete()) {
+			throw new CondorException("Unable to delete existing log location");
+		}
+		
+		// The old checkpoint refers to the old log
+		if (logCheckpoint.exists() && !logCheckpoint.delete()) {
+			throw new CondorException("Unable to delete existing log checkpoint");
+		}
+		
 		// Change the ownership
 		if (owner != null && !System.getProperty("user.name").equals(owner)) {
 			try {
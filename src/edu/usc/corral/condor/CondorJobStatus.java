@@ -0,0 +1,134 @@
+/*
+ *  Copyright 2007-2009 University Of Southern California
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.usc.corral.condor;
+
+import java.util.Date;
+
+/**
+ * The status of a job as reported by condor_q or condor_history.
+ * 
+ * @author Gideon Juve <juve@usc.edu>
+ */
+public class CondorJobStatus
+{
+	/** Values of the JobStatus attribute */
+	public static final int IDLE = 1;
+	public static final int RUNNING = 2;
+	public static final int REMOVED = 3;
+	public static final int COMPLETED = 4;
+	public static final int HELD = 5;
+	public static final int TRANSFERRING_OUTPUT = 6;
+	public static final int SUSPENDED = 7;
+	
+	private String jobId;
+	private int status;
+	private Date time;
+	private String gridStatus;
+	private String holdReason;
+	
+	public CondorJobStatus(String jobId, int status, Date time, 
+			String gridStatus, String holdReason)
+	{
+		this.jobId = jobId;
+		this.status = status;
+		this.time = time;
+		this.gridStatus = gridStatus;
+		this.holdReason = holdReason;
+	}
+	
+	/**
+	 * @return The job ID (cluster.proc)
+	 */
+	public String getJobId()
+	{
+		return jobId;
+	}
+	
+	/**
+	 * @return The JobStatus of the job
+	 */
+	public int getStatus()
+	{
+		return status;
+	}
+	
+	/**
+	 * @return When the job entered its current status
+	 */
+	public Date getTime()
+	{
+		return time;
+	}
+	
+	/**
+	 * @return The status of a grid job at the remote resource (e.g. 
+	 * PENDING), or null if the job is not a grid job
+	 */
+	public String getGridStatus()
+	{
+		return gridStatus;
+	}
+	
+	/**
+	 * @return Why the job was held, or null
+	 */
+	public String getHoldReason()
+	{
+		return holdReason;
+	}
+	
+	/**
+	 * Parse one line of output produced by the -format options in
+	 * Condor.STATUS_FORMAT, e.g.: 
+	 * 
+	 *   12.0|5|1255807200|grid=PENDING|hold=Globus error 17|
+	 * 
+	 * @param line The line to parse
+	 * @return The status
+	 * @throws CondorException If the line is not valid
+	 */
+	public static CondorJobStatus parse(String line) throws CondorException
+	{
+		String[] fields = line.split("[|]");
+		if (fields.length < 3) {
+			throw new CondorException("Invalid job status: "+line);
+		}
+		
+		String gridStatus = null;
+		String holdReason = null;
+		for (int i=3; i<fields.length; i++) {
+			if (fields[i].startsWith("grid=")) {
+				gridStatus = fields[i].substring(5);
+			} else if (fields[i].startsWith("hold=")) {
+				holdReason = fields[i].substring(5);
+			}
+		}
+		
+		try {
+			return new CondorJobStatus(fields[0].trim(), 
+					Integer.parseInt(fields[1].trim()),
+					new Date(Long.parseLong(fields[2].trim())*1000),
+					gridStatus, holdReason);
+		} catch (NumberFormatException nfe) {
+			throw new CondorException("Invalid job status: "+line,nfe);
+		}
+	}
+	
+	public String toString()
+	{
+		return jobId+" "+status+(gridStatus==null?"":" "+gridStatus);
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ *  Copyright 2007-2009 University Of Southern California
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.usc.corral.condor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+
+/**
+ * Records how far a job log has been processed so that the log can be 
+ * resumed after a restart instead of being replayed from the beginning.
+ * The checkpoint is stored as a single line in a small file in the job 
+ * directory: the job id, the offset just after the last processed event,
+ * and the sequence number of that event.
+ * 
+ * @author Gideon Juve <juve@usc.edu>
+ */
+public class CondorLogCheckpoint
+{
+	/** Every event in a job log ends with this line */
+	private static final byte[] EVENT_END = "...\n".getBytes();
+	
+	private File file;
+	private String jobId;
+	private long position;
+	private int sequence;
+	
+	public CondorLogCheckpoint(File file, String jobId, long position, int sequence)
+	{
+		this.file = file;
+		this.jobId = jobId;
+		this.position = position;
+		this.sequence = sequence;
+	}
+	
+	public File getFile()
+	{
+		return file;
+	}
+	
+	/**
+	 * @return The Condor ID of the job whose log was checkpointed
+	 */
+	public String getJobId()
+	{
+		return jobId;
+	}
+	
+	/**
+	 * @return The offset in the log just after the last processed event
+	 */
+	public long getPosition()
+	{
+		return position;
+	}
+	
+	/**
+	 * @return The number of events in the log up to the checkpoint
+	 */
+	public int getSequence()
+	{
+		return sequence;
+	}
+	
+	/**
+	 * Check that this checkpoint can be used to resume the log of a job.
+	 * The checkpoint must be for the same job, and the log must contain
+	 * the end of an event at the checkpoint.
+	 * @param job The job to resume
+	 * @return true if the log can be resumed from this checkpoint
+	 */
+	public boolean isValidFor(CondorJob job)
+	{
+		if (jobId == null || !jobId.equals(job.getJobId()))
+			return false;
+		
+		File log = job.getLog();
+		if (position < EVENT_END.length || log.length() < position)
+			return false;
+		
+		try {
+			RandomAccessFile file = new RandomAccessFile(log, "r");
+			try {
+				byte[] data = new byte[EVENT_END.length];
+				file.seek(position - data.length);
+				file.readFully(data);
+				for (int i=0; i<data.length; i++) {
+					if (data[i] != EVENT_END[i])
+						return false;
+				}
+				return true;
+			} finally {
+				file.close();
+			}
+		} catch (IOException ioe) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Save the checkpoint. The new checkpoint is written to a temporary
+	 * file and renamed so that a crash never leaves a partial checkpoint.
+	 * @throws CondorException If the checkpoint cannot be written
+	 */
+	public void write() throws CondorException
+	{
+		File temp = new File(file.getParentFile(), file.getName()+".tmp");
+		try {
+			Writer writer = new FileWriter(temp);
+			try {
+				writer.write(jobId+" "+position+" "+sequence+"\n");
+			} finally {
+				writer.close();
+			}
+		} catch (IOException ioe) {
+			temp.delete();
+			throw new CondorException(
+					"Unable to write log checkpoint "+file,ioe);
+		}
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new CondorException(
+					"Unable to rename log checkpoint "+temp);
+		}
+	}
+	
+	/**
+	 * Read a checkpoint.
+	 * @param file The checkpoint file
+	 * @return The checkpoint, or null if there is no checkpoint
+	 * @throws CondorException If the checkpoint cannot be read or parsed
+	 */
+	public static CondorLogCheckpoint read(File file) throws CondorException
+	{
+		if (!file.exists())
+			return null;
+		
+		String line;
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(file));
+			try {
+				line = reader.readLine();
+			} finally {
+				reader.close();
+			}
+		} catch (IOException ioe) {
+			throw new CondorException(
+					"Unable to read log checkpoint "+file,ioe);
+		}
+		
+		try {
+			String[] tokens = line.trim().split(" ");
+			return new CondorLogCheckpoint(file, tokens[0], 
+					Long.parseLong(tokens[1]), Integer.parseInt(tokens[2]));
+		} catch (RuntimeException re) {
+			throw new CondorException(
+					"Invalid log checkpoint "+file+": "+line,re);
+		}
+	}
+	
+	public String toString()
+	{
+		return jobId+" at offset "+position+" (event "+sequence+")";
+	}
+}
@@ -0,0 +1,355 @@
+/*
+ *  Copyright 2007-2009 University Of Southern California
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.usc.corral.condor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Calendar;
+
+/**
+ * A streaming parser for standard (non-XML) Condor user logs. Data is read
+ * into a reusable buffer and scanned in place for line and end-of-event
+ * ("...") terminators. Only the event header is decoded. The full text of
+ * the event is only decoded if a listener calls CondorEvent.getDetails().
+ *
+ * The parser remembers incomplete events between reads, so it can be
+ * called repeatedly as the log grows.
+ *
+ * @author Gideon Juve <juve@usc.edu>
+ */
+public class CondorLogParser {
+	/** The initial size of the read buffer */
+	private static final int BUFFER_SIZE = 16384;
+
+	/**
+	 * Receives events from the parser.
+	 */
+	public interface Handler {
+		/**
+		 * Handle a parsed event. The event's details are only valid
+		 * from the buffer until this method returns. After that they
+		 * will be re-read from the log if requested.
+		 * @param event The event
+		 * @param cluster The cluster ID from the event header
+		 * @param proc The proc ID from the event header
+		 * @return true to continue parsing, false to stop
+		 * @throws CondorException If the event should not be accepted
+		 */
+		public boolean handle(CondorEvent event, int cluster, int proc)
+		throws CondorException;
+	}
+
+	/** Buffer containing the unprocessed part of the log */
+	private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+	/** Log offset corresponding to the start of the buffer */
+	private long bufferOffset = 0;
+
+	/** Start of the current event in the buffer */
+	private int eventStart = 0;
+
+	/** Start of the current line in the buffer */
+	private int lineStart = 0;
+
+	/** End of the header line of the current event, or -1 */
+	private int headerEnd = -1;
+
+	/** Position up to which the buffer has been scanned */
+	private int scanned = 0;
+
+	/** Used to convert event times */
+	private Calendar calendar = Calendar.getInstance();
+
+	/** Used to return values from parseInt */
+	private int parsedValue;
+
+	/**
+	 * @return The offset in the log up to which data has been read
+	 */
+	public long getPosition() {
+		return bufferOffset + buffer.position();
+	}
+
+	/**
+	 * Forget all state and start again at the beginning of the log.
+	 */
+	public void reset() {
+		reset(0);
+	}
+
+	/**
+	 * Forget all state and start again at the given offset. The offset
+	 * should be the start of an event.
+	 * @param position The offset to start at
+	 */
+	public void reset(long position) {
+		buffer.clear();
+		bufferOffset = position;
+		eventStart = 0;
+		lineStart = 0;
+		headerEnd = -1;
+		scanned = 0;
+	}
+
+	/**
+	 * Read all available data from the log and deliver the complete
+	 * events found to the handler.
+	 *
+	 * @param log The log file
+	 * @param handler The handler to deliver events to
+	 * @throws CondorException If the log cannot be read or parsed
+	 */
+	public void parse(File log, Handler handler) throws CondorException {
+		try {
+			// It is a bit ugly to constantly reopen
+			// the file, but this is the only way it
+			// will work on Mac OS X
+			RandomAccessFile file = new RandomAccessFile(log, "r");
+			try {
+				parse(file.getChannel(), log, handler);
+			} finally {
+				file.close();
+			}
+		} catch (IOException ioe) {
+			throw new CondorException("Unable to read job log",ioe);
+		}
+	}
+
+	private void parse(FileChannel channel, File log, Handler handler)
+	throws IOException, CondorException {
+		while (true) {
+			// Make room for more data
+			if (!buffer.hasRemaining()) {
+				compact();
+			}
+
+			// Read as much as we can
+			int read = channel.read(buffer, getPosition());
+			if (read <= 0) {
+				return;
+			}
+
+			// Find and deliver events
+			if (!scan(log, handler)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Discard the events that have already been processed. If the current
+	 * event fills the entire buffer, then the buffer is enlarged.
+	 */
+	private void compact() {
+		if (eventStart == 0) {
+			ByteBuffer larger = ByteBuffer.allocate(buffer.capacity()*2);
+			buffer.flip();
+			larger.put(buffer);
+			buffer = larger;
+		} else {
+			int shift = eventStart;
+			buffer.flip();
+			buffer.position(shift);
+			buffer.compact();
+			bufferOffset += shift;
+			eventStart = 0;
+			lineStart -= shift;
+			scanned -= shift;
+			if (headerEnd >= 0) headerEnd -= shift;
+		}
+	}
+
+	/**
+	 * Scan newly read data for complete events
+	 * @return false if the handler asked to stop
+	 */
+	private boolean scan(File log, Handler handler) throws CondorException {
+		byte[] data = buffer.array();
+		int limit = buffer.position();
+		for (int i = scanned; i < limit; i++) {
+			if (data[i] != '\n') {
+				continue;
+			}
+
+			if (headerEnd < 0) {
+				// The first line of an event is the header
+				headerEnd = i;
+			} else if (i - lineStart >= 3 &&
+					data[lineStart] == '.' &&
+					data[lineStart+1] == '.' &&
+					data[lineStart+2] == '.') {
+				// End-of-event marker
+				int eventEnd = i + 1;
+				scanned = eventEnd;
+				lineStart = eventEnd;
+				if (!deliver(data, eventEnd, log, handler)) {
+					eventStart = eventEnd;
+					headerEnd = -1;
+					return false;
+				}
+				eventStart = eventEnd;
+				headerEnd = -1;
+				continue;
+			}
+
+			lineStart = i + 1;
+		}
+		scanned = limit;
+
+		// If everything was consumed, then start over at the beginning
+		// of the buffer to avoid compacting
+		if (eventStart == limit) {
+			bufferOffset += limit;
+			buffer.clear();
+			eventStart = 0;
+			lineStart = 0;
+			scanned = 0;
+		}
+
+		return true;
+	}
+
+	private boolean deliver(byte[] data, int eventEnd, File log, Handler handler)
+	throws CondorException {
+		CondorEvent event = new CondorEvent();
+		event.setTime(parseTime(data, eventStart, headerEnd));
+
+		// Event code
+		int pos = parseInt(data, eventStart, headerEnd);
+		if (pos < 0) {
+			throw headerException(data);
+		}
+		event.setEventCode(CondorEventCode.fromEventCode(parsedValue));
+
+		// Job ID: (cluster.proc.subproc)
+		pos = skip(data, pos, headerEnd, ' ');
+		if (pos >= headerEnd || data[pos] != '(') {
+			throw headerException(data);
+		}
+		pos = parseInt(data, pos+1, headerEnd);
+		if (pos < 0 || data[pos] != '.') {
+			throw headerException(data);
+		}
+		int cluster = parsedValue;
+		pos = parseInt(data, pos+1, headerEnd);
+		if (pos < 0 || data[pos] != '.') {
+			throw headerException(data);
+		}
+		int proc = parsedValue;
+		while (pos < headerEnd && data[pos] != ' ') pos++;
+
+		// Date / time
+		pos = skip(data, pos, headerEnd, ' ');
+		pos = skipToken(data, pos, headerEnd);
+		pos = skip(data, pos, headerEnd, ' ');
+		pos = skipToken(data, pos, headerEnd);
+
+		// Message
+		event.setMessage(new String(data, pos, headerEnd-pos).trim());
+
+		// Event details are decoded lazily
+		event.setDetails(data, eventStart, eventEnd-eventStart);
+		event.setPosition(bufferOffset+eventEnd);
+		try {
+			return handler.handle(event, cluster, proc);
+		} finally {
+			event.detachDetails(log, bufferOffset+eventStart);
+		}
+	}
+
+	/**
+	 * Parse the "MM/dd HH:mm:ss" event time from the header
+	 */
+	private java.util.Date parseTime(byte[] data, int start, int end)
+	throws CondorException {
+		int pos = skipToken(data, start, end);
+		pos = skip(data, pos, end, ' ');
+		pos = skipToken(data, pos, end);
+		pos = skip(data, pos, end, ' ');
+
+		pos = parseField(data, pos, end, '/');
+		int month = parsedValue;
+		pos = parseField(data, pos, end, ' ');
+		int day = parsedValue;
+		pos = parseField(data, pos, end, ':');
+		int hour = parsedValue;
+		pos = parseField(data, pos, end, ':');
+		int minute = parsedValue;
+		pos = parseInt(data, pos, end);
+		if (pos < 0 || (pos < end && data[pos] != ' ')) {
+			pos = -1;
+		}
+		if (pos < 0) {
+			throw new CondorException("Error parsing event time: "+
+					new String(data, start, end-start));
+		}
+		int second = parsedValue;
+
+		// This matches what SimpleDateFormat("MM/dd HH:mm:ss") returned
+		calendar.clear();
+		calendar.set(1970, month-1, day, hour, minute, second);
+		return calendar.getTime();
+	}
+
+	/**
+	 * Parse an integer followed by the separator c.
+	 * @return The position after the separator, or end if there was an error
+	 */
+	private int parseField(byte[] data, int pos, int end, char c) {
+		pos = parseInt(data, pos, end);
+		if (pos < 0 || pos >= end || data[pos] != c) {
+			return end;
+		}
+		return pos + 1;
+	}
+
+	/**
+	 * Parse an unsigned integer starting at pos. The value is stored in
+	 * parsedValue.
+	 * @return The position after the number, or -1 if there was no number
+	 */
+	private int parseInt(byte[] data, int pos, int end) {
+		int value = 0;
+		int start = pos;
+		while (pos < end && data[pos] >= '0' && data[pos] <= '9') {
+			value = value*10 + (data[pos] - '0');
+			pos++;
+		}
+		if (pos == start) {
+			return -1;
+		}
+		parsedValue = value;
+		return pos;
+	}
+
+	private int skip(byte[] data, int pos, int end, char c) {
+		while (pos < end && data[pos] == c) pos++;
+		return pos;
+	}
+
+	private int skipToken(byte[] data, int pos, int end) {
+		while (pos < end && data[pos] != ' ') pos++;
+		return pos;
+	}
+
+	private CondorException headerException(byte[] data) {
+		return new CondorException("Error parsing event header: "+
+				new String(data, eventStart, headerEnd-eventStart));
+	}
+}
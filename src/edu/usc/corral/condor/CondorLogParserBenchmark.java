@@ -0,0 +1,282 @@
+/*
+ *  Copyright 2007-2009 University Of Southern California
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.usc.corral.condor;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedList;
+
+/**
+ * Compares CondorLogParser with the parser that CondorEventGenerator used
+ * before it (a String per line, a LinkedList per event, regex splitting
+ * and SimpleDateFormat). Both parse the same log several times and the
+ * time of each pass is printed side by side.
+ * 
+ * JMH is not available in this build, so this is a plain main() that
+ * warms up each parser before the passes that are reported.
+ * 
+ * Usage: CondorLogParserBenchmark [events | log file] [passes]
+ * 
+ * With a number, a synthetic log with that many events of job 8.0 is 
+ * written (default 200000, about 30 MB). The events cycle through the 
+ * lifecycle of a grid job: submit, grid submit, execute, image size and
+ * terminated. With a file, that log is parsed and the job ID is not 
+ * checked by the old parser.
+ * 
+ * @author Gideon Juve <juve@usc.edu>
+ */
+public class CondorLogParserBenchmark
+{
+	private static final String JOB_ID = "8.0";
+	
+	private static final String[] CYCLE = {
+		"000 (008.000.000) 10/17 12:00:05 Job submitted from host: <128.9.72.178:43684>\n"+
+		"...\n",
+		"027 (008.000.000) 10/17 12:00:18 Job submitted to grid resource\n"+
+		"    GridResource: gt2 grid.example.edu/jobmanager-pbs\n"+
+		"    GridJobId: gt2 grid.example.edu/jobmanager-pbs https://grid.example.edu:40001/1234/1255/\n"+
+		"...\n",
+		"001 (008.000.000) 10/17 12:04:41 Job executing on host: gt2 grid.example.edu/jobmanager-pbs\n"+
+		"...\n",
+		"006 (008.000.000) 10/17 12:09:41 Image size of job updated: 2804\n"+
+		"...\n",
+		"005 (008.000.000) 10/17 13:00:02 Job terminated.\n"+
+		"	(1) Normal termination (return value 0)\n"+
+		"		Usr 0 00:00:00, Sys 0 00:00:00  -  Run Remote Usage\n"+
+		"		Usr 0 00:00:00, Sys 0 00:00:00  -  Run Local Usage\n"+
+		"		Usr 0 00:00:00, Sys 0 00:00:00  -  Total Remote Usage\n"+
+		"		Usr 0 00:00:00, Sys 0 00:00:00  -  Total Local Usage\n"+
+		"	0  -  Run Bytes Sent By Job\n"+
+		"	0  -  Run Bytes Received By Job\n"+
+		"	0  -  Total Bytes Sent By Job\n"+
+		"	0  -  Total Bytes Received By Job\n"+
+		"...\n"
+	};
+	
+	public static void main(String[] args) throws Exception
+	{
+		File log;
+		String jobId;
+		if (args.length > 0 && new File(args[0]).isFile()) {
+			log = new File(args[0]);
+			jobId = null;
+		} else {
+			int events = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+			log = File.createTempFile("condor", ".log");
+			log.deleteOnExit();
+			FileWriter writer = new FileWriter(log);
+			for (int i=0; i<events; i++) {
+				writer.write(CYCLE[i % CYCLE.length]);
+			}
+			writer.close();
+			jobId = JOB_ID;
+		}
+		int passes = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		
+		System.out.println("Log: "+log+" ("+log.length()/1024/1024+" MB)");
+		
+		// Warm up both parsers
+		parseNew(log);
+		parseOld(log, jobId);
+		
+		long totalNew = 0;
+		long totalOld = 0;
+		for (int i=1; i<=passes; i++) {
+			long start = System.nanoTime();
+			int newEvents = parseNew(log);
+			long elapsedNew = (System.nanoTime() - start) / 1000000;
+			
+			start = System.nanoTime();
+			int oldEvents = parseOld(log, jobId);
+			long elapsedOld = (System.nanoTime() - start) / 1000000;
+			
+			if (newEvents != oldEvents) {
+				throw new IllegalStateException("Parsers disagree: "+
+						newEvents+" events vs. "+oldEvents+" events");
+			}
+			
+			System.out.println("Pass "+i+": "+newEvents+" events, "+
+					"CondorLogParser "+elapsedNew+" ms, "+
+					"old parser "+elapsedOld+" ms");
+			totalNew += elapsedNew;
+			totalOld += elapsedOld;
+		}
+		
+		System.out.println("Average: CondorLogParser "+(totalNew/passes)+
+				" ms, old parser "+(totalOld/passes)+" ms");
+	}
+	
+	private static int parseNew(File log) throws CondorException
+	{
+		final int[] count = {0};
+		CondorLogParser parser = new CondorLogParser();
+		parser.parse(log, new CondorLogParser.Handler() {
+			public boolean handle(CondorEvent event, int cluster, int proc)
+			{
+				count[0]++;
+				return true;
+			}
+		});
+		return count[0];
+	}
+	
+	private static int parseOld(File log, String jobId) throws CondorException
+	{
+		OldParser parser = new OldParser(jobId);
+		parser.tailJobLog(log);
+		return parser.count;
+	}
+	
+	/**
+	 * The tailJobLog() and parseEvent() methods of CondorEventGenerator
+	 * before CondorLogParser replaced them, with event delivery replaced
+	 * by a counter.
+	 */
+	private static class OldParser
+	{
+		private String jobId;
+		private SimpleDateFormat eventDateFormat = 
+			new SimpleDateFormat("MM/dd HH:mm:ss");
+		private long filePointer = 0;
+		private StringBuffer buffer = new StringBuffer();
+		private LinkedList<String> currentEvent = new LinkedList<String>();
+		private int count = 0;
+		
+		public OldParser(String jobId)
+		{
+			this.jobId = jobId;
+		}
+		
+		private CondorEvent parseEvent(LinkedList<String> currentEvent)
+		throws CondorException
+		{
+			// Process header
+			String header = currentEvent.poll();
+			String[] fields = header.split(" ",5);
+			if(fields.length != 5)
+				throw new CondorException("Error parsing event header: "+header);
+			
+			// New event
+			CondorEvent event = new CondorEvent();
+			event.setTime(new Date());
+			
+			// Event code
+			try {
+				int intCode = Integer.parseInt(fields[0]);
+				CondorEventCode code = CondorEventCode.fromEventCode(intCode);
+				event.setEventCode(code);
+			} catch(IllegalArgumentException e) {
+				throw new CondorException("Unrecognized event code: "+fields[0],e);
+			}
+			
+			// Job ID
+			try {
+				String id = fields[1].substring(1,fields[1].length()-2);
+				String[] tokens = id.split("[.]");
+				if(tokens.length != 3)
+					throw new CondorException("Error parsing job id: "+fields[1]);
+				String condorId = 
+					Integer.parseInt(tokens[0])+"."+Integer.parseInt(tokens[1]);
+				if(jobId != null && !condorId.equals(jobId)) {
+					throw new CondorException("Condor ID mismatch: got "+
+							condorId + " expected " + jobId);
+				}
+			} catch(CondorException ce) {
+				throw ce; /* No need to wrap these */
+			} catch(Exception e) {
+				throw new CondorException("Error parsing job id: "+fields[1],e);
+			}
+			
+			// Date / time
+			String eventTime = fields[2] + " " + fields[3];
+			try {
+				Date date = eventDateFormat.parse(eventTime);
+				event.setTime(date);
+			} catch(ParseException pe) {
+				throw new CondorException("Error parsing event time: "+eventTime);
+			}
+			
+			// Message
+			event.setMessage(fields[4].trim());
+			
+			// Event details
+			StringBuffer details = new StringBuffer();
+			details.append(header);
+			for (String s : currentEvent) {
+				details.append(s);
+			}
+			event.setDetails(details.toString());
+			
+			return event;
+		}
+		
+		private void tailJobLog(File log) throws CondorException
+		{
+			long fileLength = log.length();
+			
+			if(fileLength > filePointer)
+			{
+				try 
+				{
+					RandomAccessFile file = new RandomAccessFile(log, "r");
+					
+					// Seek to the last place we read from
+					file.seek(filePointer);
+					
+					// Read {length} bytes
+					int length = (int)(fileLength - filePointer);
+					byte[] data = new byte[length];
+					file.read(data);
+					char[] chars = new String(data).toCharArray();
+					for(char c : chars)
+					{
+						buffer.append(c);
+						if(c=='\n')
+						{
+							String line = buffer.toString();
+							
+							// Add the current line to the current event
+							currentEvent.add(line);
+							
+							// Look for the end-of-event marker
+							if(line.startsWith("...")){
+								parseEvent(currentEvent);
+								count++;
+								currentEvent = new LinkedList<String>();
+							}
+							
+							buffer = new StringBuffer();
+						}
+					}
+					
+					// Get the new position
+					filePointer = file.getFilePointer();
+					
+					file.close();
+				}
+				catch(IOException ioe)
+				{
+					throw new CondorException("Unable to read job log",ioe);
+				}
+			}
+		}
+	}
+}
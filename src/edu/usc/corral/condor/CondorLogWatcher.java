@@ -0,0 +1,613 @@
+/*
+ *  Copyright 2007-2009 University Of Southern California
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.usc.corral.condor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import edu.usc.corral.config.Initializable;
+import edu.usc.corral.config.Registry;
+import edu.usc.corral.util.FilesystemUtil;
+import edu.usc.corral.util.ServiceUtil;
+
+/**
+ * This class multiplexes all of the Condor job logs being tailed by the
+ * service onto a small, fixed set of threads. Instead of running one
+ * thread per job, each CondorEventGenerator registers itself here. A
+ * periodic scan stats every registered log and only the logs that have
+ * grown are opened and parsed.
+ *
+ * Each log is stat'ed every pollInterval ms at first. While the log stays
+ * unchanged the interval doubles, up to maxPollInterval, so jobs that sit
+ * in a remote queue for hours cost very little. As soon as the log grows
+ * the interval drops back to pollInterval. Jobs can override both limits
+ * (see CondorJob.setPollInterval), which is how per-site limits are set.
+ *
+ * Optionally, all jobs can write to a shared log instead of one log per
+ * job (see sharedLog). A shared log is read by one parser that hands the
+ * events to the right generator, so the number of files that are stat'ed
+ * and read does not grow with the number of jobs. Condor writes user logs
+ * as the owner of the job, so each job owner gets their own shared logs,
+ * which are created by the service and chowned to the owner. When the 
+ * owner's current shared log reaches sharedLogSize, new jobs are given a
+ * new one. Old shared logs are deleted when none of their jobs are being
+ * watched and they have not changed for a while.
+ *
+ * Alternatively, the logs can be ignored and events generated by
+ * querying the schedd (see eventSource and CondorQueuePoller). 
+ *
+ * @author Gideon Juve <juve@usc.edu>
+ */
+public class CondorLogWatcher implements Initializable {
+	private static final Logger logger = Logger.getLogger(CondorLogWatcher.class);
+
+	/** The longest time (in ms) between scans */
+	private static final int MAX_SCAN_INTERVAL = 1000;
+
+	/** How often (in ms) the poll rate is computed */
+	private static final long RATE_INTERVAL = 60000;
+
+	/** Shared logs that are idle and unused are deleted after this (ms) */
+	private static final long SHARED_LOG_LIFETIME = 3600000; // 1 hour
+
+	/** The number of threads used to scan and read logs */
+	private int numThreads = 2;
+
+	/** The minimum interval (in milliseconds) between polls of a log */
+	private int pollInterval = 10000; // Default: 10 sec
+
+	/** The maximum interval (in milliseconds) between polls of a log */
+	private int maxPollInterval = 60000; // Default: 1 min
+
+	/** 
+	 * Path prefix of the shared logs, or null to give every job its own
+	 * log. The shared logs are named prefix.user.0, prefix.user.1, etc.
+	 * where user is the owner of the jobs that write to them.
+	 */
+	private String sharedLog = null;
+
+	/** The size (in bytes) at which a new shared log is started */
+	private long sharedLogSize = 64*1024*1024; // Default: 64 MB
+
+	/** 
+	 * Where job events come from: "log" to read the job logs, or "queue"
+	 * to poll the schedd with condor_q and condor_history
+	 */
+	private String eventSource = "log";
+
+	/** The interval (in milliseconds) between queries of the schedd */
+	private int queueInterval = 30000; // Default: 30 sec
+
+	/** 
+	 * Selects the service's jobs when polling the schedd. By default this
+	 * selects the jobs submitted by this host.
+	 */
+	private String queueConstraint = null;
+
+	/** Generates events from the schedd when eventSource is "queue" */
+	private CondorQueuePoller queuePoller;
+
+	/** The generators currently being watched */
+	private ConcurrentHashMap<CondorEventGenerator,Boolean> generators;
+
+	/** The shared logs currently being watched */
+	private ConcurrentHashMap<File,CondorSharedLog> sharedLogs;
+
+	/** The number of the shared log new jobs of each owner are assigned to */
+	private Map<String,Integer> currentLogs = new HashMap<String,Integer>();
+
+	/** The number of times a log was stat'ed */
+	private AtomicLong polls = new AtomicLong();
+
+	/** The number of times a log was read */
+	private AtomicLong reads = new AtomicLong();
+
+	/** Log polls per second over the last RATE_INTERVAL */
+	private volatile double pollRate = 0;
+
+	private ScheduledThreadPoolExecutor pool;
+	private boolean initialized = false;
+
+	public CondorLogWatcher() { }
+
+	public synchronized void initialize() throws Exception {
+		if (initialized)
+			return;
+
+		generators = new ConcurrentHashMap<CondorEventGenerator,Boolean>();
+		sharedLogs = new ConcurrentHashMap<File,CondorSharedLog>();
+		
+		// Pick up the shared logs left by the last run. They are read 
+		// from the start so that recovered jobs can catch up.
+		if (isSharedLogEnabled()) {
+			File prefix = new File(sharedLog).getAbsoluteFile();
+			File dir = prefix.getParentFile();
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new Exception("Unable to create shared log directory: "+dir);
+			}
+			String[] names = dir.list();
+			for (String name : names) {
+				if (!name.startsWith(prefix.getName()+".")) 
+					continue;
+				
+				// The name is prefix.user.N, or prefix.N for logs 
+				// written before logs were kept per owner
+				String suffix = name.substring(prefix.getName().length()+1);
+				int dot = suffix.lastIndexOf('.');
+				String user = dot < 0 ? null : suffix.substring(0, dot);
+				try {
+					int number = Integer.parseInt(suffix.substring(dot+1));
+					File log = new File(dir, name);
+					sharedLogs.put(log, newSharedLog(log));
+					if (user != null) {
+						Integer current = currentLogs.get(user);
+						if (current == null || current < number) {
+							currentLogs.put(user, number);
+						}
+					}
+				} catch (NumberFormatException nfe) {
+					// Not one of ours
+				}
+			}
+			logger.info("Using shared job logs "+prefix+".*: found "+
+					sharedLogs.size()+" existing logs");
+		}
+
+		pool = new ScheduledThreadPoolExecutor(numThreads,
+				new LogWatcherThreadFactory());
+		int scanInterval = Math.min(pollInterval, MAX_SCAN_INTERVAL);
+		pool.scheduleWithFixedDelay(new Scanner(),
+				scanInterval, scanInterval, TimeUnit.MILLISECONDS);
+		
+		if ("queue".equals(eventSource)) {
+			if (queueConstraint == null) {
+				queueConstraint = "CorralSiteId =!= UNDEFINED";
+				String host = ServiceUtil.getServiceHost();
+				if (host != null) {
+					queueConstraint += " && CorralServer == \""+host+"\"";
+				}
+			}
+			logger.info("Polling the condor queue for job events every "+
+					queueInterval+" ms");
+			queuePoller = new CondorQueuePoller(queueConstraint);
+			pool.scheduleWithFixedDelay(queuePoller,
+					queueInterval, queueInterval, TimeUnit.MILLISECONDS);
+		} else if (!"log".equals(eventSource)) {
+			throw new Exception("Invalid eventSource: "+eventSource);
+		}
+
+		initialized = true;
+	}
+
+	public boolean isInitialized() {
+		return initialized;
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	public int getPollInterval() {
+		return pollInterval;
+	}
+
+	public void setPollInterval(int pollInterval) {
+		this.pollInterval = pollInterval;
+	}
+
+	public int getMaxPollInterval() {
+		return maxPollInterval;
+	}
+
+	public void setMaxPollInterval(int maxPollInterval) {
+		this.maxPollInterval = maxPollInterval;
+	}
+
+	/**
+	 * @return The number of times a log has been stat'ed
+	 */
+	public long getPollCount() {
+		return polls.get();
+	}
+
+	/**
+	 * @return The number of times a log has been read
+	 */
+	public long getReadCount() {
+		return reads.get();
+	}
+
+	/**
+	 * @return The number of log polls per second, averaged over the
+	 * last minute
+	 */
+	public double getPollRate() {
+		return pollRate;
+	}
+
+	public String getEventSource() {
+		return eventSource;
+	}
+
+	public void setEventSource(String eventSource) {
+		this.eventSource = eventSource;
+	}
+
+	public int getQueueInterval() {
+		return queueInterval;
+	}
+
+	public void setQueueInterval(int queueInterval) {
+		this.queueInterval = queueInterval;
+	}
+
+	public String getQueueConstraint() {
+		return queueConstraint;
+	}
+
+	public void setQueueConstraint(String queueConstraint) {
+		this.queueConstraint = queueConstraint;
+	}
+
+	public String getSharedLog() {
+		return sharedLog;
+	}
+
+	public void setSharedLog(String sharedLog) {
+		this.sharedLog = sharedLog;
+	}
+
+	public long getSharedLogSize() {
+		return sharedLogSize;
+	}
+
+	public void setSharedLogSize(long sharedLogSize) {
+		this.sharedLogSize = sharedLogSize;
+	}
+
+	public boolean isSharedLogEnabled() {
+		return sharedLog != null && sharedLog.trim().length() > 0;
+	}
+
+	/**
+	 * Choose the log that a job will write its events to. This must be
+	 * called before the job's submit script is written.
+	 * @param job The job to assign a log to
+	 * @throws CondorException If the job's shared log cannot be created
+	 */
+	public synchronized void assignLog(CondorJob job) throws CondorException {
+		if (!isSharedLogEnabled()) {
+			job.setLog(new File(job.getJobDirectory(),"log"));
+			return;
+		}
+		
+		String user = job.getOwner();
+		if (user == null) {
+			user = System.getProperty("user.name");
+		}
+		
+		Integer current = currentLogs.get(user);
+		if (current == null) {
+			current = 0;
+			currentLogs.put(user, current);
+		}
+		File log = getSharedLogFile(user, current);
+		if (log.length() >= sharedLogSize) {
+			current++;
+			currentLogs.put(user, current);
+			log = getSharedLogFile(user, current);
+			logger.info("Starting new shared log "+log);
+		}
+		if (!log.exists()) {
+			createSharedLog(log, user);
+		}
+		if (!sharedLogs.containsKey(log)) {
+			sharedLogs.put(log, newSharedLog(log));
+		}
+		job.setLog(log);
+	}
+
+	private File getSharedLogFile(String user, int number) {
+		return new File(sharedLog+"."+user+"."+number).getAbsoluteFile();
+	}
+
+	/**
+	 * Create a shared log that can be written by the user's jobs and 
+	 * read by the service
+	 */
+	private void createSharedLog(File log, String user) throws CondorException {
+		try {
+			log.createNewFile();
+			if (!System.getProperty("user.name").equals(user)) {
+				FilesystemUtil.chmod(log, 644);
+				FilesystemUtil.chown(log, user);
+			}
+		} catch (IOException ioe) {
+			throw new CondorException("Unable to create shared log "+log, ioe);
+		}
+	}
+
+	/**
+	 * @return true if new jobs are still being assigned to the log
+	 */
+	private boolean isCurrentLog(File log) {
+		for (Map.Entry<String,Integer> current : currentLogs.entrySet()) {
+			if (log.equals(getSharedLogFile(current.getKey(), current.getValue()))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private CondorSharedLog newSharedLog(File log) {
+		return new CondorSharedLog(log, 
+				new CondorPollSchedule(pollInterval, maxPollInterval));
+	}
+
+	private CondorPollSchedule newSchedule(CondorJob job) {
+		int min = job.getMinPollInterval() > 0 ? 
+				job.getMinPollInterval() : pollInterval;
+		int max = job.getMaxPollInterval() > 0 ? 
+				job.getMaxPollInterval() : maxPollInterval;
+		return new CondorPollSchedule(min, max);
+	}
+
+	/**
+	 * Start watching the log of the given generator. The log is read
+	 * once immediately and then again whenever a scan finds new data.
+	 * If the job writes to a shared log, then the generator just starts
+	 * receiving the job's events from the shared log. If events come 
+	 * from the schedd, then the job is included in the next query.
+	 * @param generator The generator to add
+	 */
+	public void add(CondorEventGenerator generator) {
+		if (queuePoller != null) {
+			queuePoller.add(generator);
+			return;
+		}
+		
+		CondorJob job = generator.getJob();
+		if (job.hasSharedLog()) {
+			CondorSharedLog shared;
+			synchronized (this) {
+				File log = job.getLog().getAbsoluteFile();
+				shared = sharedLogs.get(log);
+				if (shared == null) {
+					shared = newSharedLog(log);
+					sharedLogs.put(log, shared);
+				}
+				shared.add(generator);
+			}
+			shared.getSchedule().reset();
+			schedule(shared);
+			return;
+		}
+		
+		generator.setSchedule(newSchedule(job));
+		generators.put(generator, Boolean.TRUE);
+		schedule(generator);
+	}
+
+	/**
+	 * Stop watching the log of the given generator.
+	 * @param generator The generator to remove
+	 */
+	public void remove(CondorEventGenerator generator) {
+		if (queuePoller != null) {
+			queuePoller.remove(generator);
+			return;
+		}
+		
+		CondorJob job = generator.getJob();
+		if (job.hasSharedLog()) {
+			CondorSharedLog shared = 
+				sharedLogs.get(job.getLog().getAbsoluteFile());
+			if (shared != null) {
+				shared.remove(generator);
+			}
+			return;
+		}
+		
+		generators.remove(generator);
+	}
+
+	/**
+	 * @return The number of jobs whose logs are currently being watched
+	 */
+	public int size() {
+		if (queuePoller != null) {
+			return queuePoller.size();
+		}
+		int size = generators.size();
+		for (CondorSharedLog shared : sharedLogs.values()) {
+			size += shared.size();
+		}
+		return size;
+	}
+
+	/**
+	 * @return The number of log files currently being watched
+	 */
+	public int getLogCount() {
+		return generators.size() + sharedLogs.size();
+	}
+
+	/**
+	 * Stop the scan and reader threads. Used by standalone tools.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	private void schedule(CondorEventGenerator generator) {
+		// Make sure only one reader is active for each log at a time
+		if (generator.acquire()) {
+			reads.incrementAndGet();
+			pool.execute(new Reader(generator));
+		}
+	}
+
+	private void schedule(CondorSharedLog shared) {
+		if (shared.acquire()) {
+			reads.incrementAndGet();
+			pool.execute(new SharedReader(shared));
+		}
+	}
+
+	/**
+	 * Delete an old shared log if none of its jobs are being watched
+	 * and it has not changed for a while. Jobs are only added to the
+	 * current log, so an old log can only gain jobs from recovery.
+	 */
+	private synchronized void expire(CondorSharedLog shared) {
+		File log = shared.getLog();
+		if (isCurrentLog(log) || 
+				shared.size() > 0 || shared.hasNewData() ||
+				System.currentTimeMillis()-shared.getLastRead() < SHARED_LOG_LIFETIME) {
+			return;
+		}
+		sharedLogs.remove(log);
+		if (log.delete()) {
+			logger.info("Deleted shared log "+log);
+		}
+	}
+
+	private class Scanner implements Runnable {
+		private long lastRate = System.currentTimeMillis();
+		private long lastPolls = 0;
+
+		public void run() {
+			try {
+				long now = System.currentTimeMillis();
+				for (CondorEventGenerator generator : generators.keySet()) {
+					CondorPollSchedule schedule = generator.getSchedule();
+					if (!schedule.isDue(now)) 
+						continue;
+					polls.incrementAndGet();
+					boolean changed = generator.hasNewData();
+					schedule.update(now, changed);
+					if (changed) {
+						schedule(generator);
+					}
+				}
+				for (CondorSharedLog shared : sharedLogs.values()) {
+					CondorPollSchedule schedule = shared.getSchedule();
+					if (!schedule.isDue(now))
+						continue;
+					polls.incrementAndGet();
+					boolean changed = shared.hasNewData();
+					schedule.update(now, changed);
+					if (changed) {
+						schedule(shared);
+					} else {
+						expire(shared);
+					}
+				}
+				updatePollRate(now);
+			} catch (Throwable t) {
+				// Never let the scan die, or all the logs will stop
+				logger.error("Unable to scan condor logs", t);
+			}
+		}
+
+		private void updatePollRate(long now) {
+			long elapsed = now - lastRate;
+			if (elapsed < RATE_INTERVAL)
+				return;
+			long count = polls.get();
+			pollRate = (count - lastPolls) * 1000.0 / elapsed;
+			lastPolls = count;
+			lastRate = now;
+			if (logger.isDebugEnabled()) {
+				logger.debug(String.format(
+						"Polled %.2f logs/sec: %d logs, %d polls, %d reads",
+						pollRate, getLogCount(), count, reads.get()));
+			}
+		}
+	}
+
+	private class Reader implements Runnable {
+		private CondorEventGenerator generator;
+
+		public Reader(CondorEventGenerator generator) {
+			this.generator = generator;
+		}
+
+		public void run() {
+			try {
+				generator.poll();
+			} catch (Throwable t) {
+				logger.error("Unable to read condor log for job "+
+						generator.getJob().getJobId(), t);
+			} finally {
+				generator.release();
+			}
+		}
+	}
+
+	private class SharedReader implements Runnable {
+		private CondorSharedLog shared;
+
+		public SharedReader(CondorSharedLog shared) {
+			this.shared = shared;
+		}
+
+		public void run() {
+			try {
+				shared.poll();
+			} catch (Throwable t) {
+				logger.error("Unable to read shared condor log "+shared, t);
+			} finally {
+				shared.release();
+			}
+		}
+	}
+
+	private static class LogWatcherThreadFactory implements ThreadFactory {
+		private String namePrefix = "CondorLogWatcher-";
+		private AtomicInteger threadNumber = new AtomicInteger(1);
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable,
+					namePrefix+threadNumber.getAndIncrement());
+			thread.setDaemon(false);
+			thread.setPriority(Thread.NORM_PRIORITY);
+			return thread;
+		}
+	}
+
+	public static CondorLogWatcher getInstance() throws CondorException {
+		try {
+			return (CondorLogWatcher)new Registry().lookup("corral/CondorLogWatcher");
+		} catch (Exception e) {
+			throw new CondorException("Unable to load condor log watcher",e);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ *  Copyright 2007-2009 University Of Southern California
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.usc.corral.condor;
+
+/**
+ * Decides when a log should be stat'ed next. The interval starts at the 
+ * minimum and doubles each time the log is found unchanged, up to the 
+ * maximum. As soon as the log changes it drops back to the minimum.
+ *
+ * Only the watcher's scan thread calls isDue() and update(), so the 
+ * schedule is not synchronized. reset() may be called by other threads, 
+ * which at worst causes one extra or one late poll.
+ *
+ * @author Gideon Juve <juve@usc.edu>
+ */
+class CondorPollSchedule {
+	private long minInterval;
+	private long maxInterval;
+	private long interval;
+	private volatile long nextPoll;
+
+	public CondorPollSchedule(long minInterval, long maxInterval) {
+		this.minInterval = minInterval;
+		this.maxInterval = Math.max(minInterval, maxInterval);
+		this.interval = minInterval;
+		this.nextPoll = 0;
+	}
+
+	/**
+	 * @return true if the log should be stat'ed now
+	 */
+	public boolean isDue(long now) {
+		return now >= nextPoll;
+	}
+
+	/**
+	 * Schedule the next poll after the log was stat'ed.
+	 * @param now The current time
+	 * @param changed Whether the log had new data
+	 */
+	public void update(long now, boolean changed) {
+		if (changed) {
+			interval = minInterval;
+		} else {
+			interval = Math.min(interval*2, maxInterval);
+		}
+		nextPoll = now + interval;
+	}
+
+	/**
+	 * Poll on the next scan and go back to the minimum interval.
+	 */
+	public void reset() {
+		interval = minInterval;
+		nextPoll = 0;
+	}
+
+	public long getInterval() {
+		return interval;
+	}
+
+	public String toString() {
+		return interval+" ms ("+minInterval+"-"+maxInterval+")";
+	}
+}
@@ -0,0 +1,275 @@
+/*
+ *  Copyright 2007-2009 University Of Southern California
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.usc.corral.condor;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Generates job events from the schedd instead of from job logs. Each 
+ * time it runs, the poller gets the status of all of the service's jobs
+ * with one condor_q, and the final status of the jobs that have left the 
+ * queue with one condor_history. The status of each job is compared with
+ * the last status that was seen and events are synthesized for the
+ * transitions. Any transitions that were missed between queries are 
+ * filled in so that the listeners always see the events in order:
+ * 
+ *   grid submit -> execute -> terminated
+ * 
+ * Held jobs get a held event and removed jobs get an aborted event.
+ *
+ * @author Gideon Juve <juve@usc.edu>
+ */
+class CondorQueuePoller implements Runnable
+{
+	private static final Logger logger = Logger.getLogger(CondorQueuePoller.class);
+	
+	/** A job that is not found this many times in a row is failed */
+	private static final int MAX_MISSES = 3;
+	
+	/** The maximum number of jobs in one condor_history query */
+	private static final int HISTORY_BATCH = 100;
+	
+	/** Progress of a job, in the order the events are delivered */
+	private static final int NEW = 0;
+	private static final int QUEUED = 1;
+	private static final int RUNNING = 2;
+	private static final int DONE = 3;
+	
+	/** Selects the jobs of this service */
+	private String constraint;
+	
+	/** The jobs being watched, by job ID */
+	private Map<String,Watch> watches = new ConcurrentHashMap<String,Watch>();
+	
+	private class Watch
+	{
+		CondorEventGenerator generator;
+		int progress = NEW;
+		boolean held = false;
+		int misses = 0;
+		
+		Watch(CondorEventGenerator generator)
+		{
+			this.generator = generator;
+		}
+	}
+	
+	public CondorQueuePoller(String constraint)
+	{
+		this.constraint = constraint;
+	}
+	
+	public void add(CondorEventGenerator generator)
+	{
+		watches.put(generator.getJob().getJobId(), new Watch(generator));
+	}
+	
+	public void remove(CondorEventGenerator generator)
+	{
+		String jobId = generator.getJob().getJobId();
+		Watch watch = watches.get(jobId);
+		if (watch != null && watch.generator == generator) {
+			watches.remove(jobId);
+		}
+	}
+	
+	/**
+	 * @return The number of jobs being watched
+	 */
+	public int size()
+	{
+		return watches.size();
+	}
+	
+	public void run()
+	{
+		try {
+			poll();
+		} catch (Throwable t) {
+			// Never let the poller die, or all the jobs will stop
+			logger.error("Unable to poll condor queue", t);
+		}
+	}
+	
+	/**
+	 * Query the queue and history and deliver the events
+	 */
+	void poll() throws CondorException
+	{
+		if (watches.size() == 0)
+			return;
+		
+		Condor condor = Condor.getInstance();
+		
+		// Jobs that are added while the query runs will be seen next time
+		Map<String,Watch> missing = new HashMap<String,Watch>(watches);
+		
+		long start = System.currentTimeMillis();
+		List<CondorJobStatus> queue = condor.queryQueue(constraint);
+		for (CondorJobStatus status : queue) {
+			Watch watch = missing.remove(status.getJobId());
+			if (watch != null) {
+				update(watch, status);
+			}
+		}
+		
+		// Jobs that are not in the queue should be in the history
+		List<String> batch = new LinkedList<String>();
+		int history = 0;
+		for (String jobId : missing.keySet()) {
+			batch.add(jobId);
+			if (batch.size() == HISTORY_BATCH) {
+				history += queryHistory(condor, batch, missing);
+				batch.clear();
+			}
+		}
+		history += queryHistory(condor, batch, missing);
+		
+		// Anything else has disappeared
+		for (Map.Entry<String,Watch> e : missing.entrySet()) {
+			Watch watch = e.getValue();
+			if (++watch.misses >= MAX_MISSES) {
+				watch.generator.fail(new CondorException("Job "+e.getKey()+
+						" was not found in the queue or the history"));
+			}
+		}
+		
+		if (logger.isDebugEnabled()) {
+			logger.debug("Polled "+queue.size()+" queued and "+history+
+					" finished jobs in "+(System.currentTimeMillis()-start)+
+					" ms");
+		}
+	}
+	
+	private int queryHistory(Condor condor, List<String> jobIds, 
+			Map<String,Watch> missing) throws CondorException
+	{
+		if (jobIds.size() == 0)
+			return 0;
+		
+		List<CondorJobStatus> history = condor.queryHistory(jobIds);
+		for (CondorJobStatus status : history) {
+			Watch watch = missing.remove(status.getJobId());
+			if (watch != null) {
+				update(watch, status);
+			}
+		}
+		return history.size();
+	}
+	
+	/**
+	 * Compare the status of a job with what was seen before and deliver
+	 * events for the difference
+	 */
+	private void update(Watch watch, CondorJobStatus status)
+	{
+		watch.misses = 0;
+		
+		int target;
+		switch (status.getStatus()) {
+			case CondorJobStatus.IDLE:
+			case CondorJobStatus.HELD:
+				// Grid jobs are idle until they are queued remotely
+				String grid = status.getGridStatus();
+				if (grid == null || "UNSUBMITTED".equals(grid)) {
+					target = NEW;
+				} else {
+					target = QUEUED;
+				}
+				break;
+			case CondorJobStatus.RUNNING:
+			case CondorJobStatus.TRANSFERRING_OUTPUT:
+			case CondorJobStatus.SUSPENDED:
+				target = RUNNING;
+				break;
+			case CondorJobStatus.COMPLETED:
+				target = DONE;
+				break;
+			case CondorJobStatus.REMOVED:
+				watch.progress = DONE;
+				deliver(watch, status, CondorEventCode.JOB_ABORTED, 
+						"Job was aborted by the user.");
+				remove(watch.generator);
+				return;
+			default:
+				logger.warn("Unknown status for job "+status);
+				return;
+		}
+		
+		// Deliver the events that were missed in order
+		while (watch.progress < target) {
+			watch.progress++;
+			boolean running;
+			switch (watch.progress) {
+				case QUEUED:
+					running = deliver(watch, status, CondorEventCode.GRID_SUBMIT,
+							"Job submitted to grid resource");
+					break;
+				case RUNNING:
+					running = deliver(watch, status, CondorEventCode.EXECUTE,
+							"Job executing");
+					break;
+				default:
+					running = deliver(watch, status, CondorEventCode.JOB_TERMINATED,
+							"Job terminated.");
+					break;
+			}
+			if (!running) {
+				return;
+			}
+		}
+		
+		// Nothing else can happen to a job that has left the queue
+		if (watch.progress == DONE) {
+			remove(watch.generator);
+			return;
+		}
+		
+		// Held jobs get one event each time they are held
+		boolean held = status.getStatus() == CondorJobStatus.HELD;
+		if (held && !watch.held) {
+			CondorEvent event = newEvent(status, 
+					CondorEventCode.JOB_HELD, "Job was held.");
+			if (status.getHoldReason() != null) {
+				event.setDetails(status.getHoldReason());
+			}
+			watch.generator.dispatch(event);
+		}
+		watch.held = held;
+	}
+	
+	private boolean deliver(Watch watch, CondorJobStatus status, 
+			CondorEventCode code, String message)
+	{
+		return watch.generator.dispatch(newEvent(status, code, message));
+	}
+	
+	private CondorEvent newEvent(CondorJobStatus status, 
+			CondorEventCode code, String message)
+	{
+		CondorEvent event = new CondorEvent();
+		event.setEventCode(code);
+		event.setTime(status.getTime());
+		event.setMessage(message);
+		return event;
+	}
+}
@@ -0,0 +1,263 @@
+/*
+ *  Copyright 2007-2009 University Of Southern California
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.usc.corral.condor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A Condor user log that is shared by many jobs. The log is read by one
+ * parser and each event is dispatched to the generator of its job by
+ * cluster and proc ID, so the cost of watching the log does not depend
+ * on the number of jobs that write to it.
+ * 
+ * Generators that were resumed from a checkpoint only get the events
+ * that come after it, whether the events are read as they arrive or
+ * delivered when the generator is added.
+ * 
+ * A job's events may be read before its generator is added (e.g. right
+ * after it is submitted, or while the service is recovering). The offsets
+ * of those events are indexed, and when the generator is added they are
+ * read again and delivered to it.
+ * 
+ * @author Gideon Juve <juve@usc.edu>
+ */
+class CondorSharedLog
+{
+	private static final Logger logger = Logger.getLogger(CondorSharedLog.class);
+	
+	/** The log file */
+	private File log;
+	
+	/** Parses the log and remembers partial events between polls */
+	private CondorLogParser parser = new CondorLogParser();
+	
+	/** The position in the log up to which data has been read */
+	private volatile long filePointer = 0;
+	
+	/** The end of the last event that was read */
+	private long lastEvent = 0;
+	
+	/** When data was last read from the log */
+	private volatile long lastRead = System.currentTimeMillis();
+	
+	/** The generators of the jobs that are being watched */
+	private Map<Long,CondorEventGenerator> generators = 
+		new HashMap<Long,CondorEventGenerator>();
+	
+	/** Offsets of the events read for jobs that are not being watched */
+	private Map<Long,List<Long>> index = new HashMap<Long,List<Long>>();
+	
+	/** Is a reader currently polling the log? */
+	private AtomicBoolean busy = new AtomicBoolean(false);
+	
+	/** When the log should be checked for new data */
+	private CondorPollSchedule schedule;
+	
+	public CondorSharedLog(File log, CondorPollSchedule schedule)
+	{
+		this.log = log;
+		this.schedule = schedule;
+	}
+	
+	public File getLog()
+	{
+		return log;
+	}
+	
+	CondorPollSchedule getSchedule()
+	{
+		return schedule;
+	}
+	
+	/**
+	 * @return The number of jobs being watched
+	 */
+	public synchronized int size()
+	{
+		return generators.size();
+	}
+	
+	/**
+	 * @return The time when data was last read from the log
+	 */
+	public long getLastRead()
+	{
+		return lastRead;
+	}
+	
+	/**
+	 * Start delivering events to a generator. Any events that were 
+	 * already read for its job, and that come after the position the 
+	 * generator was resumed from, are delivered before this returns.
+	 */
+	public synchronized void add(CondorEventGenerator generator)
+	{
+		Long key = generator.getJobKey();
+		generators.put(key, generator);
+		
+		List<Long> offsets = index.remove(key);
+		if (offsets != null) {
+			catchUp(generator, offsets);
+		}
+	}
+	
+	/**
+	 * Stop delivering events to a generator
+	 */
+	public synchronized void remove(CondorEventGenerator generator)
+	{
+		Long key = generator.getJobKey();
+		if (generators.get(key) == generator) {
+			generators.remove(key);
+		}
+	}
+	
+	boolean acquire()
+	{
+		return busy.compareAndSet(false, true);
+	}
+	
+	void release()
+	{
+		busy.set(false);
+	}
+	
+	/**
+	 * Check whether the log has changed since it was last read
+	 */
+	boolean hasNewData()
+	{
+		return log.length() != filePointer;
+	}
+	
+	/**
+	 * Read any new data from the log and dispatch the events. If the 
+	 * log cannot be read or parsed, then all of the jobs that are being
+	 * watched are failed.
+	 */
+	synchronized void poll()
+	{
+		long fileLength = log.length();
+		
+		if (fileLength < filePointer)
+		{
+			// The file was truncated
+			logger.warn("Shared log "+log+" was truncated");
+			parser.reset();
+			filePointer = 0;
+			lastEvent = 0;
+			index.clear();
+		}
+		
+		if (fileLength > filePointer)
+		{
+			try
+			{
+				parser.parse(log, handler);
+			}
+			catch (CondorException ce)
+			{
+				logger.error("Unable to read shared log "+log,ce);
+				
+				// Failing a generator removes it from the map
+				List<CondorEventGenerator> failed = 
+					new ArrayList<CondorEventGenerator>(generators.values());
+				for (CondorEventGenerator generator : failed) {
+					generator.fail(ce);
+				}
+			}
+			finally
+			{
+				filePointer = parser.getPosition();
+				lastRead = System.currentTimeMillis();
+			}
+		}
+	}
+	
+	/**
+	 * Dispatches the events found by the parser
+	 */
+	private CondorLogParser.Handler handler = new CondorLogParser.Handler()
+	{
+		public boolean handle(CondorEvent event, int cluster, int proc)
+		{
+			long start = lastEvent;
+			lastEvent = event.getPosition();
+			
+			Long key = CondorEventGenerator.jobKey(cluster, proc);
+			CondorEventGenerator generator = generators.get(key);
+			if (generator == null) {
+				List<Long> offsets = index.get(key);
+				if (offsets == null) {
+					offsets = new ArrayList<Long>(8);
+					index.put(key, offsets);
+				}
+				offsets.add(start);
+			} else if (event.getPosition() > generator.getFilePointer()) {
+				// Events up to the job's checkpoint were already handled
+				generator.dispatch(event);
+			}
+			
+			// Other jobs still need their events
+			return true;
+		}
+	};
+	
+	/**
+	 * Deliver the indexed events of a job to its generator
+	 */
+	private void catchUp(final CondorEventGenerator generator, List<Long> offsets)
+	{
+		final boolean[] running = { true };
+		CondorLogParser.Handler single = new CondorLogParser.Handler()
+		{
+			public boolean handle(CondorEvent event, int cluster, int proc)
+			{
+				running[0] = generator.dispatch(event);
+				return false;
+			}
+		};
+		
+		CondorLogParser reader = new CondorLogParser();
+		long resume = generator.getFilePointer();
+		try {
+			for (long offset : offsets) {
+				if (offset < resume) {
+					continue;
+				}
+				reader.reset(offset);
+				reader.parse(log, single);
+				if (!running[0]) {
+					break;
+				}
+			}
+		} catch (CondorException ce) {
+			generator.fail(ce);
+		}
+	}
+	
+	public String toString()
+	{
+		return log.getPath();
+	}
+}
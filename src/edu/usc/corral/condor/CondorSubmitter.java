@@ -0,0 +1,372 @@
+/*
+ *  Copyright 2007-2009 University Of Southern California
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.usc.corral.condor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import edu.usc.corral.config.Initializable;
+import edu.usc.corral.config.Registry;
+import edu.usc.corral.util.ProcessRunner;
+
+/**
+ * Submits condor jobs in batches. Jobs are collected for a short window 
+ * and then submitted together using a single condor_submit so that 
+ * submitting many jobs at once (e.g. when a site becomes READY and all
+ * of its waiting glideins are submitted) does not fork one process and 
+ * make one schedd round trip per job.
+ *
+ * Jobs that have not been submitted yet can be cancelled. If the job is
+ * still in the queue it is just dropped. If it is already part of the
+ * batch being submitted, it is removed with condor_rm once the submit
+ * finishes.
+ *
+ * @author Gideon Juve <juve@usc.edu>
+ */
+public class CondorSubmitter implements Initializable {
+	private static final Logger logger = Logger.getLogger(CondorSubmitter.class);
+	
+	/**
+	 * Receives the result of a submission.
+	 */
+	public interface Callback {
+		/**
+		 * The job was submitted and its events are being delivered
+		 * to its listeners.
+		 */
+		public void submitted(CondorJob job);
+		
+		/**
+		 * The job could not be submitted
+		 */
+		public void failed(CondorJob job, CondorException exception);
+	}
+	
+	/** How long to wait for more jobs after the first (ms) */
+	private int batchWindow = 100;
+	
+	/** The maximum number of jobs submitted together */
+	private int maxBatchSize = 100;
+	
+	/**
+	 * The result of cancelling a job
+	 */
+	public enum Cancel {
+		/** The job is not waiting to be submitted */
+		NOT_PENDING,
+		/** The job was dropped before it was submitted */
+		REMOVED,
+		/** The job is being submitted and will be removed afterwards */
+		CANCELLED
+	}
+	
+	private LinkedBlockingQueue<Submission> queue;
+	
+	/** Jobs that are queued or being submitted, by job directory */
+	private Map<File,Submission> pending = new HashMap<File,Submission>();
+	
+	/** Jobs dropped by cancel(String,Object) that were not claimed yet */
+	private Set<File> removed = new HashSet<File>();
+	private boolean initialized = false;
+	
+	public CondorSubmitter() { }
+	
+	public synchronized void initialize() throws Exception {
+		if (initialized)
+			return;
+		
+		queue = new LinkedBlockingQueue<Submission>();
+		
+		Thread thread = new Thread(new SubmitThread(), "CondorSubmitter");
+		thread.setDaemon(true);
+		thread.start();
+		
+		initialized = true;
+	}
+	
+	public boolean isInitialized() {
+		return initialized;
+	}
+	
+	public static CondorSubmitter getInstance() throws CondorException {
+		try {
+			return (CondorSubmitter)new Registry().lookup("corral/CondorSubmitter");
+		} catch (Exception e) {
+			throw new CondorException("Unable to load condor submitter",e);
+		}
+	}
+	
+	public int getBatchWindow() {
+		return batchWindow;
+	}
+	
+	public void setBatchWindow(int batchWindow) {
+		this.batchWindow = batchWindow;
+	}
+	
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+	
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+	
+	/**
+	 * Queue a job for submission. This does not wait for the job to be
+	 * submitted. The callback is notified when it has been.
+	 * 
+	 * @param job The job to submit
+	 * @param callback The callback to notify
+	 */
+	public void submit(CondorJob job, Callback callback) {
+		Submission s = new Submission(job, callback);
+		synchronized (this) {
+			pending.put(s.getKey(), s);
+			removed.remove(s.getKey());
+			queue.add(s);
+		}
+	}
+	
+	/**
+	 * Cancel a job that may not have been submitted yet.
+	 * @param jobDirectory The directory of the job
+	 * @return REMOVED if the job will never be submitted, CANCELLED if it
+	 * is being submitted and will be removed afterwards, or NOT_PENDING 
+	 * if the job is not waiting to be submitted (the caller should remove
+	 * it itself)
+	 */
+	public synchronized Cancel cancel(File jobDirectory) {
+		File key = jobDirectory.getAbsoluteFile();
+		if (removed.remove(key)) {
+			return Cancel.REMOVED;
+		}
+		Submission s = pending.get(key);
+		if (s == null) {
+			return Cancel.NOT_PENDING;
+		}
+		return cancel(s);
+	}
+	
+	/**
+	 * Cancel all of the pending jobs that have the given extended 
+	 * attribute. Jobs dropped from the queue are remembered, so that a
+	 * later cancel(File) for one of them returns REMOVED.
+	 * @param attribute The name of the attribute (e.g. CorralSiteId)
+	 * @param value The value of the attribute
+	 * @return The number of jobs cancelled
+	 */
+	public synchronized int cancel(String attribute, Object value) {
+		int cancelled = 0;
+		for (Submission s : new ArrayList<Submission>(pending.values())) {
+			if (value.equals(s.job.getXAttrs().get(attribute))) {
+				if (cancel(s) == Cancel.REMOVED) {
+					removed.add(s.getKey());
+				}
+				cancelled++;
+			}
+		}
+		return cancelled;
+	}
+	
+	private Cancel cancel(Submission s) {
+		if (queue.remove(s)) {
+			pending.remove(s.getKey());
+			return Cancel.REMOVED;
+		}
+		s.cancelled = true;
+		return Cancel.CANCELLED;
+	}
+	
+	/**
+	 * @return The number of jobs waiting to be submitted
+	 */
+	public int size() {
+		return queue.size();
+	}
+	
+	/**
+	 * Prepare and submit a batch of jobs and notify their callbacks
+	 */
+	private void submit(List<Submission> batch) {
+		Condor condor;
+		try {
+			condor = Condor.getInstance();
+		} catch (CondorException ce) {
+			for (Submission s : batch) {
+				s.failed(ce);
+			}
+			return;
+		}
+		
+		// Jobs that cannot be prepared fail individually
+		List<Submission> prepared = new LinkedList<Submission>();
+		List<CondorJob> jobs = new LinkedList<CondorJob>();
+		for (Submission s : batch) {
+			try {
+				condor.prepareJob(s.job);
+				prepared.add(s);
+				jobs.add(s.job);
+			} catch (CondorException ce) {
+				s.failed(ce);
+			}
+		}
+		
+		// If the submit fails, then all of the jobs fail
+		try {
+			long start = System.currentTimeMillis();
+			condor.submitJobs(jobs);
+			logger.debug("Submitted "+jobs.size()+" jobs in "+
+					(System.currentTimeMillis()-start)+" ms");
+		} catch (CondorException ce) {
+			for (Submission s : prepared) {
+				s.failed(ce);
+			}
+			return;
+		}
+		
+		for (Submission s : prepared) {
+			try {
+				condor.startJob(s.job);
+				s.submitted();
+				if (s.isCancelled()) {
+					remove(s.job);
+				}
+			} catch (CondorException ce) {
+				s.failed(ce);
+			}
+		}
+	}
+	
+	/**
+	 * Remove a job that was cancelled while it was being submitted. The
+	 * job's listeners get the abort event from its log.
+	 */
+	private void remove(final CondorJob job) {
+		logger.info("Removing cancelled job "+job.getJobId());
+		ProcessRunner.getInstance().submit(new Callable<Object>() {
+			public Object call() {
+				try {
+					Condor.getInstance().cancelJob(job);
+				} catch (CondorException ce) {
+					logger.error("Unable to remove cancelled job "+
+							job.getJobId(), ce);
+				}
+				return null;
+			}
+		});
+	}
+	
+	private synchronized void finished(List<Submission> batch) {
+		for (Submission s : batch) {
+			if (pending.get(s.getKey()) == s) {
+				pending.remove(s.getKey());
+			}
+		}
+	}
+	
+	private class SubmitThread implements Runnable {
+		public void run() {
+			List<Submission> batch = new ArrayList<Submission>();
+			while (true) {
+				try {
+					// Wait for a job and then for the rest of the batch
+					batch.add(queue.take());
+					long deadline = System.currentTimeMillis() + batchWindow;
+					while (batch.size() < maxBatchSize) {
+						long wait = deadline - System.currentTimeMillis();
+						Submission s = queue.poll(Math.max(0, wait), 
+								TimeUnit.MILLISECONDS);
+						if (s == null) 
+							break;
+						batch.add(s);
+					}
+					
+					submit(batch);
+				} catch (InterruptedException ie) {
+					logger.warn("CondorSubmitter interrupted");
+				} catch (Throwable t) {
+					logger.error("Unable to submit jobs", t);
+					
+					// Don't leave the jobs waiting for a result forever
+					CondorException ce = 
+						new CondorException("Unable to submit job", t);
+					for (Submission s : batch) {
+						if (!s.isDone()) {
+							s.failed(ce);
+						}
+					}
+				} finally {
+					finished(batch);
+					batch.clear();
+				}
+			}
+		}
+	}
+	
+	private static class Submission {
+		private CondorJob job;
+		private Callback callback;
+		private volatile boolean cancelled = false;
+		private volatile boolean done = false;
+		
+		public Submission(CondorJob job, Callback callback) {
+			this.job = job;
+			this.callback = callback;
+		}
+		
+		public File getKey() {
+			return job.getJobDirectory().getAbsoluteFile();
+		}
+		
+		public boolean isCancelled() {
+			return cancelled;
+		}
+		
+		public boolean isDone() {
+			return done;
+		}
+		
+		public void submitted() {
+			done = true;
+			try {
+				callback.submitted(job);
+			} catch (RuntimeException re) {
+				logger.error("Error notifying callback of submission", re);
+			}
+		}
+		
+		public void failed(CondorException exception) {
+			done = true;
+			try {
+				callback.failed(job, exception);
+			} catch (RuntimeException re) {
+				logger.error("Error notifying callback of failure", re);
+			}
+		}
+	}
+}
@@ -0,0 +1,442 @@
+/*
+ *  Copyright 2007-2009 University Of Southern California
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.usc.corral.condor;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A Condor backend that does not run Condor. Submitted jobs are tracked
+ * in memory and their user logs are written by a timer with the same 
+ * events that a real grid job would produce:
+ * 
+ *   submit -> grid submit -> execute -> terminated
+ * 
+ * Jobs can be held (and then aborted by the service), can fail with 
+ * errors in their status file, and can be removed. This allows the 
+ * service to be load-tested with thousands of glideins on one machine.
+ * 
+ * Latencies are randomized between 50% and 150% of the configured value.
+ * 
+ * @author Gideon Juve <juve@usc.edu>
+ */
+public class SimulatedCondor extends Condor {
+	private static final Logger logger = Logger.getLogger(SimulatedCondor.class);
+	
+	private static final Pattern TERM_PATTERN = 
+		Pattern.compile("\\s*([+]?\\w+)\\s*(==|!=|=\\?=|=!=)\\s*(.*?)\\s*");
+	
+	/** The number of finished jobs that are kept for queryHistory() */
+	private static final int MAX_HISTORY = 10000;
+	
+	/** Time from submit until the job is queued remotely (ms) */
+	private long queueLatency = 1000;
+	
+	/** Time from queued until the job starts running (ms) */
+	private long runLatency = 5000;
+	
+	/** Time the job runs (ms) */
+	private long runTime = 60000;
+	
+	/** Fraction of jobs that are held instead of running */
+	private double holdRate = 0.0;
+	
+	/** Fraction of jobs that finish with errors */
+	private double failureRate = 0.0;
+	
+	/** Number of threads used to write events */
+	private int numThreads = 2;
+	
+	private ScheduledThreadPoolExecutor scheduler;
+	private Map<String,SimulatedJob> jobs = 
+		new ConcurrentHashMap<String,SimulatedJob>();
+	private Map<String,CondorJobStatus> history = 
+		Collections.synchronizedMap(new LinkedHashMap<String,CondorJobStatus>() {
+			private static final long serialVersionUID = 1L;
+			protected boolean removeEldestEntry(Map.Entry<String,CondorJobStatus> e) {
+				return size() > MAX_HISTORY;
+			}
+		});
+	private AtomicInteger nextCluster = new AtomicInteger(1);
+	private Random random = new Random();
+	
+	public SimulatedCondor() {
+		super();
+	}
+	
+	private synchronized ScheduledThreadPoolExecutor getScheduler() {
+		if (scheduler == null) {
+			scheduler = new ScheduledThreadPoolExecutor(numThreads);
+		}
+		return scheduler;
+	}
+	
+	public void submitJobs(List<CondorJob> jobs) throws CondorException {
+		if (jobs.size() == 0)
+			return;
+		
+		// Each batch is a new cluster like it is with condor_submit
+		int cluster = nextCluster.getAndIncrement();
+		int proc = 0;
+		List<SimulatedJob> submitted = new LinkedList<SimulatedJob>();
+		try {
+			for (CondorJob job : jobs) {
+				SimulatedJob sim = new SimulatedJob(job, cluster, proc++);
+				sim.log(CondorEventCode.SUBMIT, 
+						"Job submitted from host: <127.0.0.1:9618>");
+				submitted.add(sim);
+			}
+		} catch (IOException ioe) {
+			throw new CondorException("Unable to submit job",ioe);
+		}
+		
+		for (SimulatedJob sim : submitted) {
+			sim.job.setJobId(sim.jobId);
+			this.jobs.put(sim.jobId, sim);
+			sim.schedule(Stage.QUEUED, queueLatency);
+		}
+	}
+	
+	public void cancelJob(CondorJob job) throws CondorException {
+		List<String> ids = new LinkedList<String>();
+		ids.add(job.getJobId());
+		cancelJobs(ids);
+	}
+	
+	public void cancelJobs(List<String> jobIds) throws CondorException {
+		int missing = 0;
+		for (String id : jobIds) {
+			SimulatedJob sim = jobs.get(id);
+			if (sim == null || !sim.remove()) {
+				missing++;
+			}
+		}
+		if (missing > 0) {
+			throw new CondorException("condor_rm failed: "+
+					"Couldn't find/remove all jobs ("+missing+" missing)");
+		}
+	}
+	
+	public void cancelJobs(String constraint) throws CondorException {
+		int removed = 0;
+		for (SimulatedJob sim : jobs.values()) {
+			if (matches(sim.job, constraint) && sim.remove()) {
+				removed++;
+			}
+		}
+		if (removed == 0) {
+			throw new CondorException("condor_rm failed: "+
+					"Couldn't find/remove all jobs matching constraint ("+
+					constraint+")");
+		}
+	}
+	
+	public List<CondorJobStatus> queryQueue(String constraint) 
+	throws CondorException {
+		List<CondorJobStatus> result = new LinkedList<CondorJobStatus>();
+		for (SimulatedJob sim : jobs.values()) {
+			if (matches(sim.job, constraint)) {
+				CondorJobStatus status = sim.getStatus();
+				if (status.getStatus() != CondorJobStatus.COMPLETED &&
+						status.getStatus() != CondorJobStatus.REMOVED) {
+					result.add(status);
+				}
+			}
+		}
+		return result;
+	}
+	
+	public List<CondorJobStatus> queryHistory(List<String> jobIds) 
+	throws CondorException {
+		List<CondorJobStatus> result = new LinkedList<CondorJobStatus>();
+		for (String jobId : jobIds) {
+			CondorJobStatus status = history.get(jobId);
+			if (status != null) {
+				result.add(status);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Match a job's extended attributes against a constraint. Only
+	 * conjunctions of ==, !=, =?= and =!= are supported.
+	 */
+	private boolean matches(CondorJob job, String constraint) 
+	throws CondorException {
+		for (String term : constraint.split("&&")) {
+			Matcher m = TERM_PATTERN.matcher(term);
+			if (!m.matches()) {
+				throw new CondorException("Unsupported constraint: "+constraint);
+			}
+			String name = m.group(1);
+			if (name.startsWith("+")) name = name.substring(1);
+			String op = m.group(2);
+			String expected = m.group(3);
+			if ("UNDEFINED".equalsIgnoreCase(expected)) {
+				expected = null;
+			} else if (expected.startsWith("\"") && expected.endsWith("\"")) {
+				expected = expected.substring(1, expected.length()-1);
+			}
+			
+			// Attribute names are not case sensitive
+			String actual = null;
+			for (String attr : job.getXAttrs().keySet()) {
+				if (attr.equalsIgnoreCase(name)) {
+					Object value = job.getXAttrs().get(attr);
+					actual = value == null ? null : value.toString();
+				}
+			}
+			
+			boolean match;
+			if ("==".equals(op) || "=?=".equals(op)) {
+				match = actual == null ? expected == null : actual.equals(expected);
+			} else {
+				match = actual == null ? expected != null : !actual.equals(expected);
+			}
+			if (!match) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @return The number of simulated jobs that have not finished
+	 */
+	public int size() {
+		return jobs.size();
+	}
+	
+	public long getQueueLatency() {
+		return queueLatency;
+	}
+
+	public void setQueueLatency(long queueLatency) {
+		this.queueLatency = queueLatency;
+	}
+
+	public long getRunLatency() {
+		return runLatency;
+	}
+
+	public void setRunLatency(long runLatency) {
+		this.runLatency = runLatency;
+	}
+
+	public long getRunTime() {
+		return runTime;
+	}
+
+	public void setRunTime(long runTime) {
+		this.runTime = runTime;
+	}
+
+	public double getHoldRate() {
+		return holdRate;
+	}
+
+	public void setHoldRate(double holdRate) {
+		this.holdRate = holdRate;
+	}
+
+	public double getFailureRate() {
+		return failureRate;
+	}
+
+	public void setFailureRate(double failureRate) {
+		this.failureRate = failureRate;
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	
+	private enum Stage { QUEUED, RUNNING, HELD, TERMINATED }
+	
+	private class SimulatedJob implements Runnable {
+		private CondorJob job;
+		private String jobId;
+		private String header;
+		private Stage next;
+		private ScheduledFuture<?> future;
+		private boolean done = false;
+		private CondorJobStatus status;
+		private SimpleDateFormat format = new SimpleDateFormat("MM/dd HH:mm:ss");
+		
+		public SimulatedJob(CondorJob job, int cluster, int proc) {
+			this.job = job;
+			this.jobId = cluster+"."+proc;
+			this.header = String.format("(%03d.%03d.000)", cluster, proc);
+			setStatus(CondorJobStatus.IDLE, "UNSUBMITTED", null);
+		}
+		
+		public synchronized CondorJobStatus getStatus() {
+			return status;
+		}
+		
+		private void setStatus(int value, String gridStatus, String holdReason) {
+			status = new CondorJobStatus(jobId, value, 
+					new Date(System.currentTimeMillis()/1000*1000), 
+					gridStatus, holdReason);
+		}
+		
+		public synchronized void schedule(Stage stage, long latency) {
+			next = stage;
+			long delay = (long)(latency * (0.5 + random.nextDouble()));
+			future = getScheduler().schedule(this, delay, TimeUnit.MILLISECONDS);
+		}
+		
+		public synchronized void run() {
+			if (done)
+				return;
+			try {
+				switch (next) {
+					case QUEUED:
+						log(CondorEventCode.GRID_SUBMIT, 
+								"Job submitted to grid resource",
+								"    GridResource: "+gridResource());
+						setStatus(CondorJobStatus.IDLE, "PENDING", null);
+						if (random.nextDouble() < holdRate) {
+							schedule(Stage.HELD, runLatency);
+						} else {
+							schedule(Stage.RUNNING, runLatency);
+						}
+						break;
+					case RUNNING:
+						log(CondorEventCode.EXECUTE, 
+								"Job executing on host: "+gridResource());
+						setStatus(CondorJobStatus.RUNNING, "ACTIVE", null);
+						schedule(Stage.TERMINATED, runTime);
+						break;
+					case HELD:
+						log(CondorEventCode.JOB_HELD, "Job was held.",
+								"\tSimulated hold",
+								"\tCode 0 Subcode 0");
+						setStatus(CondorJobStatus.HELD, "PENDING", 
+								"Simulated hold");
+						break;
+					case TERMINATED:
+						boolean failed = random.nextDouble() < failureRate;
+						writeOutputs(failed);
+						log(CondorEventCode.JOB_TERMINATED, "Job terminated.",
+								"\t(1) Normal termination (return value 0)");
+						setStatus(CondorJobStatus.COMPLETED, "DONE", null);
+						finish();
+						break;
+				}
+			} catch (IOException ioe) {
+				logger.error("Unable to write simulated event for job "+jobId, ioe);
+				finish();
+			}
+		}
+		
+		private String gridResource() {
+			if (job.getGridType() == null)
+				return job.getGridContact();
+			return job.getGridType().getTypeString()+" "+job.getGridContact();
+		}
+		
+		/**
+		 * Remove the job. The job is aborted unless it already finished.
+		 * @return false if the job had already finished
+		 */
+		public synchronized boolean remove() {
+			if (done)
+				return false;
+			if (future != null) {
+				future.cancel(false);
+			}
+			try {
+				log(CondorEventCode.JOB_ABORTED, "Job was aborted by the user.",
+						"\tvia condor_rm (by user corral)");
+				setStatus(CondorJobStatus.REMOVED, null, null);
+			} catch (IOException ioe) {
+				logger.error("Unable to write simulated event for job "+jobId, ioe);
+			}
+			finish();
+			return true;
+		}
+		
+		private void finish() {
+			done = true;
+			jobs.remove(jobId);
+			history.put(jobId, status);
+		}
+		
+		private void writeOutputs(boolean failed) throws IOException {
+			write(job.getOutput(), "");
+			write(job.getError(), failed ? "Simulated glidein failure\n" : "");
+			write(new File(job.getJobDirectory(),"status"), 
+					failed ? "Simulated glidein failure\n" : "");
+		}
+		
+		private void write(File file, String text) throws IOException {
+			Writer writer = new FileWriter(file);
+			try {
+				writer.write(text);
+			} finally {
+				writer.close();
+			}
+		}
+		
+		public synchronized void log(CondorEventCode code, String message, 
+				String... details) throws IOException {
+			StringBuilder buf = new StringBuilder();
+			buf.append(String.format("%03d", code.getEventCode()));
+			buf.append(" ").append(header).append(" ");
+			buf.append(format.format(new Date())).append(" ");
+			buf.append(message).append("\n");
+			for (String detail : details) {
+				buf.append(detail).append("\n");
+			}
+			buf.append("...\n");
+			
+			// Jobs may share a log
+			synchronized (SimulatedCondor.this) {
+				Writer writer = new FileWriter(job.getLog(), true);
+				try {
+					writer.write(buf.toString());
+				} finally {
+					writer.close();
+				}
+			}
+		}
+	}
+}
@@ -21,6 +21,9 @@ public class ClientConfiguration extends GlobusConfiguration {
 	private Integer delegation = null;
 	private int lifetime = 0;
 	
+	/** Share connections with other clients in the same JVM */
+	private boolean sessionReuse = true;
+	
 	public ClientConfiguration() {
 	}
 	
@@ -48,6 +51,26 @@ public class ClientConfiguration extends GlobusConfiguration {
 	public void setLifetime(int lifetime) {
 		this.lifetime = lifetime;
 	}
+	public boolean isSessionReuse() {
+		return sessionReuse;
+	}
+	public void setSessionReuse(boolean sessionReuse) {
+		this.sessionReuse = sessionReuse;
+	}
+	
+	public ClientConfiguration copy() {
+		ClientConfiguration config = new ClientConfiguration();
+		config.setAuthorization(getAuthorization());
+		config.setWrapMode(getWrapMode());
+		config.setGssMode(getGssMode());
+		config.setRequestEncryption(isRequestEncryption());
+		config.setRequestAnonymous(isRequestAnonymous());
+		config.setRejectLimitedProxy(isRejectLimitedProxy());
+		config.setDelegation(getDelegation());
+		config.setLifetime(getLifetime());
+		config.setSessionReuse(isSessionReuse());
+		return config;
+	}
 	
 	public static ClientConfiguration getDefault() {
 		ClientConfiguration config = new ClientConfiguration();
@@ -0,0 +1,168 @@
+/*
+ *  Copyright 2007-2009 University Of Southern California
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.usc.corral.config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.globus.security.gridmap.GridMap;
+
+/**
+ * Maps DNs to local usernames using a grid-mapfile. 
+ * 
+ * The file is checked for changes every interval ms by a background 
+ * thread, and is only loaded again if its modification time changed. 
+ * Lookups do not touch the file. The username for each DN is cached 
+ * until the file is loaded again.
+ */
+public class GridMapCache {
+	private static final Logger logger = Logger.getLogger(GridMapCache.class);
+	
+	/** Cached for DNs that are not in the grid-mapfile */
+	private static final String UNMAPPED = "";
+	
+	/** Maximum number of DNs cached */
+	private static final int MAX_CACHED = 10000;
+	
+	private File file;
+	private long interval;
+	private Timer watcher;
+	
+	/** The grid-mapfile and the usernames looked up in it */
+	private volatile Snapshot snapshot;
+	
+	/* Metrics */
+	private AtomicLong lookups = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong reloads = new AtomicLong();
+	
+	public GridMapCache(String file, long interval) {
+		this.file = new File(file);
+		this.interval = interval;
+	}
+	
+	/**
+	 * Load the grid-mapfile and start checking it for changes.
+	 */
+	public synchronized void start() throws IOException {
+		load();
+		if (watcher == null && interval > 0) {
+			watcher = new Timer("GridMapWatcher", true);
+			watcher.schedule(new Watcher(), interval, interval);
+		}
+	}
+	
+	public synchronized void stop() {
+		if (watcher != null) {
+			watcher.cancel();
+			watcher = null;
+		}
+	}
+	
+	private void load() throws IOException {
+		long modified = file.lastModified();
+		GridMap gridMap = new GridMap();
+		gridMap.load(file);
+		snapshot = new Snapshot(gridMap, modified);
+		reloads.incrementAndGet();
+	}
+	
+	/**
+	 * Load the grid-mapfile again if it changed.
+	 * @return true if it was loaded
+	 */
+	public synchronized boolean refresh() throws IOException {
+		if (file.lastModified() == snapshot.modified) {
+			return false;
+		}
+		load();
+		logger.info("Reloaded grid-mapfile "+file.getPath());
+		return true;
+	}
+	
+	/**
+	 * @param dn The DN to map
+	 * @return The local username for the DN, or null if it is not mapped
+	 */
+	public String getUserID(String dn) {
+		lookups.incrementAndGet();
+		Snapshot s = snapshot;
+		String username = s.usernames.get(dn);
+		if (username == null) {
+			misses.incrementAndGet();
+			username = s.gridMap.getUserID(dn);
+			if (username == null) {
+				username = UNMAPPED;
+			}
+			if (s.usernames.size() < MAX_CACHED) {
+				s.usernames.put(dn, username);
+			}
+		}
+		return username == UNMAPPED ? null : username;
+	}
+	
+	public String getFileName() {
+		return file.getPath();
+	}
+	
+	/** @return The number of lookups */
+	public long getLookups() {
+		return lookups.get();
+	}
+	
+	/** @return The number of lookups that had to search the grid-mapfile */
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	/** @return The number of times the grid-mapfile was loaded */
+	public long getReloads() {
+		return reloads.get();
+	}
+	
+	public String toString() {
+		return "lookups="+getLookups()+" misses="+getMisses()+
+			" reloads="+getReloads();
+	}
+	
+	private static class Snapshot {
+		private GridMap gridMap;
+		private long modified;
+		private ConcurrentHashMap<String,String> usernames;
+		
+		public Snapshot(GridMap gridMap, long modified) {
+			this.gridMap = gridMap;
+			this.modified = modified;
+			this.usernames = new ConcurrentHashMap<String,String>();
+		}
+	}
+	
+	private class Watcher extends TimerTask {
+		public void run() {
+			try {
+				refresh();
+			} catch (Throwable t) {
+				// Keep using the old one
+				logger.warn("Unable to reload grid-mapfile "+file.getPath(), t);
+			}
+		}
+	}
+}
@@ -17,19 +17,21 @@ package edu.usc.corral.config;
 
 import java.io.IOException;
 
-import org.globus.security.gridmap.GridMap;
-
 public class ServerConfiguration extends GlobusConfiguration implements Initializable {
 	private String host = null;
 	private int port = 9443;
 	private int backlog = 5;
-	private GridMap gridMap;
+	private GridMapCache gridMap;
 	private String gridMapfile = "/etc/grid-security/grid-mapfile";
+	private long gridMapInterval = 5000; // 5 secs
 	private String certificate = "/etc/grid-security/hostcert.pem";
 	private String key = "/etc/grid-security/hostkey.pem";
 	private String proxy = null;
 	private boolean anonymousAllowed = false;
 	private String cacertdir = "/etc/grid-security/certificates";
+	private int maxThreads = 100;
+	private int maxIdleTime = 60000; // 1 min
+	private int handshakeTimeout = 30000; // 30 secs
 	private boolean initialized = false;
 	
 	public String getProxy() {
@@ -68,12 +70,18 @@ public class ServerConfiguration extends GlobusConfiguration implements Initiali
 	public String getGridMapfile() {
 		return gridMapfile;
 	}
-	public GridMap getGridMap() {
+	public GridMapCache getGridMap() {
 		return this.gridMap;
 	}
-	public void setGridMap(GridMap gridMap) {
+	public void setGridMap(GridMapCache gridMap) {
 		this.gridMap = gridMap;
 	}
+	public long getGridMapInterval() {
+		return gridMapInterval;
+	}
+	public void setGridMapInterval(long gridMapInterval) {
+		this.gridMapInterval = gridMapInterval;
+	}
 	public void setHost(String host) {
 		this.host = host;
 	}
@@ -92,14 +100,32 @@ public class ServerConfiguration extends GlobusConfiguration implements Initiali
 	public void setPort(int port) {
 		this.port = port;
 	}
+	public int getMaxThreads() {
+		return maxThreads;
+	}
+	public void setMaxThreads(int maxThreads) {
+		this.maxThreads = maxThreads;
+	}
+	public int getMaxIdleTime() {
+		return maxIdleTime;
+	}
+	public void setMaxIdleTime(int maxIdleTime) {
+		this.maxIdleTime = maxIdleTime;
+	}
+	public int getHandshakeTimeout() {
+		return handshakeTimeout;
+	}
+	public void setHandshakeTimeout(int handshakeTimeout) {
+		this.handshakeTimeout = handshakeTimeout;
+	}
 	
 	
 	public void initialize() throws Exception {
 		try {
 			if (initialized)
 				return;
-			gridMap = new GridMap();
-			gridMap.load(getGridMapfile());
+			gridMap = new GridMapCache(getGridMapfile(), getGridMapInterval());
+			gridMap.start();
 			initialized = true;
 		} catch (IOException e) {
 			throw new ConfigurationException("Unable to load gridmap file", e);
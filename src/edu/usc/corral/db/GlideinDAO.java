@@ -20,14 +20,16 @@ import java.util.List;
 
 import edu.usc.corral.types.Glidein;
 import edu.usc.corral.types.GlideinState;
+import edu.usc.corral.types.ListRequest;
 
 public interface GlideinDAO {
 	public int create(Glidein glidein) throws DatabaseException;
 	public Glidein load(int glideinId) throws DatabaseException;
 	public void delete(int glideinId) throws DatabaseException;
 	public void updateState(int glideinId, GlideinState state, String shortMessage, String longMessage, Date time)  throws DatabaseException;
-	public List<Glidein> list(boolean longFormat, String user, boolean allUsers) throws DatabaseException;
+	public List<Glidein> list(ListRequest request) throws DatabaseException;
 	public int[] listIds() throws DatabaseException;
 	public int[] listTerminated() throws DatabaseException;
 	public void incrementSubmits(int glideinId) throws DatabaseException;
+	public void updateStates(List<StateUpdate<GlideinState>> updates) throws DatabaseException;
 }
@@ -16,9 +16,14 @@
 package edu.usc.corral.db;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.Statement;
 import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 
@@ -113,4 +118,39 @@ public class JDBCUtil
 			}
 		}
 	}
+	
+	/**
+	 * Append " AND column IN (?,?,...)" with one placeholder per value
+	 */
+	public static void appendIn(StringBuffer sql, String column, int values)
+	{
+		sql.append(" AND ").append(column).append(" IN (");
+		for (int i=0; i<values; i++) {
+			if (i>0) sql.append(",");
+			sql.append("?");
+		}
+		sql.append(")");
+	}
+	
+	public static void setParameters(PreparedStatement stmt, List<?> params) 
+	throws SQLException
+	{
+		int i = 1;
+		for (Object param : params) {
+			stmt.setObject(i++, param);
+		}
+	}
+	
+	/**
+	 * @return The lower case labels of the columns in the result set
+	 */
+	public static Set<String> getColumnNames(ResultSet rs) throws SQLException
+	{
+		Set<String> names = new HashSet<String>();
+		ResultSetMetaData md = rs.getMetaData();
+		for (int i=1; i<=md.getColumnCount(); i++) {
+			names.add(md.getColumnLabel(i).toLowerCase());
+		}
+		return names;
+	}
 }
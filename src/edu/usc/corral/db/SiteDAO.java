@@ -18,6 +18,7 @@ package edu.usc.corral.db;
 import java.util.Date;
 import java.util.List;
 
+import edu.usc.corral.types.ListRequest;
 import edu.usc.corral.types.Site;
 import edu.usc.corral.types.SiteState;
 
@@ -26,7 +27,8 @@ public interface SiteDAO {
 	public Site load(int siteId) throws DatabaseException;
 	public void delete(int siteId) throws DatabaseException;
 	public void updateState(int siteId, SiteState state, String shortMessage, String longMessage, Date time) throws DatabaseException;
-	public List<Site> list(boolean longFormat, String user, boolean allUsers) throws DatabaseException;
+	public void updateStates(List<StateUpdate<SiteState>> updates) throws DatabaseException;
+	public List<Site> list(ListRequest request) throws DatabaseException;
 	public int[] listIds() throws DatabaseException;
 	public boolean hasGlideins(int siteId) throws DatabaseException;
 	public int[] getGlideinIds(int siteId) throws DatabaseException;
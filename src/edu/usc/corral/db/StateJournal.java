@@ -0,0 +1,508 @@
+/*
+ *  Copyright 2007-2009 University Of Southern California
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.usc.corral.db;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import edu.usc.corral.condor.CondorException;
+import edu.usc.corral.condor.CondorLogCheckpoint;
+import edu.usc.corral.config.ConfigurationException;
+import edu.usc.corral.config.Initializable;
+import edu.usc.corral.config.Registry;
+import edu.usc.corral.types.GlideinState;
+import edu.usc.corral.types.SiteState;
+
+/**
+ * A write-behind journal for glidein and site state changes. Updates are
+ * queued in memory, merged per resource, and written by a background 
+ * thread in one transaction every flushInterval milliseconds, or as soon
+ * as batchSize resources have pending updates. This turns a burst of 
+ * state changes into a handful of commits.
+ * 
+ * Callers that need the change to be durable can call await() on the 
+ * StateUpdate that is returned.
+ * 
+ * If a batch cannot be written, its updates are written one at a time so
+ * that a bad row only fails its own update. Updates that still fail are
+ * merged back into the journal and retried, backing off between attempts,
+ * up to maxRetries times.
+ * 
+ * Glidein job log checkpoints are queued here too, and are only saved
+ * after the state changes caused by the checkpointed events have been 
+ * committed. That way a crash can never leave the checkpoint ahead of
+ * the state in the database.
+ */
+public class StateJournal implements Initializable {
+	private static final Logger logger = Logger.getLogger(StateJournal.class);
+	
+	/** How long to collect updates before writing them (ms) */
+	private long flushInterval = 50;
+	
+	/** The maximum number of resources to update in one transaction */
+	private int batchSize = 500;
+	
+	/** How many times to retry an update before giving up */
+	private int maxRetries = 10;
+	
+	/** How long callers wait for an update to be written (ms) */
+	private long syncTimeout = 10000;
+	
+	/** The longest time to wait before retrying failed updates (ms) */
+	private static final long MAX_BACKOFF = 60000;
+	
+	/** How long to wait for pending updates to be written on exit (ms) */
+	private static final long CLOSE_TIMEOUT = 30000;
+	
+	private LinkedHashMap<Integer,StateUpdate<GlideinState>> glideins = 
+		new LinkedHashMap<Integer,StateUpdate<GlideinState>>();
+	private LinkedHashMap<Integer,StateUpdate<SiteState>> sites = 
+		new LinkedHashMap<Integer,StateUpdate<SiteState>>();
+	
+	private Thread writer;
+	private boolean closed = false;
+	private boolean initialized = false;
+	
+	public StateJournal() { }
+	
+	public synchronized void initialize() throws Exception {
+		if (initialized)
+			return;
+		
+		writer = new Thread(new Writer(), "StateJournalWriter");
+		writer.start();
+		
+		// Write out anything that is pending when the server exits
+		Runtime.getRuntime().addShutdownHook(new Thread("StateJournalShutdown") {
+			public void run() {
+				close();
+			}
+		});
+		
+		initialized = true;
+	}
+	
+	public boolean isInitialized() {
+		return initialized;
+	}
+	
+	public long getFlushInterval() {
+		return flushInterval;
+	}
+	
+	public void setFlushInterval(long flushInterval) {
+		this.flushInterval = flushInterval;
+	}
+	
+	public int getBatchSize() {
+		return batchSize;
+	}
+	
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+	
+	public long getSyncTimeout() {
+		return syncTimeout;
+	}
+	
+	public void setSyncTimeout(long syncTimeout) {
+		this.syncTimeout = syncTimeout;
+	}
+	
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+	
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+	
+	/**
+	 * Queue a glidein state change.
+	 * @return The pending update, which may be shared with other changes
+	 * to the same glidein
+	 */
+	public synchronized StateUpdate<GlideinState> updateGlideinState(int glideinId, 
+			GlideinState state, String shortMessage, String longMessage, Date time) {
+		StateUpdate<GlideinState> update = getGlideinUpdate(glideinId);
+		update.setState(state, shortMessage, longMessage, time);
+		return update;
+	}
+	
+	/**
+	 * Queue an increment of a glidein's submit count.
+	 * @return The pending update
+	 */
+	public synchronized StateUpdate<GlideinState> incrementSubmits(int glideinId) {
+		StateUpdate<GlideinState> update = getGlideinUpdate(glideinId);
+		update.incrementSubmits();
+		return update;
+	}
+	
+	/**
+	 * Queue a checkpoint of a glidein's job log. The checkpoint is saved
+	 * after any state changes queued before it have been written.
+	 * @return The pending update
+	 */
+	public synchronized StateUpdate<GlideinState> checkpointGlidein(int glideinId,
+			CondorLogCheckpoint checkpoint) {
+		StateUpdate<GlideinState> update = getGlideinUpdate(glideinId);
+		update.setCheckpoint(checkpoint);
+		return update;
+	}
+	
+	/**
+	 * Queue a site state change.
+	 * @return The pending update
+	 */
+	public synchronized StateUpdate<SiteState> updateSiteState(int siteId, 
+			SiteState state, String shortMessage, String longMessage, Date time) {
+		StateUpdate<SiteState> update = sites.get(siteId);
+		if (update == null) {
+			update = new StateUpdate<SiteState>(siteId);
+			sites.put(siteId, update);
+			notifyAll();
+		}
+		update.setState(state, shortMessage, longMessage, time);
+		return update;
+	}
+	
+	private StateUpdate<GlideinState> getGlideinUpdate(int glideinId) {
+		StateUpdate<GlideinState> update = glideins.get(glideinId);
+		if (update == null) {
+			update = new StateUpdate<GlideinState>(glideinId);
+			glideins.put(glideinId, update);
+			notifyAll();
+		}
+		return update;
+	}
+	
+	/**
+	 * Drop any pending updates for a glidein. Called when the glidein 
+	 * is deleted from the database.
+	 */
+	public synchronized void cancelGlidein(int glideinId) {
+		StateUpdate<GlideinState> update = glideins.remove(glideinId);
+		if (update != null) {
+			update.complete(null);
+		}
+	}
+	
+	/**
+	 * Drop any pending updates for a site. Called when the site is 
+	 * deleted from the database.
+	 */
+	public synchronized void cancelSite(int siteId) {
+		StateUpdate<SiteState> update = sites.remove(siteId);
+		if (update != null) {
+			update.complete(null);
+		}
+	}
+	
+	/**
+	 * @return The number of resources with pending updates
+	 */
+	public synchronized int size() {
+		return glideins.size() + sites.size();
+	}
+	
+	/**
+	 * Wait for an update to be written, but no longer than syncTimeout. 
+	 * If it takes longer, then the update stays in the journal and is 
+	 * written (or retried) later.
+	 * @return true if the update was written, false if it timed out
+	 * @throws DatabaseException If the update could not be written
+	 */
+	public boolean await(StateUpdate<?> update) throws DatabaseException {
+		return update.await(syncTimeout);
+	}
+	
+	/**
+	 * Write the pending updates and stop the writer. Updates that cannot
+	 * be written within CLOSE_TIMEOUT are lost.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed || writer == null)
+				return;
+			closed = true;
+			notifyAll();
+		}
+		try {
+			writer.join(CLOSE_TIMEOUT);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		int pending = size();
+		if (pending > 0) {
+			logger.error("Exiting with "+pending+" unwritten state updates");
+		}
+	}
+	
+	private class Writer implements Runnable {
+		public void run() {
+			long backoff = 0;
+			while (true) {
+				List<StateUpdate<GlideinState>> glideinBatch = 
+					new LinkedList<StateUpdate<GlideinState>>();
+				List<StateUpdate<SiteState>> siteBatch = 
+					new LinkedList<StateUpdate<SiteState>>();
+				
+				try {
+					if (!takeBatch(glideinBatch, siteBatch)) {
+						logger.info("State journal closed");
+						return;
+					}
+				} catch (InterruptedException ie) {
+					logger.warn("State journal writer interrupted");
+					return;
+				}
+				
+				boolean ok = write(glideinBatch, siteBatch);
+				
+				// Give the database a chance to recover, unless we 
+				// are exiting
+				if (ok) {
+					backoff = 0;
+				} else if (isClosed()) {
+					return;
+				} else {
+					backoff = Math.min(MAX_BACKOFF, 
+							Math.max(1000, backoff*2));
+					try {
+						pause(backoff);
+					} catch (InterruptedException ie) {
+						logger.warn("State journal writer interrupted");
+						return;
+					}
+				}
+			}
+		}
+	}
+	
+	private synchronized boolean isClosed() {
+		return closed;
+	}
+	
+	/**
+	 * Wait before retrying, unless the journal is closed
+	 */
+	private synchronized void pause(long millis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + millis;
+		long remaining = millis;
+		while (!closed && remaining > 0) {
+			wait(remaining);
+			remaining = deadline - System.currentTimeMillis();
+		}
+	}
+	
+	/**
+	 * Wait for updates, give more updates a chance to arrive, then 
+	 * remove up to batchSize updates from the journal. When the journal
+	 * is closed the pending updates are taken right away.
+	 * @return false if the journal is closed and there is nothing to write
+	 */
+	private synchronized boolean takeBatch(List<StateUpdate<GlideinState>> glideinBatch, 
+			List<StateUpdate<SiteState>> siteBatch) throws InterruptedException {
+		while (size() == 0) {
+			if (closed) {
+				return false;
+			}
+			wait();
+		}
+		
+		long deadline = System.currentTimeMillis() + flushInterval;
+		long remaining = flushInterval;
+		while (!closed && size() < batchSize && remaining > 0) {
+			wait(remaining);
+			remaining = deadline - System.currentTimeMillis();
+		}
+		
+		int count = 0;
+		for (Iterator<StateUpdate<SiteState>> i = sites.values().iterator(); 
+				i.hasNext() && count < batchSize; count++) {
+			siteBatch.add(i.next());
+			i.remove();
+		}
+		for (Iterator<StateUpdate<GlideinState>> i = glideins.values().iterator(); 
+				i.hasNext() && count < batchSize; count++) {
+			glideinBatch.add(i.next());
+			i.remove();
+		}
+		return true;
+	}
+	
+	/**
+	 * Writes a list of updates in one transaction
+	 */
+	private interface Store<T> {
+		public void write(List<StateUpdate<T>> updates) throws DatabaseException;
+	}
+	
+	/**
+	 * Write the batch and complete the updates that were written.
+	 * @return false if some of the updates failed and were requeued
+	 */
+	private boolean write(List<StateUpdate<GlideinState>> glideinBatch, 
+			List<StateUpdate<SiteState>> siteBatch) {
+		final Database db;
+		try {
+			db = Database.getDatabase();
+		} catch (DatabaseException dbe) {
+			logger.error("Unable to write state updates",dbe);
+			requeue(siteBatch, sites, dbe);
+			requeue(glideinBatch, glideins, dbe);
+			return false;
+		}
+		
+		List<StateUpdate<SiteState>> failedSites = write(siteBatch, sites, 
+			new Store<SiteState>() {
+				public void write(List<StateUpdate<SiteState>> updates) 
+				throws DatabaseException {
+					db.getSiteDAO().updateStates(updates);
+				}
+			});
+		List<StateUpdate<GlideinState>> failedGlideins = write(glideinBatch, glideins, 
+			new Store<GlideinState>() {
+				public void write(List<StateUpdate<GlideinState>> updates) 
+				throws DatabaseException {
+					db.getGlideinDAO().updateStates(updates);
+				}
+			});
+		
+		return failedSites.size() == 0 && failedGlideins.size() == 0;
+	}
+	
+	/**
+	 * Write a batch of updates. If that fails, then write them one at 
+	 * a time. Failed updates are requeued.
+	 * @return The updates that failed
+	 */
+	private <T> List<StateUpdate<T>> write(List<StateUpdate<T>> batch, 
+			Map<Integer,StateUpdate<T>> journal, Store<T> store) {
+		List<StateUpdate<T>> failed = new LinkedList<StateUpdate<T>>();
+		if (batch.size() == 0) {
+			return failed;
+		}
+		
+		DatabaseException error = write(batch, store, batch.size() > 1);
+		if (error == null) {
+			for (StateUpdate<T> update : batch) {
+				saveCheckpoint(update);
+				update.complete(null);
+			}
+			return failed;
+		}
+		
+		if (batch.size() == 1) {
+			failed.add(batch.get(0));
+		} else {
+			logger.info("Writing "+batch.size()+" state updates one at a time");
+			for (StateUpdate<T> update : batch) {
+				List<StateUpdate<T>> single = new LinkedList<StateUpdate<T>>();
+				single.add(update);
+				DatabaseException e = write(single, store, false);
+				if (e == null) {
+					saveCheckpoint(update);
+					update.complete(null);
+				} else {
+					error = e;
+					failed.add(update);
+				}
+			}
+		}
+		
+		requeue(failed, journal, error);
+		return failed;
+	}
+	
+	/**
+	 * Put failed updates back in the journal, merging them into any newer
+	 * update for the same resource. Updates that have failed too many 
+	 * times are completed with the error.
+	 */
+	private synchronized <T> void requeue(List<StateUpdate<T>> failed, 
+			Map<Integer,StateUpdate<T>> journal, DatabaseException error) {
+		for (StateUpdate<T> update : failed) {
+			if (update.failed() >= maxRetries) {
+				logger.error("Giving up on state update for "+update.getId()+
+						" after "+update.getAttempts()+" attempts");
+				update.complete(error);
+				continue;
+			}
+			StateUpdate<T> newer = journal.get(update.getId());
+			if (newer == null) {
+				journal.put(update.getId(), update);
+			} else {
+				newer.merge(update);
+			}
+		}
+		if (failed.size() > 0) {
+			notifyAll();
+		}
+	}
+	
+	private <T> DatabaseException write(List<StateUpdate<T>> updates, 
+			Store<T> store, boolean quiet) {
+		try {
+			store.write(updates);
+			return null;
+		} catch (DatabaseException dbe) {
+			if (quiet) {
+				logger.warn("Unable to write "+updates.size()+" state updates",dbe);
+			} else {
+				logger.error("Unable to write state update for "+
+						updates.get(0).getId(),dbe);
+			}
+			return dbe;
+		} catch (RuntimeException re) {
+			logger.error("Unable to write state updates",re);
+			return new DatabaseException("Unable to write state updates",re);
+		}
+	}
+	
+	private void saveCheckpoint(StateUpdate<?> update) {
+		CondorLogCheckpoint checkpoint = update.getCheckpoint();
+		if (checkpoint == null) {
+			return;
+		}
+		if (!checkpoint.getFile().getParentFile().exists()) {
+			// The job directory was cleaned up
+			return;
+		}
+		try {
+			checkpoint.write();
+		} catch (CondorException ce) {
+			// The log will just be replayed from an earlier point
+			logger.warn("Unable to save log checkpoint",ce);
+		}
+	}
+	
+	public static StateJournal getInstance() throws DatabaseException {
+		try {
+			return (StateJournal)new Registry().lookup("corral/StateJournal");
+		} catch (ConfigurationException e) {
+			throw new DatabaseException("Unable to load state journal",e);
+		}
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ *  Copyright 2007-2009 University Of Southern California
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.usc.corral.db;
+
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+
+import edu.usc.corral.condor.CondorLogCheckpoint;
+
+/**
+ * A pending change to the state of a glidein or site. Updates are 
+ * queued in the StateJournal and written to the database in batches.
+ * Updates for the same resource are merged until they are written.
+ * An update that could not be written is merged into the next update
+ * for the same resource and is complete when that one is.
+ */
+public class StateUpdate<T> {
+	private int id;
+	private T state;
+	private String shortMessage;
+	private String longMessage;
+	private Date time;
+	private int submits = 0;
+	private CondorLogCheckpoint checkpoint;
+	private int attempts = 0;
+	private List<StateUpdate<T>> merged = new LinkedList<StateUpdate<T>>();
+	private boolean done = false;
+	private DatabaseException error;
+	
+	public StateUpdate(int id) {
+		this.id = id;
+	}
+	
+	public int getId() {
+		return id;
+	}
+	
+	/**
+	 * @return The new state, or null if only the submit count or the
+	 * checkpoint changed
+	 */
+	public T getState() {
+		return state;
+	}
+	
+	public String getShortMessage() {
+		return shortMessage;
+	}
+	
+	public String getLongMessage() {
+		return longMessage;
+	}
+	
+	public Date getTime() {
+		return time;
+	}
+	
+	/**
+	 * @return The number of submits to add to the current count
+	 */
+	public int getSubmits() {
+		return submits;
+	}
+	
+	/**
+	 * @return The job log checkpoint to save once the update has been
+	 * written, or null
+	 */
+	public CondorLogCheckpoint getCheckpoint() {
+		return checkpoint;
+	}
+	
+	void setState(T state, String shortMessage, String longMessage, Date time) {
+		this.state = state;
+		this.shortMessage = shortMessage;
+		this.longMessage = longMessage;
+		this.time = time;
+	}
+	
+	void incrementSubmits() {
+		submits++;
+	}
+	
+	void setCheckpoint(CondorLogCheckpoint checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+	
+	/**
+	 * @return The number of times writing this update has failed
+	 */
+	int getAttempts() {
+		return attempts;
+	}
+	
+	/**
+	 * Record a failed attempt to write this update
+	 * @return The number of failed attempts
+	 */
+	int failed() {
+		return ++attempts;
+	}
+	
+	/**
+	 * Fold an older update that could not be written into this one. The
+	 * newer state wins, the submit counts are added, and the older update
+	 * is completed together with this one.
+	 */
+	void merge(StateUpdate<T> older) {
+		if (state == null) {
+			setState(older.state, older.shortMessage, older.longMessage, 
+					older.time);
+		}
+		submits += older.submits;
+		if (checkpoint == null) {
+			checkpoint = older.checkpoint;
+		}
+		attempts = Math.max(attempts, older.attempts);
+		merged.add(older);
+	}
+	
+	void complete(DatabaseException error) {
+		synchronized (this) {
+			this.done = true;
+			this.error = error;
+			notifyAll();
+		}
+		for (StateUpdate<T> older : merged) {
+			older.complete(error);
+		}
+	}
+	
+	/**
+	 * @return true if the update has been written (or failed)
+	 */
+	public synchronized boolean isDone() {
+		return done;
+	}
+	
+	/**
+	 * Wait until this update has been committed to the database.
+	 * @throws DatabaseException If the update could not be written
+	 */
+	public synchronized void await() throws DatabaseException {
+		try {
+			while (!done) {
+				wait();
+			}
+		} catch (InterruptedException ie) {
+			throw new DatabaseException(
+					"Interrupted waiting for state update",ie);
+		}
+		if (error != null) {
+			throw new DatabaseException("State update failed",error);
+		}
+	}
+	
+	/**
+	 * Wait until this update has been committed to the database, or the
+	 * timeout expires.
+	 * @param timeout How long to wait (ms)
+	 * @return true if the update was committed, false if it timed out
+	 * @throws DatabaseException If the update could not be written
+	 */
+	public synchronized boolean await(long timeout) throws DatabaseException {
+		long deadline = System.currentTimeMillis() + timeout;
+		long remaining = timeout;
+		try {
+			while (!done && remaining > 0) {
+				wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+		} catch (InterruptedException ie) {
+			throw new DatabaseException(
+					"Interrupted waiting for state update",ie);
+		}
+		if (error != null) {
+			throw new DatabaseException("State update failed",error);
+		}
+		return done;
+	}
+}
@@ -181,7 +181,7 @@ public class MySQLDatabase extends SQLDatabase implements Initializable {
 		return new MySQLGlideinDAO(this);
 	}
 	
-	public Connection getConnection() throws DatabaseException {
+	protected Connection createConnection() throws DatabaseException {
 		try {
 			Connection conn = DriverManager.getConnection(url,user,password);
 			conn.setAutoCommit(false);
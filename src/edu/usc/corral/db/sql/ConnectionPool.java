@@ -0,0 +1,441 @@
+/*
+ *  Copyright 2007-2009 University Of Southern California
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.usc.corral.db.sql;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.log4j.Logger;
+
+import edu.usc.corral.db.DatabaseException;
+import edu.usc.corral.db.JDBCUtil;
+
+/**
+ * A pool of JDBC connections for an SQLDatabase. Connections handed out
+ * by the pool are proxies: closing them returns the underlying connection
+ * to the pool, and statements prepared on them are cached and reused
+ * the next time the same SQL is prepared on the same connection.
+ *
+ * Any uncommitted work is rolled back when a connection is returned.
+ */
+public class ConnectionPool {
+	private static final Logger logger = Logger.getLogger(ConnectionPool.class);
+
+	private SQLDatabase database;
+
+	/** Idle connections, most recently used first */
+	private LinkedList<PooledConnection> idle = new LinkedList<PooledConnection>();
+
+	/** Number of open connections, including those being opened */
+	private int open = 0;
+
+	private boolean closed = false;
+	private Timer evictor;
+
+	/* Metrics */
+	private int borrowed = 0;
+	private int waiting = 0;
+	private long totalBorrows = 0;
+	private long totalWaitTime = 0;
+	private long maxWaitTime = 0;
+
+	public ConnectionPool(SQLDatabase database) {
+		this.database = database;
+
+		long period = Math.min(database.getMaxIdleTime(), 60000);
+		if (period > 0) {
+			evictor = new Timer("ConnectionPoolEvictor", true);
+			evictor.schedule(new Evictor(), period, period);
+		}
+	}
+
+	/**
+	 * Borrow a connection from the pool. If all connections are in use
+	 * and the pool is full, then this waits up to maxWait milliseconds
+	 * for one to be returned.
+	 * @return A connection that must be closed to return it to the pool
+	 * @throws DatabaseException If no connection could be obtained
+	 */
+	public Connection getConnection() throws DatabaseException {
+		long start = System.currentTimeMillis();
+		while (true) {
+			PooledConnection pc = null;
+			boolean create = false;
+			synchronized (this) {
+				waiting++;
+				try {
+					while (pc == null && !create) {
+						if (closed) {
+							throw new DatabaseException("Connection pool is closed");
+						}
+						if (idle.size() > 0) {
+							pc = idle.removeFirst();
+						} else if (open < database.getMaxConnections()) {
+							open++;
+							create = true;
+						} else {
+							long remaining = database.getMaxWait() -
+								(System.currentTimeMillis() - start);
+							if (remaining <= 0) {
+								throw new DatabaseException(
+										"Timed out waiting for a database connection");
+							}
+							wait(remaining);
+						}
+					}
+				} catch (InterruptedException ie) {
+					throw new DatabaseException(
+							"Interrupted waiting for a database connection",ie);
+				} finally {
+					waiting--;
+				}
+			}
+
+			if (create) {
+				try {
+					pc = new PooledConnection(database.createConnection());
+				} catch (DatabaseException dbe) {
+					synchronized (this) {
+						open--;
+						notify();
+					}
+					throw dbe;
+				}
+			} else if (!validate(pc)) {
+				destroy(pc);
+				continue;
+			}
+
+			long wait = System.currentTimeMillis() - start;
+			synchronized (this) {
+				borrowed++;
+				totalBorrows++;
+				totalWaitTime += wait;
+				if (wait > maxWaitTime) maxWaitTime = wait;
+			}
+
+			return pc.borrow();
+		}
+	}
+
+	/**
+	 * Check an idle connection before handing it out. Connections that
+	 * were used recently are assumed to be good.
+	 */
+	private boolean validate(PooledConnection pc) {
+		String query = database.getValidationQuery();
+		if (query == null || query.length() == 0)
+			return true;
+		long idleTime = System.currentTimeMillis() - pc.lastUsed;
+		if (idleTime < database.getValidationInterval())
+			return true;
+
+		Statement stmt = null;
+		ResultSet rs = null;
+		try {
+			stmt = pc.connection.createStatement();
+			rs = stmt.executeQuery(query);
+			rs.next();
+			pc.connection.rollback();
+			return true;
+		} catch (SQLException sqle) {
+			logger.warn("Discarding invalid database connection: "+
+					sqle.getMessage());
+			return false;
+		} finally {
+			JDBCUtil.closeQuietly(rs);
+			JDBCUtil.closeQuietly(stmt);
+		}
+	}
+
+	private void release(PooledConnection pc) {
+		boolean good = true;
+		try {
+			// Don't let uncommitted work or read locks leak to the next user
+			pc.connection.rollback();
+		} catch (SQLException sqle) {
+			logger.warn("Unable to reset database connection",sqle);
+			good = false;
+		}
+
+		synchronized (this) {
+			borrowed--;
+			if (good && !closed) {
+				pc.lastUsed = System.currentTimeMillis();
+				idle.addFirst(pc);
+				notify();
+				return;
+			}
+		}
+		destroy(pc);
+	}
+
+	private void destroy(PooledConnection pc) {
+		pc.close();
+		synchronized (this) {
+			open--;
+			notify();
+		}
+	}
+
+	/**
+	 * Close all idle connections and stop handing out new ones.
+	 * Connections that are borrowed are closed when they are returned.
+	 */
+	public void close() {
+		List<PooledConnection> connections;
+		synchronized (this) {
+			closed = true;
+			connections = new LinkedList<PooledConnection>(idle);
+			idle.clear();
+			notifyAll();
+		}
+		if (evictor != null) {
+			evictor.cancel();
+		}
+		for (PooledConnection pc : connections) {
+			destroy(pc);
+		}
+	}
+
+	/** @return The number of open connections */
+	public synchronized int getOpenConnections() {
+		return open;
+	}
+
+	/** @return The number of idle connections */
+	public synchronized int getIdleConnections() {
+		return idle.size();
+	}
+
+	/** @return The number of connections currently borrowed */
+	public synchronized int getBorrowedConnections() {
+		return borrowed;
+	}
+
+	/** @return The number of threads waiting for a connection */
+	public synchronized int getWaitingThreads() {
+		return waiting;
+	}
+
+	/** @return The number of times a connection has been borrowed */
+	public synchronized long getTotalBorrows() {
+		return totalBorrows;
+	}
+
+	/** @return The total time spent waiting for connections (ms) */
+	public synchronized long getTotalWaitTime() {
+		return totalWaitTime;
+	}
+
+	/** @return The longest time spent waiting for a connection (ms) */
+	public synchronized long getMaxWaitTime() {
+		return maxWaitTime;
+	}
+
+	public synchronized String toString() {
+		return "open="+open+" idle="+idle.size()+" borrowed="+borrowed+
+			" waiting="+waiting+" borrows="+totalBorrows+
+			" waitTime="+totalWaitTime+"ms maxWaitTime="+maxWaitTime+"ms";
+	}
+
+	/**
+	 * Closes connections that have been idle for longer than maxIdleTime,
+	 * but keeps at least minConnections open.
+	 */
+	private class Evictor extends TimerTask {
+		public void run() {
+			List<PooledConnection> expired = new LinkedList<PooledConnection>();
+			long cutoff = System.currentTimeMillis() - database.getMaxIdleTime();
+			synchronized (ConnectionPool.this) {
+				// The oldest connections are at the end of the list
+				while (idle.size() > 0 &&
+						open - expired.size() > database.getMinConnections() &&
+						idle.getLast().lastUsed < cutoff) {
+					expired.add(idle.removeLast());
+				}
+			}
+			for (PooledConnection pc : expired) {
+				destroy(pc);
+			}
+		}
+	}
+
+	private static Object invoke(Object target, Method method, Object[] args)
+	throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException ite) {
+			throw ite.getCause();
+		}
+	}
+
+	/**
+	 * A physical connection and its statement cache.
+	 */
+	private class PooledConnection {
+		private Connection connection;
+		private long lastUsed = System.currentTimeMillis();
+		private Map<String,CachedStatement> statements;
+
+		public PooledConnection(Connection connection) {
+			this.connection = connection;
+			this.statements = new LinkedHashMap<String,CachedStatement>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+				protected boolean removeEldestEntry(Map.Entry<String,CachedStatement> eldest) {
+					if (size() > database.getStatementCacheSize()) {
+						eldest.getValue().evict();
+						return true;
+					}
+					return false;
+				}
+			};
+		}
+
+		public Connection borrow() {
+			return (Connection)Proxy.newProxyInstance(
+					Connection.class.getClassLoader(),
+					new Class<?>[] { Connection.class },
+					new ConnectionHandle(this));
+		}
+
+		public PreparedStatement prepareStatement(String sql) throws SQLException {
+			CachedStatement cached = statements.get(sql);
+			if (cached == null) {
+				cached = new CachedStatement(connection.prepareStatement(sql));
+				statements.put(sql, cached);
+			} else if (cached.inUse) {
+				// The same SQL is already open on this connection
+				return connection.prepareStatement(sql);
+			}
+			cached.inUse = true;
+			return cached.proxy;
+		}
+
+		public void close() {
+			for (Iterator<CachedStatement> i = statements.values().iterator(); i.hasNext();) {
+				i.next().evict();
+			}
+			statements.clear();
+			JDBCUtil.closeQuietly(connection);
+		}
+	}
+
+	/**
+	 * The connection handed out for a single borrow. Closing it returns
+	 * the physical connection to the pool.
+	 */
+	private class ConnectionHandle implements InvocationHandler {
+		private PooledConnection pc;
+		private boolean closed = false;
+
+		public ConnectionHandle(PooledConnection pc) {
+			this.pc = pc;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args)
+		throws Throwable {
+			String name = method.getName();
+			if ("close".equals(name)) {
+				if (!closed) {
+					closed = true;
+					release(pc);
+				}
+				return null;
+			} else if ("isClosed".equals(name)) {
+				return closed;
+			} else if ("equals".equals(name)) {
+				return proxy == args[0];
+			} else if ("hashCode".equals(name)) {
+				return System.identityHashCode(proxy);
+			}
+
+			if (closed) {
+				throw new SQLException("Connection is closed");
+			}
+
+			if ("prepareStatement".equals(name) && args.length == 1) {
+				return pc.prepareStatement((String)args[0]);
+			}
+
+			return ConnectionPool.invoke(pc.connection, method, args);
+		}
+	}
+
+	/**
+	 * A prepared statement that stays open when it is closed so that it
+	 * can be reused.
+	 */
+	private static class CachedStatement implements InvocationHandler {
+		private PreparedStatement statement;
+		private PreparedStatement proxy;
+		private boolean inUse = false;
+		private boolean evicted = false;
+
+		public CachedStatement(PreparedStatement statement) {
+			this.statement = statement;
+			this.proxy = (PreparedStatement)Proxy.newProxyInstance(
+					PreparedStatement.class.getClassLoader(),
+					new Class<?>[] { PreparedStatement.class },
+					this);
+		}
+
+		public void evict() {
+			evicted = true;
+			if (!inUse) {
+				JDBCUtil.closeQuietly(statement);
+			}
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args)
+		throws Throwable {
+			String name = method.getName();
+			if ("close".equals(name)) {
+				if (inUse) {
+					inUse = false;
+					if (evicted) {
+						statement.close();
+					} else {
+						statement.clearParameters();
+					}
+				}
+				return null;
+			} else if ("isClosed".equals(name)) {
+				return !inUse;
+			} else if ("equals".equals(name)) {
+				return proxy == args[0];
+			} else if ("hashCode".equals(name)) {
+				return System.identityHashCode(proxy);
+			}
+
+			return ConnectionPool.invoke(statement, method, args);
+		}
+	}
+}
@@ -22,5 +22,91 @@ import edu.usc.corral.db.DatabaseException;
 
 public abstract class SQLDatabase extends Database
 {
-	public abstract Connection getConnection() throws DatabaseException;
+	private int minConnections = 1;
+	private int maxConnections = 8;
+	private long maxWait = 30000;
+	private long maxIdleTime = 300000;
+	private String validationQuery = "SELECT 1";
+	private long validationInterval = 30000;
+	private int statementCacheSize = 32;
+	private ConnectionPool pool;
+	
+	/**
+	 * Open a new physical connection to the database. Connections should
+	 * have auto commit disabled.
+	 */
+	protected abstract Connection createConnection() throws DatabaseException;
+	
+	/**
+	 * Borrow a connection from the pool. Closing the connection returns
+	 * it to the pool.
+	 */
+	public Connection getConnection() throws DatabaseException
+	{
+		return getPool().getConnection();
+	}
+	
+	public synchronized ConnectionPool getPool()
+	{
+		if (pool == null) {
+			pool = new ConnectionPool(this);
+		}
+		return pool;
+	}
+
+	public int getMinConnections() {
+		return minConnections;
+	}
+
+	public void setMinConnections(int minConnections) {
+		this.minConnections = minConnections;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	public long getMaxWait() {
+		return maxWait;
+	}
+
+	public void setMaxWait(long maxWait) {
+		this.maxWait = maxWait;
+	}
+
+	public long getMaxIdleTime() {
+		return maxIdleTime;
+	}
+
+	public void setMaxIdleTime(long maxIdleTime) {
+		this.maxIdleTime = maxIdleTime;
+	}
+
+	public String getValidationQuery() {
+		return validationQuery;
+	}
+
+	public void setValidationQuery(String validationQuery) {
+		this.validationQuery = validationQuery;
+	}
+
+	public long getValidationInterval() {
+		return validationInterval;
+	}
+
+	public void setValidationInterval(long validationInterval) {
+		this.validationInterval = validationInterval;
+	}
+
+	public int getStatementCacheSize() {
+		return statementCacheSize;
+	}
+
+	public void setStatementCacheSize(int statementCacheSize) {
+		this.statementCacheSize = statementCacheSize;
+	}
 }
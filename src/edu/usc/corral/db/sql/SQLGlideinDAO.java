@@ -23,14 +23,31 @@ import java.sql.Timestamp;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import edu.usc.corral.db.DatabaseException;
 import edu.usc.corral.db.GlideinDAO;
 import edu.usc.corral.db.JDBCUtil;
+import edu.usc.corral.db.StateUpdate;
 import edu.usc.corral.types.Glidein;
 import edu.usc.corral.types.GlideinState;
+import edu.usc.corral.types.ListRequest;
 
 public class SQLGlideinDAO implements GlideinDAO {
+	/** Columns that are always listed because Glidein requires them */
+	private static final String[] REQUIRED_COLUMNS = {
+		"id", "site", "condorHost", "count", "hostCount", "wallTime", 
+		"numCpus", "state", "shortMessage", "created", "lastUpdate", 
+		"submits", "subject", "localUsername"
+	};
+	
+	/** Columns that are only listed in long format or if requested */
+	private static final String[] OPTIONAL_COLUMNS = {
+		"condorConfig", "gcbBroker", "idleTime", "condorDebug", 
+		"longMessage", "resubmit", "resubmits", "until", "rsl", 
+		"highport", "lowport", "ccbAddress"
+	};
+	
 	private SQLDatabase database = null;
 	
 	public SQLGlideinDAO(SQLDatabase db) {
@@ -212,6 +229,56 @@ public class SQLGlideinDAO implements GlideinDAO {
 		
 	}
 	
+	public void updateStates(List<StateUpdate<GlideinState>> updates) throws DatabaseException {
+		Connection conn = null;
+		PreparedStatement stateStmt = null;
+		PreparedStatement submitsStmt = null;
+		try {
+			conn = getConnection();
+			stateStmt = conn.prepareStatement("UPDATE glidein SET state=?, shortMessage=?, longMessage=?, lastUpdate=?, submits=submits+? WHERE id=?");
+			submitsStmt = conn.prepareStatement("UPDATE glidein SET submits=submits+? WHERE id=?");
+			int states = 0;
+			int submits = 0;
+			for (StateUpdate<GlideinState> update : updates) {
+				int i = 1;
+				if (update.getState() == null) {
+					if (update.getSubmits() == 0) {
+						/* Only the checkpoint changed */
+						continue;
+					}
+					submitsStmt.setInt(i++, update.getSubmits());
+					submitsStmt.setInt(i++, update.getId());
+					submitsStmt.addBatch();
+					submits++;
+				} else {
+					stateStmt.setString(i++, update.getState().toString());
+					stateStmt.setString(i++, update.getShortMessage());
+					stateStmt.setString(i++, update.getLongMessage());
+					stateStmt.setTimestamp(i++, new Timestamp(update.getTime().getTime()));
+					stateStmt.setInt(i++, update.getSubmits());
+					stateStmt.setInt(i++, update.getId());
+					stateStmt.addBatch();
+					states++;
+				}
+			}
+			/* Glideins that were deleted in the meantime are ignored */
+			if (states > 0) {
+				stateStmt.executeBatch();
+			}
+			if (submits > 0) {
+				submitsStmt.executeBatch();
+			}
+			conn.commit();
+		} catch (SQLException sqle) {
+			JDBCUtil.rollbackQuietly(conn);
+			throw new DatabaseException("Unable to update glidein states: update failed",sqle);
+		} finally {
+			JDBCUtil.closeQuietly(submitsStmt);
+			JDBCUtil.closeQuietly(stateStmt);
+			JDBCUtil.closeQuietly(conn);
+		}
+	}
+	
 	public int[] listIds() throws DatabaseException {
 		Connection conn = null;
 		PreparedStatement stmt = null;
@@ -270,41 +337,119 @@ public class SQLGlideinDAO implements GlideinDAO {
 		}
 	}
 	
-	public List<Glidein> list(boolean longFormat, String user, boolean allUsers) throws DatabaseException {
-		Connection conn = null;
-		try {
-			conn = getConnection();
-			return getGlideins(conn, user, allUsers);
-		} finally {
-			JDBCUtil.closeQuietly(conn);
+	public List<Glidein> list(ListRequest request) throws DatabaseException {
+		// Build the query
+		StringBuffer sql = new StringBuffer("SELECT ");
+		for (String column : REQUIRED_COLUMNS) {
+			sql.append("g.").append(column).append(", ");
 		}
-	}
-	
-	private List<Glidein> getGlideins(Connection connection, String user, boolean allUsers) throws DatabaseException
-	{
+		for (String column : getOptionalColumns(request)) {
+			sql.append("g.").append(column).append(", ");
+		}
+		
+		// Join to get the site name. Glideins whose site was deleted are 
+		// still listed so that they can be recovered and cleaned up.
+		sql.append("s.name AS siteName FROM glidein g LEFT JOIN site s ON g.site=s.id WHERE 1=1");
+		
+		List<Object> params = new LinkedList<Object>();
+		if (!request.isAllUsers()) {
+			sql.append(" AND g.localUsername=?");
+			params.add(request.getUser());
+		}
+		List<String> states = request.getStates();
+		if (states != null && states.size() > 0) {
+			JDBCUtil.appendIn(sql, "g.state", states.size());
+			for (String state : states) {
+				try {
+					params.add(GlideinState.valueOf(state.toUpperCase()).toString());
+				} catch (IllegalArgumentException iae) {
+					throw new DatabaseException("Invalid glidein state: "+state);
+				}
+			}
+		}
+		List<Integer> sites = request.getSites();
+		if (sites != null && sites.size() > 0) {
+			JDBCUtil.appendIn(sql, "g.site", sites.size());
+			params.addAll(sites);
+		}
+		if (request.getAfterId() > 0) {
+			sql.append(" AND g.id>?");
+			params.add(request.getAfterId());
+		}
+		sql.append(" ORDER BY g.id");
+		if (request.getLimit() > 0) {
+			sql.append(" LIMIT ?");
+			params.add(request.getLimit());
+		}
+		
+		Connection conn = null;
 		PreparedStatement stmt = null;
 		ResultSet rs = null;
 		LinkedList<Glidein> results = new LinkedList<Glidein>();
 		try {
-			// Join to get the site name
-			stmt = connection.prepareStatement("SELECT g.*, s.name as siteName FROM glidein g, site s WHERE g.site=s.id"+(allUsers?"":" AND g.localUsername=?"));
-			if (!allUsers) {
-				stmt.setString(1, user);
-			}
+			conn = getConnection();
+			stmt = conn.prepareStatement(sql.toString());
+			JDBCUtil.setParameters(stmt, params);
 			rs = stmt.executeQuery();
+			Set<String> columns = JDBCUtil.getColumnNames(rs);
 			while (rs.next()) {
-				results.add(newGlidein(rs));
+				results.add(newGlidein(rs, columns));
 			}
 			return results;
 		} catch(SQLException sqle) {
-			throw new DatabaseException("Unable to load glidein: select failed",sqle);
+			throw new DatabaseException("Unable to list glideins: select failed",sqle);
 		} finally {
 			JDBCUtil.closeQuietly(rs);
 			JDBCUtil.closeQuietly(stmt);
+			JDBCUtil.closeQuietly(conn);
 		}
 	}
 	
+	private List<String> getOptionalColumns(ListRequest request) throws DatabaseException {
+		List<String> columns = new LinkedList<String>();
+		if (request.getColumns() != null) {
+			for (String name : request.getColumns()) {
+				String column = findColumn(name);
+				if (column != null && !columns.contains(column)) {
+					columns.add(column);
+				}
+			}
+		} else if (request.isLongFormat()) {
+			for (String column : OPTIONAL_COLUMNS) {
+				columns.add(column);
+			}
+		}
+		return columns;
+	}
+	
+	private String findColumn(String name) throws DatabaseException {
+		for (String column : OPTIONAL_COLUMNS) {
+			if (column.equalsIgnoreCase(name)) {
+				return column;
+			}
+		}
+		for (String column : REQUIRED_COLUMNS) {
+			if (column.equalsIgnoreCase(name)) {
+				/* Always selected anyway */
+				return null;
+			}
+		}
+		throw new DatabaseException("Invalid glidein column: "+name);
+	}
+	
 	private Glidein newGlidein(ResultSet rs) throws DatabaseException {
+		try {
+			return newGlidein(rs, JDBCUtil.getColumnNames(rs));
+		} catch (SQLException sqle) {
+			throw new DatabaseException("Unable to create Glidein object",sqle);
+		}
+	}
+	
+	/**
+	 * Create a glidein from the current row. Optional columns that were 
+	 * not selected are left null.
+	 */
+	private Glidein newGlidein(ResultSet rs, Set<String> columns) throws DatabaseException {
 		try {
 			Glidein glidein = new Glidein();
 			glidein.setId(rs.getInt("id"));
@@ -314,34 +459,47 @@ public class SQLGlideinDAO implements GlideinDAO {
 			glidein.setHostCount(rs.getInt("hostCount"));
 			glidein.setWallTime(rs.getInt("wallTime"));
 			glidein.setNumCpus(rs.getInt("numCpus"));
-			glidein.setCondorConfig(rs.getString("condorConfig"));
-			glidein.setGcbBroker(rs.getString("gcbBroker"));
-			glidein.setIdleTime(rs.getInt("idleTime"));
-			glidein.setCondorDebug(rs.getString("condorDebug"));
 			glidein.setCondorHost(rs.getString("condorHost"));
 			glidein.setState(GlideinState.valueOf(rs.getString("state")));
 			glidein.setShortMessage(rs.getString("shortMessage"));
-			glidein.setLongMessage(rs.getString("longMessage"));
 			glidein.setCreated(rs.getTimestamp("created"));
 			glidein.setLastUpdate(rs.getTimestamp("lastUpdate"));
-			glidein.setResubmit(rs.getBoolean("resubmit"));
 			glidein.setSubmits(rs.getInt("submits"));
-			glidein.setResubmits(rs.getInt("resubmits"));
-			
-			Timestamp until = rs.getTimestamp("until");
-			if (until == null) {
-				glidein.setUntil(null);
-			} else {
-				Date _until = new Date();
-				_until.setTime(until.getTime());
-				glidein.setUntil(_until);
-			}
-			glidein.setRsl(rs.getString("rsl"));
 			glidein.setSubject(rs.getString("subject"));
 			glidein.setLocalUsername(rs.getString("localUsername"));
-			glidein.setLowport(rs.getInt("lowport"));
-			glidein.setHighport(rs.getInt("highport"));
-			glidein.setCcbAddress(rs.getString("ccbAddress"));
+			
+			if (columns.contains("condorconfig"))
+				glidein.setCondorConfig(rs.getString("condorConfig"));
+			if (columns.contains("gcbbroker"))
+				glidein.setGcbBroker(rs.getString("gcbBroker"));
+			if (columns.contains("idletime"))
+				glidein.setIdleTime(rs.getInt("idleTime"));
+			if (columns.contains("condordebug"))
+				glidein.setCondorDebug(rs.getString("condorDebug"));
+			if (columns.contains("longmessage"))
+				glidein.setLongMessage(rs.getString("longMessage"));
+			if (columns.contains("resubmit"))
+				glidein.setResubmit(rs.getBoolean("resubmit"));
+			if (columns.contains("resubmits"))
+				glidein.setResubmits(rs.getInt("resubmits"));
+			if (columns.contains("until")) {
+				Timestamp until = rs.getTimestamp("until");
+				if (until == null) {
+					glidein.setUntil(null);
+				} else {
+					Date _until = new Date();
+					_until.setTime(until.getTime());
+					glidein.setUntil(_until);
+				}
+			}
+			if (columns.contains("rsl"))
+				glidein.setRsl(rs.getString("rsl"));
+			if (columns.contains("lowport"))
+				glidein.setLowport(rs.getInt("lowport"));
+			if (columns.contains("highport"))
+				glidein.setHighport(rs.getInt("highport"));
+			if (columns.contains("ccbaddress"))
+				glidein.setCcbAddress(rs.getString("ccbAddress"));
 			
 			return glidein;
 		} catch (SQLException sqle) {
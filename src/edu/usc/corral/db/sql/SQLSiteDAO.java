@@ -20,20 +20,45 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import edu.usc.corral.db.DatabaseException;
 import edu.usc.corral.db.JDBCUtil;
 import edu.usc.corral.db.SiteDAO;
+import edu.usc.corral.db.StateUpdate;
 import edu.usc.corral.types.EnvironmentVariable;
 import edu.usc.corral.types.ExecutionService;
+import edu.usc.corral.types.ListRequest;
 import edu.usc.corral.types.Site;
 import edu.usc.corral.types.SiteState;
 import edu.usc.corral.types.ServiceType;
 
 public class SQLSiteDAO implements SiteDAO {
+	/** Columns that are always listed because Site requires them */
+	private static final String[] REQUIRED_COLUMNS = {
+		"id", "name", "installPath", "localPath", "state", "shortMessage",
+		"created", "lastUpdate", "subject", "localUsername"
+	};
+	
+	/** Columns that are only listed in long format or if requested */
+	private static final String[] OPTIONAL_COLUMNS = {
+		"condorPackage", "condorVersion", "longMessage"
+	};
+	
+	/** The maximum number of site IDs to put in one IN clause */
+	private static final int IN_BATCH_SIZE = 500;
+	
+	/** Data from other tables that is only listed in long format or if requested */
+	private static final String[] CHILD_COLUMNS = {
+		"stagingService", "glideinService", "environment"
+	};
+
 	private enum ServiceFunction {
 		STAGING,
 		GLIDEIN
@@ -126,7 +151,7 @@ public class SQLSiteDAO implements SiteDAO {
 		if (service == null) return;
 		PreparedStatement stmt = null;
 		try {
-			stmt = connection.prepareStatement("INSERT INTO execution_service (site, function, serviceContact, serviceType, project, queue) VALUES (?,?,?,?,?,?)");
+			stmt = connection.prepareStatement("INSERT INTO execution_service (site, function, serviceContact, serviceType, project, queue, minPollInterval, maxPollInterval, maxSubmitted, maxSubmitRate) VALUES (?,?,?,?,?,?,?,?,?,?)");
 			int i = 1;
 			stmt.setInt(i++, siteId);
 			stmt.setString(i++, function.toString());
@@ -134,6 +159,10 @@ public class SQLSiteDAO implements SiteDAO {
 			stmt.setString(i++, service.getServiceType().toString());
 			stmt.setString(i++, service.getProject());
 			stmt.setString(i++, service.getQueue());
+			stmt.setObject(i++, service.getMinPollInterval());
+			stmt.setObject(i++, service.getMaxPollInterval());
+			stmt.setObject(i++, service.getMaxSubmitted());
+			stmt.setObject(i++, service.getMaxSubmitRate());
 			if (stmt.executeUpdate()!=1) {
 				throw new DatabaseException("Unable to create execution service: wrong number of db updates");
 			}
@@ -217,11 +246,7 @@ public class SQLSiteDAO implements SiteDAO {
 			stmt.setString(2, function.toString());
 			rs = stmt.executeQuery();
 			if (rs.next()) {
-				service = new ExecutionService();
-				service.setServiceContact(rs.getString("serviceContact"));
-				service.setServiceType(ServiceType.valueOf(rs.getString("serviceType")));
-				service.setProject(rs.getString("project"));
-				service.setQueue(rs.getString("queue"));
+				service = newExecutionService(rs);
 			}
 		} catch(SQLException sqle) {
 			throw new DatabaseException("Unable to load execution service: select failed",sqle);
@@ -232,6 +257,107 @@ public class SQLSiteDAO implements SiteDAO {
 		return service;
 	}
 	
+	private ExecutionService newExecutionService(ResultSet rs) throws SQLException {
+		ExecutionService service = new ExecutionService();
+		service.setServiceContact(rs.getString("serviceContact"));
+		service.setServiceType(ServiceType.valueOf(rs.getString("serviceType")));
+		service.setProject(rs.getString("project"));
+		service.setQueue(rs.getString("queue"));
+		service.setMinPollInterval(getInteger(rs, "minPollInterval"));
+		service.setMaxPollInterval(getInteger(rs, "maxPollInterval"));
+		service.setMaxSubmitted(getInteger(rs, "maxSubmitted"));
+		service.setMaxSubmitRate(getInteger(rs, "maxSubmitRate"));
+		return service;
+	}
+	
+	private Integer getInteger(ResultSet rs, String column) throws SQLException {
+		int value = rs.getInt(column);
+		return rs.wasNull() ? null : new Integer(value);
+	}
+	
+	/**
+	 * Load the execution services for many sites using one query per
+	 * IN_BATCH_SIZE sites.
+	 */
+	private void getExecutionServices(Connection connection, Map<Integer,Site> sites) throws DatabaseException {
+		List<Integer> ids = new ArrayList<Integer>(sites.keySet());
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			for (int start = 0; start < ids.size(); start += IN_BATCH_SIZE) {
+				List<Integer> batch = ids.subList(start, 
+						Math.min(start+IN_BATCH_SIZE, ids.size()));
+				StringBuffer sql = new StringBuffer("SELECT * FROM execution_service WHERE 1=1");
+				JDBCUtil.appendIn(sql, "site", batch.size());
+				stmt = connection.prepareStatement(sql.toString());
+				JDBCUtil.setParameters(stmt, batch);
+				rs = stmt.executeQuery();
+				while (rs.next()) {
+					Site site = sites.get(rs.getInt("site"));
+					ExecutionService service = newExecutionService(rs);
+					switch (ServiceFunction.valueOf(rs.getString("function"))) {
+						case STAGING:
+							site.setStagingService(service);
+							break;
+						case GLIDEIN:
+							site.setGlideinService(service);
+							break;
+					}
+				}
+				JDBCUtil.closeQuietly(rs);
+				JDBCUtil.closeQuietly(stmt);
+				rs = null;
+				stmt = null;
+			}
+		} catch(SQLException sqle) {
+			throw new DatabaseException("Unable to load execution services: select failed",sqle);
+		} finally {
+			JDBCUtil.closeQuietly(rs);
+			JDBCUtil.closeQuietly(stmt);
+		}
+	}
+	
+	private EnvironmentVariable newEnvironmentVariable(ResultSet rs) throws SQLException {
+		EnvironmentVariable ev = new EnvironmentVariable();
+		ev.setVariable(rs.getString("variable"));
+		ev.setValue(rs.getString("value"));
+		return ev;
+	}
+	
+	/**
+	 * Load the environment for many sites using one query per 
+	 * IN_BATCH_SIZE sites. The sites must already have empty environments.
+	 */
+	private void getEnvironments(Connection connection, Map<Integer,Site> sites) throws DatabaseException {
+		List<Integer> ids = new ArrayList<Integer>(sites.keySet());
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			for (int start = 0; start < ids.size(); start += IN_BATCH_SIZE) {
+				List<Integer> batch = ids.subList(start, 
+						Math.min(start+IN_BATCH_SIZE, ids.size()));
+				StringBuffer sql = new StringBuffer("SELECT * FROM environment WHERE 1=1");
+				JDBCUtil.appendIn(sql, "site", batch.size());
+				stmt = connection.prepareStatement(sql.toString());
+				JDBCUtil.setParameters(stmt, batch);
+				rs = stmt.executeQuery();
+				while (rs.next()) {
+					Site site = sites.get(rs.getInt("site"));
+					site.getEnvironment().add(newEnvironmentVariable(rs));
+				}
+				JDBCUtil.closeQuietly(rs);
+				JDBCUtil.closeQuietly(stmt);
+				rs = null;
+				stmt = null;
+			}
+		} catch(SQLException sqle) {
+			throw new DatabaseException("Unable to load site environments: select failed",sqle);
+		} finally {
+			JDBCUtil.closeQuietly(rs);
+			JDBCUtil.closeQuietly(stmt);
+		}
+	}
+	
 	private List<EnvironmentVariable> getEnvironment(Connection connection, int siteId) throws DatabaseException {
 		LinkedList<EnvironmentVariable> env = new LinkedList<EnvironmentVariable>();
 		PreparedStatement stmt = null;
@@ -240,13 +366,8 @@ public class SQLSiteDAO implements SiteDAO {
 			stmt = connection.prepareStatement("SELECT * FROM environment WHERE site=?");
 			stmt.setInt(1, siteId);
 			rs = stmt.executeQuery();
-			if (rs.next()) {
-				String variable = rs.getString("variable");
-				String value = rs.getString("value");
-				EnvironmentVariable ev = new EnvironmentVariable();
-				ev.setValue(value);
-				ev.setVariable(variable);
-				env.add(ev);
+			while (rs.next()) {
+				env.add(newEnvironmentVariable(rs));
 			}
 		} catch(SQLException sqle) {
 			throw new DatabaseException("Unable to load site environment: select failed",sqle);
@@ -309,6 +430,33 @@ public class SQLSiteDAO implements SiteDAO {
 		}
 	}
 	
+	public void updateStates(List<StateUpdate<SiteState>> updates) throws DatabaseException {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		try {
+			conn = getConnection();
+			stmt = conn.prepareStatement("UPDATE site SET state=?, shortMessage=?, longMessage=?, lastUpdate=? WHERE id=?");
+			for (StateUpdate<SiteState> update : updates) {
+				int i = 1;
+				stmt.setString(i++, update.getState().toString());
+				stmt.setString(i++, update.getShortMessage());
+				stmt.setString(i++, update.getLongMessage());
+				stmt.setTimestamp(i++, new Timestamp(update.getTime().getTime()));
+				stmt.setInt(i++, update.getId());
+				stmt.addBatch();
+			}
+			/* Sites that were deleted in the meantime are ignored */
+			stmt.executeBatch();
+			conn.commit();
+		} catch (SQLException sqle) {
+			JDBCUtil.rollbackQuietly(conn);
+			throw new DatabaseException("Unable to update site states: update failed",sqle);
+		} finally {
+			JDBCUtil.closeQuietly(stmt);
+			JDBCUtil.closeQuietly(conn);
+		}
+	}
+	
 	public int[] listIds() throws DatabaseException {
 		Connection conn = null;
 		PreparedStatement stmt = null;
@@ -337,67 +485,168 @@ public class SQLSiteDAO implements SiteDAO {
 		}
 	}
 	
-	public List<Site> list(boolean longFormat, String user, boolean allUsers) throws DatabaseException {
-		Connection conn = null;
-		try {
-			conn = getConnection();
-			List<Site> sites = getSites(conn, user, allUsers);
-			if (longFormat) {
-				for (Site site : sites) {
-					int id = site.getId();
-					site.setEnvironment(getEnvironment(conn, id));
-					site.setStagingService(getExecutionService(
-							conn,id,ServiceFunction.STAGING));
-					site.setGlideinService(getExecutionService(
-							conn,id,ServiceFunction.GLIDEIN));
+	public List<Site> list(ListRequest request) throws DatabaseException {
+		// Figure out which optional columns we need
+		List<String> columns = new LinkedList<String>();
+		boolean services = false;
+		boolean environment = false;
+		if (request.getColumns() != null) {
+			for (String name : request.getColumns()) {
+				String column = findColumn(name);
+				if ("stagingService".equals(column) || 
+						"glideinService".equals(column)) {
+					services = true;
+				} else if ("environment".equals(column)) {
+					environment = true;
+				} else if (column != null && !columns.contains(column)) {
+					columns.add(column);
 				}
 			}
-			return sites;
-		} finally {
-			JDBCUtil.closeQuietly(conn);
+		} else if (request.isLongFormat()) {
+			for (String column : OPTIONAL_COLUMNS) {
+				columns.add(column);
+			}
+			services = true;
+			environment = true;
 		}
-	}
-	
-	private List<Site> getSites(Connection connection, String user, boolean allUsers) throws DatabaseException {
-		LinkedList<Site> sites = new LinkedList<Site>();
+		
+		// Build the query
+		StringBuffer sql = new StringBuffer("SELECT ");
+		for (String column : REQUIRED_COLUMNS) {
+			sql.append(column).append(", ");
+		}
+		for (String column : columns) {
+			sql.append(column).append(", ");
+		}
+		sql.setLength(sql.length()-2);
+		sql.append(" FROM site WHERE 1=1");
+		
+		List<Object> params = new LinkedList<Object>();
+		if (!request.isAllUsers()) {
+			sql.append(" AND localUsername=?");
+			params.add(request.getUser());
+		}
+		List<String> states = request.getStates();
+		if (states != null && states.size() > 0) {
+			JDBCUtil.appendIn(sql, "state", states.size());
+			for (String state : states) {
+				try {
+					params.add(SiteState.valueOf(state.toUpperCase()).toString());
+				} catch (IllegalArgumentException iae) {
+					throw new DatabaseException("Invalid site state: "+state);
+				}
+			}
+		}
+		List<Integer> sites = request.getSites();
+		if (sites != null && sites.size() > 0) {
+			JDBCUtil.appendIn(sql, "id", sites.size());
+			params.addAll(sites);
+		}
+		if (request.getAfterId() > 0) {
+			sql.append(" AND id>?");
+			params.add(request.getAfterId());
+		}
+		sql.append(" ORDER BY id");
+		if (request.getLimit() > 0) {
+			sql.append(" LIMIT ?");
+			params.add(request.getLimit());
+		}
+		
+		Connection conn = null;
 		PreparedStatement stmt = null;
 		ResultSet rs = null;
+		List<Site> results = new LinkedList<Site>();
 		try {
-			stmt = connection.prepareStatement("SELECT * FROM site"+(allUsers?"":" WHERE localUsername=?"));
-			if (!allUsers) {
-				stmt.setString(1, user);
-			}
+			conn = getConnection();
+			stmt = conn.prepareStatement(sql.toString());
+			JDBCUtil.setParameters(stmt, params);
 			rs = stmt.executeQuery();
+			Set<String> names = JDBCUtil.getColumnNames(rs);
 			while (rs.next()) {
-				Site site = newSite(rs);
-				sites.add(site);
+				results.add(newSite(rs, names));
 			}
+			JDBCUtil.closeQuietly(rs);
+			rs = null;
+			
+			// Load the child tables for all the sites at once
+			if (results.size() > 0 && (services || environment)) {
+				Map<Integer,Site> byId = new HashMap<Integer,Site>();
+				for (Site site : results) {
+					byId.put(site.getId(), site);
+					if (environment) {
+						site.setEnvironment(new LinkedList<EnvironmentVariable>());
+					}
+				}
+				if (services) {
+					getExecutionServices(conn, byId);
+				}
+				if (environment) {
+					getEnvironments(conn, byId);
+				}
+			}
+			return results;
 		} catch(SQLException sqle) {
-			throw new DatabaseException("Unable to load site: select failed",sqle);
+			throw new DatabaseException("Unable to list sites: select failed",sqle);
 		} finally {
 			JDBCUtil.closeQuietly(rs);
 			JDBCUtil.closeQuietly(stmt);
+			JDBCUtil.closeQuietly(conn);
 		}
-		return sites;
+	}
+	
+	private String findColumn(String name) throws DatabaseException {
+		for (String column : OPTIONAL_COLUMNS) {
+			if (column.equalsIgnoreCase(name)) {
+				return column;
+			}
+		}
+		for (String column : CHILD_COLUMNS) {
+			if (column.equalsIgnoreCase(name)) {
+				return column;
+			}
+		}
+		for (String column : REQUIRED_COLUMNS) {
+			if (column.equalsIgnoreCase(name)) {
+				/* Always selected anyway */
+				return null;
+			}
+		}
+		throw new DatabaseException("Invalid site column: "+name);
 	}
 	
 	private Site newSite(ResultSet rs) throws DatabaseException {
+		try {
+			return newSite(rs, JDBCUtil.getColumnNames(rs));
+		} catch (SQLException sqle) {
+			throw new DatabaseException("Unable to create Site object",sqle);
+		}
+	}
+	
+	/**
+	 * Create a site from the current row. Optional columns that were 
+	 * not selected are left null.
+	 */
+	private Site newSite(ResultSet rs, Set<String> columns) throws DatabaseException {
 		try {
 			Site site = new Site();
 			site.setId(rs.getInt("id"));
 			site.setName(rs.getString("name"));
 			site.setInstallPath(rs.getString("installPath"));
 			site.setLocalPath(rs.getString("localPath"));
-			site.setCondorPackage(rs.getString("condorPackage"));
-			site.setCondorVersion(rs.getString("condorVersion"));
 			site.setState(SiteState.valueOf(rs.getString("state")));
 			site.setShortMessage(rs.getString("shortMessage"));
-			site.setLongMessage(rs.getString("longMessage"));
 			site.setCreated(rs.getTimestamp("created"));
 			site.setLastUpdate(rs.getTimestamp("lastUpdate"));
 			site.setSubject(rs.getString("subject"));
 			site.setLocalUsername(rs.getString("localUsername"));
 			
+			if (columns.contains("condorpackage"))
+				site.setCondorPackage(rs.getString("condorPackage"));
+			if (columns.contains("condorversion"))
+				site.setCondorVersion(rs.getString("condorVersion"));
+			if (columns.contains("longmessage"))
+				site.setLongMessage(rs.getString("longMessage"));
+			
 			return site;
 		} catch (SQLException sqle) {
 			throw new DatabaseException("Unable to create Site object",sqle);
@@ -410,15 +659,11 @@ public class SQLSiteDAO implements SiteDAO {
 		ResultSet rs = null;
 		try {
 			conn = getConnection();
-			stmt = conn.prepareStatement("SELECT count(*) FROM glidein WHERE site=?");
+			/* Stop at the first matching row instead of counting them all */
+			stmt = conn.prepareStatement("SELECT id FROM glidein WHERE site=? LIMIT 1");
 			stmt.setInt(1, siteId);
 			rs = stmt.executeQuery();
-			if (rs.next()) {
-				int count = rs.getInt(1);
-				return count>0;
-			} else {
-				throw new DatabaseException("Expected one result: got zero");
-			}
+			return rs.next();
 		} catch (SQLException sqle) {
 			throw new DatabaseException("Unable to count glideins",sqle);
 		} finally {
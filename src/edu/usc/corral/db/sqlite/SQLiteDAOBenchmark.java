@@ -0,0 +1,180 @@
+/*
+ *  Copyright 2007-2009 University Of Southern California
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.usc.corral.db.sqlite;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+
+import edu.usc.corral.db.GlideinDAO;
+import edu.usc.corral.db.JDBCUtil;
+import edu.usc.corral.db.SiteDAO;
+import edu.usc.corral.types.GlideinState;
+import edu.usc.corral.types.ListRequest;
+import edu.usc.corral.types.SiteState;
+
+/**
+ * Seeds a scratch SQLite database with a large number of glideins and 
+ * times the GlideinDAO and SiteDAO queries with and without the 
+ * secondary indexes.
+ * 
+ * Usage: SQLiteDAOBenchmark SCHEMA_FILE [GLIDEINS]
+ */
+public class SQLiteDAOBenchmark {
+	private static final int SITES = 100;
+	private static final int USERS = 10;
+	private static final int ITERATIONS = 20;
+	
+	private static final String[] INDEXES = {
+		"idx_site_state", "idx_site_user_state", "idx_glidein_state",
+		"idx_glidein_site", "idx_glidein_user_state"
+	};
+	
+	private SQLiteDatabase db;
+	
+	public SQLiteDAOBenchmark(SQLiteDatabase db) {
+		this.db = db;
+	}
+	
+	private void seed(int glideins) throws Exception {
+		GlideinState[] glideinStates = GlideinState.values();
+		Connection conn = db.getConnection();
+		PreparedStatement stmt = null;
+		try {
+			stmt = conn.prepareStatement("INSERT INTO site (id, name, installPath, localPath, state, shortMessage, created, lastUpdate, subject, localUsername) VALUES (?,?,'/install','/local',?,'Installed',0,0,'/CN=user',?)");
+			for (int i=1; i<=SITES; i++) {
+				stmt.setInt(1, i);
+				stmt.setString(2, "site"+i);
+				stmt.setString(3, SiteState.READY.toString());
+				stmt.setString(4, "user"+(i%USERS));
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+			stmt.close();
+			
+			stmt = conn.prepareStatement("INSERT INTO glidein (id, site, condorHost, count, hostCount, wallTime, numCpus, state, shortMessage, created, lastUpdate, resubmit, submits, subject, localUsername) VALUES (?,?,'cm.example.edu',1,1,60,1,?,'Glidein',0,0,0,1,'/CN=user',?)");
+			for (int i=1; i<=glideins; i++) {
+				stmt.setInt(1, i);
+				stmt.setInt(2, 1+(i%SITES));
+				stmt.setString(3, glideinStates[i%glideinStates.length].toString());
+				stmt.setString(4, "user"+(i%USERS));
+				stmt.addBatch();
+				if (i%10000 == 0) {
+					stmt.executeBatch();
+				}
+			}
+			stmt.executeBatch();
+			conn.commit();
+		} finally {
+			JDBCUtil.closeQuietly(stmt);
+			JDBCUtil.closeQuietly(conn);
+		}
+	}
+	
+	private void dropIndexes() throws Exception {
+		Connection conn = db.getConnection();
+		Statement stmt = null;
+		try {
+			stmt = conn.createStatement();
+			for (String index : INDEXES) {
+				stmt.executeUpdate("DROP INDEX IF EXISTS "+index);
+			}
+			conn.commit();
+		} finally {
+			JDBCUtil.closeQuietly(stmt);
+			JDBCUtil.closeQuietly(conn);
+		}
+	}
+	
+	/**
+	 * @return Average time per query for each DAO method in ms
+	 */
+	private double[] run() throws Exception {
+		GlideinDAO glideins = db.getGlideinDAO();
+		SiteDAO sites = db.getSiteDAO();
+		double[] times = new double[5];
+		
+		long start = System.nanoTime();
+		for (int i=0; i<ITERATIONS; i++) glideins.listTerminated();
+		times[0] = (System.nanoTime() - start) / 1e6 / ITERATIONS;
+		
+		start = System.nanoTime();
+		for (int i=0; i<ITERATIONS; i++) glideins.list(listRequest("user"+(i%USERS)));
+		times[1] = (System.nanoTime() - start) / 1e6 / ITERATIONS;
+		
+		start = System.nanoTime();
+		for (int i=0; i<ITERATIONS; i++) sites.hasGlideins(1+(i%SITES));
+		times[2] = (System.nanoTime() - start) / 1e6 / ITERATIONS;
+		
+		start = System.nanoTime();
+		for (int i=0; i<ITERATIONS; i++) sites.getGlideinIds(1+(i%SITES));
+		times[3] = (System.nanoTime() - start) / 1e6 / ITERATIONS;
+		
+		start = System.nanoTime();
+		for (int i=0; i<ITERATIONS; i++) sites.list(listRequest("user"+(i%USERS)));
+		times[4] = (System.nanoTime() - start) / 1e6 / ITERATIONS;
+		
+		return times;
+	}
+	
+	private ListRequest listRequest(String user) {
+		ListRequest request = new ListRequest();
+		request.setUser(user);
+		return request;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: SQLiteDAOBenchmark SCHEMA_FILE [GLIDEINS]");
+			System.exit(1);
+		}
+		int glideins = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		
+		File file = File.createTempFile("corral", ".db");
+		file.delete();
+		file.deleteOnExit();
+		
+		SQLiteDatabase db = new SQLiteDatabase();
+		db.setDatabaseFile(file.getAbsolutePath());
+		db.setSchemaFile(new File(args[0]).getAbsolutePath());
+		db.setAutoInstall(true);
+		db.initialize();
+		
+		SQLiteDAOBenchmark benchmark = new SQLiteDAOBenchmark(db);
+		System.out.println("Seeding "+glideins+" glideins");
+		benchmark.seed(glideins);
+		
+		double[] indexed = benchmark.run();
+		benchmark.dropIndexes();
+		double[] scanned = benchmark.run();
+		
+		String[] names = {
+			"GlideinDAO.listTerminated", "GlideinDAO.list(user)",
+			"SiteDAO.hasGlideins", "SiteDAO.getGlideinIds", 
+			"SiteDAO.list(user)"
+		};
+		System.out.println(String.format("%-28s %12s %12s", 
+				"query", "no index ms", "index ms"));
+		for (int i=0; i<names.length; i++) {
+			System.out.println(String.format("%-28s %12.2f %12.2f", 
+					names[i], scanned[i], indexed[i]));
+		}
+		
+		db.getPool().close();
+		file.delete();
+	}
+}
@@ -198,7 +198,7 @@ public class SQLiteDatabase extends SQLDatabase implements Initializable {
 		return "jdbc:sqlite:"+getDatabaseFile();
 	}
 	
-	public Connection getConnection() throws DatabaseException {
+	protected Connection createConnection() throws DatabaseException {
 		try {
 			Connection conn = DriverManager.getConnection(getURL());
 			conn.setAutoCommit(false);
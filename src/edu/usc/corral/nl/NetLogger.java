@@ -17,26 +17,75 @@ package edu.usc.corral.nl;
 
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
+import org.apache.log4j.Logger;
+
 import edu.usc.corral.config.Initializable;
 import edu.usc.corral.config.Registry;
 
 /**
  * Simple class to log messages in NetLogger format.
+ * 
+ * Events are formatted by the caller and put in a fixed-size buffer. A 
+ * background thread writes them to a log file that is kept open. If the
+ * buffer is full because the disk cannot keep up, then new events are 
+ * dropped rather than blocking the caller.
+ * 
+ * The log is rotated when it grows larger than maxFileSize or is older
+ * than rotateInterval. Rotated logs are renamed logFile.1, logFile.2, etc.
+ * and at most maxBackups of them are kept.
  */
 public class NetLogger implements Initializable {
+	private static final Logger logger = Logger.getLogger(NetLogger.class);
+	
+	private static final ThreadLocal<SimpleDateFormat> tsFormat = 
+		new ThreadLocal<SimpleDateFormat>() {
+		protected SimpleDateFormat initialValue() {
+			SimpleDateFormat format = 
+				new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+			format.setTimeZone(TimeZone.getTimeZone("GMT"));
+			return format;
+		}
+	};
 	
 	private boolean initialized = false;
 	private File logFile;
-	private SimpleDateFormat tsFormat;
 	private Pattern space;
 	
+	private int bufferSize = 8192;
+	private long flushInterval = 1000; // 1 sec
+	private long maxFileSize = 100L*1024L*1024L; // 100 MB
+	private long rotateInterval = 0; // never
+	private int maxBackups = 5;
+	
+	private ArrayBlockingQueue<String> buffer;
+	private Thread writerThread;
+	private volatile boolean closed = false;
+	
+	/* State of the writer thread */
+	private Writer writer;
+	private long fileSize;
+	private long fileOpened;
+	
+	/* Metrics */
+	private AtomicLong logged = new AtomicLong();
+	private AtomicLong dropped = new AtomicLong();
+	private AtomicLong written = new AtomicLong();
+	private AtomicLong rotations = new AtomicLong();
+	
 	public NetLogger() { }
 	
 	public void initialize() throws Exception {
@@ -46,11 +95,20 @@ public class NetLogger implements Initializable {
 			
 			createLogFile();
 			
-			tsFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-			tsFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
-			
 			space = Pattern.compile("\\s");
 			
+			buffer = new ArrayBlockingQueue<String>(bufferSize);
+			writerThread = new Thread(new LogWriter(), "NetLoggerWriter");
+			writerThread.setDaemon(true);
+			writerThread.start();
+			
+			// Write out anything that is buffered when the server exits
+			Runtime.getRuntime().addShutdownHook(new Thread("NetLoggerShutdown") {
+				public void run() {
+					close();
+				}
+			});
+			
 			initialized = true;
 		}
 	}
@@ -91,37 +149,251 @@ public class NetLogger implements Initializable {
 		}
 	}
 	
-	public synchronized void log(NetLoggerEvent event) {
-		try {
-			// Open log
-			BufferedWriter writer = new BufferedWriter(new FileWriter(logFile, true));
-			
-			// Write formatted message
-			writer.write("ts="+tsFormat.format(event.getTimeStamp()));
-			writer.write(" event="+event.getEvent());
-			for (String key : event.keySet()) {
-				Object obj = event.get(key);
-				if (obj == null) {
-					continue;
-				} else if (obj instanceof Calendar) {
-					String value = tsFormat.format(((Calendar)obj).getTime());
-					writer.write(" "+key+"="+value);
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+	
+	public int getBufferSize() {
+		return bufferSize;
+	}
+	
+	public void setFlushInterval(long flushInterval) {
+		this.flushInterval = flushInterval;
+	}
+	
+	public long getFlushInterval() {
+		return flushInterval;
+	}
+	
+	public void setMaxFileSize(long maxFileSize) {
+		this.maxFileSize = maxFileSize;
+	}
+	
+	public long getMaxFileSize() {
+		return maxFileSize;
+	}
+	
+	public void setRotateInterval(long rotateInterval) {
+		this.rotateInterval = rotateInterval;
+	}
+	
+	public long getRotateInterval() {
+		return rotateInterval;
+	}
+	
+	public void setMaxBackups(int maxBackups) {
+		this.maxBackups = maxBackups;
+	}
+	
+	public int getMaxBackups() {
+		return maxBackups;
+	}
+	
+	/**
+	 * Queue an event to be written to the log. This does not block. If 
+	 * the buffer is full the event is dropped.
+	 */
+	public void log(NetLoggerEvent event) {
+		if (closed) {
+			dropped.incrementAndGet();
+			return;
+		}
+		logged.incrementAndGet();
+		if (!buffer.offer(format(event))) {
+			long n = dropped.getAndIncrement();
+			if (n % 1000 == 0) {
+				logger.warn("NetLogger buffer is full: "+(n+1)+" events dropped");
+			}
+		}
+	}
+	
+	private String format(NetLoggerEvent event) {
+		SimpleDateFormat format = tsFormat.get();
+		StringBuilder buf = new StringBuilder(256);
+		buf.append("ts=").append(format.format(event.getTimeStamp()));
+		buf.append(" event=").append(event.getEvent());
+		for (String key : event.keySet()) {
+			Object obj = event.get(key);
+			if (obj == null) {
+				continue;
+			} else if (obj instanceof Calendar) {
+				String value = format.format(((Calendar)obj).getTime());
+				buf.append(" ").append(key).append("=").append(value);
+			} else {
+				String value = obj.toString();
+				if (space.matcher(value).find()) {
+					buf.append(" ").append(key).append("=\"").append(value).append("\"");
 				} else {
-					String value = obj.toString();
-					if (space.matcher(value).find()) {
-						writer.write(" "+key+"=\""+value+"\"");
-					} else {
-						writer.write(" "+key+"="+value);
-					}
+					buf.append(" ").append(key).append("=").append(value);
 				}
 			}
-			writer.write("\n");
-			
-			// Close log
+		}
+		buf.append("\n");
+		return buf.toString();
+	}
+	
+	/**
+	 * Stop accepting events and wait for the buffered events to be written.
+	 */
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		writerThread.interrupt();
+		try {
+			writerThread.join(10000);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/** @return The number of events logged */
+	public long getLogged() {
+		return logged.get();
+	}
+	
+	/** @return The number of events dropped because the buffer was full */
+	public long getDropped() {
+		return dropped.get();
+	}
+	
+	/** @return The number of events written to the log file */
+	public long getWritten() {
+		return written.get();
+	}
+	
+	/** @return The number of times the log was rotated */
+	public long getRotations() {
+		return rotations.get();
+	}
+	
+	/** @return The number of events waiting to be written */
+	public int getBuffered() {
+		return buffer.size();
+	}
+	
+	public String toString() {
+		return "logged="+getLogged()+" written="+getWritten()+
+			" dropped="+getDropped()+" buffered="+getBuffered()+
+			" rotations="+getRotations();
+	}
+	
+	private void open() throws IOException {
+		writer = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(logFile, true)), 65536);
+		fileSize = logFile.length();
+		fileOpened = System.currentTimeMillis();
+	}
+	
+	private void closeWriter() {
+		if (writer == null)
+			return;
+		try {
 			writer.close();
 		} catch (IOException ioe) {
-			throw new RuntimeException(
-					"Unable to log event: "+event.getEvent(),ioe);
+			logger.warn("Unable to close netlogger file", ioe);
+		}
+		writer = null;
+	}
+	
+	private boolean shouldRotate() {
+		if (maxFileSize > 0 && fileSize >= maxFileSize)
+			return true;
+		if (rotateInterval > 0 && fileSize > 0 &&
+				System.currentTimeMillis() - fileOpened >= rotateInterval)
+			return true;
+		return false;
+	}
+	
+	/**
+	 * Rename logFile to logFile.1, logFile.1 to logFile.2, etc.
+	 */
+	private void rotate() throws IOException {
+		closeWriter();
+		if (maxBackups > 0) {
+			String name = logFile.getPath();
+			new File(name+"."+maxBackups).delete();
+			for (int i=maxBackups-1; i>=1; i--) {
+				File backup = new File(name+"."+i);
+				if (backup.exists()) {
+					backup.renameTo(new File(name+"."+(i+1)));
+				}
+			}
+			if (!logFile.renameTo(new File(name+".1"))) {
+				throw new IOException("Unable to rotate netlogger file: "+name);
+			}
+		} else {
+			logFile.delete();
+		}
+		rotations.incrementAndGet();
+		open();
+	}
+	
+	private void write(List<String> batch) throws IOException {
+		if (writer == null) {
+			open();
+		}
+		for (String line : batch) {
+			if (shouldRotate()) {
+				rotate();
+			}
+			writer.write(line);
+			fileSize += line.length();
+			written.incrementAndGet();
+		}
+	}
+	
+	private class LogWriter implements Runnable {
+		public void run() {
+			List<String> batch = new ArrayList<String>();
+			long lastFlush = System.currentTimeMillis();
+			boolean dirty = false;
+			while (true) {
+				try {
+					// Wait for events, but wake up in time to flush
+					String line = null;
+					try {
+						if (closed) {
+							line = buffer.poll();
+						} else {
+							long wait = dirty ? 
+									Math.max(1, flushInterval - 
+										(System.currentTimeMillis()-lastFlush)) : 
+									Long.MAX_VALUE;
+							line = buffer.poll(wait, TimeUnit.MILLISECONDS);
+						}
+					} catch (InterruptedException ie) {
+						// close() was called
+					}
+					
+					if (line != null) {
+						batch.add(line);
+						buffer.drainTo(batch);
+						write(batch);
+						batch.clear();
+						dirty = true;
+					}
+					
+					long now = System.currentTimeMillis();
+					if (dirty && (line == null || 
+							now - lastFlush >= flushInterval)) {
+						writer.flush();
+						lastFlush = now;
+						dirty = false;
+					}
+					
+					if (closed && line == null) {
+						closeWriter();
+						return;
+					}
+				} catch (IOException ioe) {
+					logger.error("Unable to write netlogger events", ioe);
+					dropped.addAndGet(batch.size());
+					batch.clear();
+					dirty = false;
+					closeWriter();
+				}
+			}
 		}
 	}
 	
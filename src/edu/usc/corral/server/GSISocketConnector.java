@@ -19,6 +19,12 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
 
 import org.globus.common.ChainedIOException;
 import org.globus.gsi.GlobusCredential;
@@ -29,7 +35,6 @@ import org.globus.gsi.gssapi.GlobusGSSCredentialImpl;
 import org.globus.gsi.gssapi.net.GssOutputStream;
 import org.globus.gsi.gssapi.net.GssSocket;
 import org.globus.gsi.gssapi.net.impl.GSIGssSocket;
-import org.globus.security.gridmap.GridMap;
 import org.gridforum.jgss.ExtendedGSSContext;
 import org.gridforum.jgss.ExtendedGSSManager;
 import org.ietf.jgss.GSSCredential;
@@ -42,9 +47,29 @@ import org.mortbay.jetty.bio.SocketConnector;
 
 import edu.usc.corral.config.ServerConfiguration;
 
+/**
+ * A Jetty connector for GSI. The acceptor thread only accepts connections.
+ * The GSI handshake is done by a thread from the server's thread pool, 
+ * which then serves requests on the connection for as long as the client 
+ * keeps it open. Handshakes that take longer than handshakeTimeout are 
+ * aborted.
+ */
 public class GSISocketConnector extends SocketConnector {
+	private static final Logger logger = Logger.getLogger(GSISocketConnector.class);
+	
+	/** Closes connections whose handshake takes too long */
+	private static final Timer WATCHDOG = new Timer("HandshakeWatchdog", true);
 	
 	private ServerConfiguration config;
+	private GSSManager manager = ExtendedGSSManager.getInstance();
+	private GSSCredential credentials;
+	private TrustedCertificates trustedCerts;
+	
+	/* Metrics */
+	private AtomicLong handshakes = new AtomicLong();
+	private AtomicLong handshakeFailures = new AtomicLong();
+	private AtomicLong handshakeTimeouts = new AtomicLong();
+	private AtomicLong handshakeTime = new AtomicLong();
 	
 	public GSISocketConnector(ServerConfiguration config) {
 		super();
@@ -80,9 +105,7 @@ public class GSISocketConnector extends SocketConnector {
 			request.setAttribute(GSIAttributes.GSI_CREDENTIALS, cred);
 			
 			// Username
-			GridMap gridMap = config.getGridMap();
-			gridMap.refresh();
-	        String username = gridMap.getUserID(userDN);
+	        String username = config.getGridMap().getUserID(userDN);
 	        request.setAttribute(GSIAttributes.GSI_AUTH_USERNAME, username);
 		} catch (GSSException e) {
 			IOException i = new IOException("Error setting GSI request attributes");
@@ -96,11 +119,9 @@ public class GSISocketConnector extends SocketConnector {
 	 */
 	protected ServerSocket newServerSocket(String x, int y, int z) throws IOException {
 		
-		GSSCredential gssCred = null;
-        GlobusCredential cred = null;
-
         // Load credentials
         try {
+        	GlobusCredential cred = null;
         	String proxy = config.getProxy();
         	String certificate = config.getCertificate();
         	String key = config.getKey();
@@ -111,7 +132,7 @@ public class GSISocketConnector extends SocketConnector {
             }
             
             if (cred != null) {
-                gssCred = new GlobusGSSCredentialImpl(cred, GSSCredential.ACCEPT_ONLY);
+                credentials = new GlobusGSSCredentialImpl(cred, GSSCredential.ACCEPT_ONLY);
             }
         } catch (GlobusCredentialException e) {
             throw new ChainedIOException("Failed to load server credentials", e);
@@ -120,83 +141,163 @@ public class GSISocketConnector extends SocketConnector {
         }
 
         // Get trusted certificates
-        TrustedCertificates trustedCerts = null;
         if (config.getCacertdir() != null) {
             trustedCerts = TrustedCertificates.load(config.getCacertdir());
         }
         
         InetAddress addr = config.getHost() == null ? null : InetAddress.getByName(config.getHost());
-
-        GSIServerSocket serverSocket = new GSIServerSocket(config.getPort(), config.getBacklog(), addr);
-        serverSocket.setCredentials(gssCred);
-        serverSocket.setTrustedCertificates(trustedCerts);
         
-        return serverSocket;
+        // The GSI handshake is done by the connection threads, not here
+        return new ServerSocket(config.getPort(), config.getBacklog(), addr);
 	}
 	
-	private class GSIServerSocket extends ServerSocket {
-        protected TrustedCertificates _trustedCerts;
-        private GSSCredential _credentials;
-        private GSSManager _manager;
-        
-        protected GSIServerSocket(int port, int backlog, InetAddress bindAddr) throws IOException {
-            super(port, backlog, bindAddr);
-            this._manager = ExtendedGSSManager.getInstance();
-        }
-        
-        public void setTrustedCertificates(TrustedCertificates trustedCerts) {
-            this._trustedCerts = trustedCerts;
-        }
-
-        public void setCredentials(GSSCredential creds) {
-            this._credentials = creds;
-        }
-
-        public Socket accept() throws IOException {
-            try {
-            	Socket s = super.accept();
-                ExtendedGSSContext context = (ExtendedGSSContext)_manager.createContext(_credentials);
-                
-                // Tells if the connection is encrypted
-                context.requestConf(config.isRequestEncryption());
-                
-                context.setOption(GSSConstants.GSS_MODE, config.getGssMode());
-                
-                if(config.isAnonymousAllowed()) {
-                	// Allow anonymous connections
-                	context.setOption(GSSConstants.REQUIRE_CLIENT_AUTH, Boolean.FALSE);
-                	context.setOption(GSSConstants.ACCEPT_NO_CLIENT_CERTS, Boolean.TRUE);
-            	} else {
-                	// Clients must authenticate with a certificate
-            		context.setOption(GSSConstants.REQUIRE_CLIENT_AUTH, Boolean.TRUE);
-                	context.setOption(GSSConstants.ACCEPT_NO_CLIENT_CERTS, Boolean.FALSE);
-            	}
-                
-                // Only trust clients presenting certs from these authorities
-                if (_trustedCerts != null) {
-                	context.setOption(GSSConstants.TRUSTED_CERTIFICATES, _trustedCerts);
-                }
-                
-                GSIGssSocket gs = new GSIGssSocket(s, context);
-	            
-	         	// This means its a server socket
-	            gs.setUseClientMode(false); 
-	            
-	            // No idea what this does, but its configurable
-	            gs.setWrapMode(config.getWrapMode());
-	            
-	            // We will authorize clients using the grid-mapfile
-	            gs.setAuthorization(config.getAuthorization());
-	            
-	            // THIS IS REQUIRED
-	            ((GssOutputStream)gs.getOutputStream()).setAutoFlush(true);
-	            
-	            return gs;
-            } catch (GSSException e) {
-                throw new ChainedIOException("Failed to init GSS context", e);
+	/**
+	 * Accept a connection and hand it to the thread pool. The acceptor
+	 * thread does not wait for the GSI handshake, so slow clients do not
+	 * hold up other clients.
+	 */
+	public void accept(int acceptorID) throws IOException, InterruptedException {
+		Socket socket = _serverSocket.accept();
+		if (!getThreadPool().dispatch(new Handshake(socket))) {
+			logger.warn("No threads available to handle connection from "+
+					socket.getInetAddress());
+			closeQuietly(socket);
+		}
+	}
+	
+	private GssSocket newGssSocket(Socket s) throws IOException {
+		try {
+            ExtendedGSSContext context = (ExtendedGSSContext)manager.createContext(credentials);
+            
+            // Tells if the connection is encrypted
+            context.requestConf(config.isRequestEncryption());
+            
+            context.setOption(GSSConstants.GSS_MODE, config.getGssMode());
+            
+            if(config.isAnonymousAllowed()) {
+            	// Allow anonymous connections
+            	context.setOption(GSSConstants.REQUIRE_CLIENT_AUTH, Boolean.FALSE);
+            	context.setOption(GSSConstants.ACCEPT_NO_CLIENT_CERTS, Boolean.TRUE);
+        	} else {
+            	// Clients must authenticate with a certificate
+        		context.setOption(GSSConstants.REQUIRE_CLIENT_AUTH, Boolean.TRUE);
+            	context.setOption(GSSConstants.ACCEPT_NO_CLIENT_CERTS, Boolean.FALSE);
+        	}
+            
+            // Only trust clients presenting certs from these authorities
+            if (trustedCerts != null) {
+            	context.setOption(GSSConstants.TRUSTED_CERTIFICATES, trustedCerts);
             }
+            
+            GSIGssSocket gs = new GSIGssSocket(s, context);
+            
+         	// This means its a server socket
+            gs.setUseClientMode(false); 
+            
+            // No idea what this does, but its configurable
+            gs.setWrapMode(config.getWrapMode());
+            
+            // We will authorize clients using the grid-mapfile
+            gs.setAuthorization(config.getAuthorization());
+            
+            return gs;
+        } catch (GSSException e) {
+            throw new ChainedIOException("Failed to init GSS context", e);
         }
-    }
+	}
+	
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException ioe) {
+			/* Ignore */
+		}
+	}
+	
+	/**
+	 * Does the GSI handshake for a new connection and then serves its
+	 * requests until the client closes it or it is idle for maxIdleTime.
+	 */
+	private class Handshake implements Runnable {
+		private Socket socket;
+		private volatile boolean timedOut = false;
+		
+		public Handshake(Socket socket) {
+			this.socket = socket;
+		}
+		
+		public void run() {
+			long start = System.currentTimeMillis();
+			int timeout = config.getHandshakeTimeout();
+			
+			// Close the socket if the handshake takes too long
+			TimerTask watchdog = new TimerTask() {
+				public void run() {
+					timedOut = true;
+					closeQuietly(socket);
+				}
+			};
+			
+			GssSocket gs;
+			try {
+				socket.setSoTimeout(timeout);
+				if (timeout > 0) {
+					WATCHDOG.schedule(watchdog, timeout);
+				}
+				
+				gs = newGssSocket(socket);
+				gs.startHandshake();
+				
+				// THIS IS REQUIRED
+				((GssOutputStream)gs.getOutputStream()).setAutoFlush(true);
+			} catch (IOException ioe) {
+				if (timedOut || ioe instanceof SocketTimeoutException) {
+					handshakeTimeouts.incrementAndGet();
+					logger.warn("GSI handshake with "+socket.getInetAddress()+
+							" timed out after "+timeout+" ms");
+				} else {
+					handshakeFailures.incrementAndGet();
+					logger.warn("GSI handshake with "+socket.getInetAddress()+
+							" failed: "+ioe.getMessage());
+				}
+				closeQuietly(socket);
+				return;
+			} finally {
+				watchdog.cancel();
+			}
+			handshakes.incrementAndGet();
+			handshakeTime.addAndGet(System.currentTimeMillis() - start);
+			
+			try {
+				// Sets the idle timeout used for keep-alive
+				configure(gs);
+				new Connection(gs).run();
+			} catch (IOException ioe) {
+				logger.warn("Unable to handle connection", ioe);
+				closeQuietly(gs);
+			}
+		}
+	}
+	
+	/** @return The number of successful GSI handshakes */
+	public long getHandshakes() {
+		return handshakes.get();
+	}
+	
+	/** @return The number of GSI handshakes that failed */
+	public long getHandshakeFailures() {
+		return handshakeFailures.get();
+	}
+	
+	/** @return The number of GSI handshakes that timed out */
+	public long getHandshakeTimeouts() {
+		return handshakeTimeouts.get();
+	}
+	
+	/** @return The total time spent in successful GSI handshakes (ms) */
+	public long getHandshakeTime() {
+		return handshakeTime.get();
+	}
 	
 	public String toString() {
 		if (_serverSocket != null) {
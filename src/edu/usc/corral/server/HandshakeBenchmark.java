@@ -0,0 +1,130 @@
+/*
+ *  Copyright 2007-2009 University Of Southern California
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.usc.corral.server;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.mortbay.jetty.Connector;
+import org.mortbay.jetty.servlet.Context;
+import org.mortbay.jetty.servlet.ServletHolder;
+
+import edu.usc.corral.api.Client;
+import edu.usc.corral.config.ClientConfiguration;
+import edu.usc.corral.config.ServerConfiguration;
+import edu.usc.corral.types.ListRequest;
+import edu.usc.corral.types.VoidResponse;
+
+/**
+ * Measures the cost of a request with and without reusing GSI sessions.
+ * It starts a server with a servlet that does nothing, and then sends
+ * requests from a new Client each time, first with session reuse disabled
+ * so that every request does a GSI handshake, and then with it enabled.
+ * 
+ * All the clients run in this JVM, so the reused case is what a 
+ * long-running API user sees. A command-line tool runs in a new JVM for
+ * each command and costs the same as the handshake per request case.
+ * 
+ * The client uses the default proxy (X509_USER_PROXY) and trusted 
+ * certificates (X509_CERT_DIR).
+ * 
+ * Usage: HandshakeBenchmark CERT KEY CACERTDIR [REQUESTS]
+ */
+public class HandshakeBenchmark {
+	
+	private static class NullServlet extends HttpServlet {
+		private static final long serialVersionUID = 1L;
+		protected void doPost(HttpServletRequest req, HttpServletResponse resp) 
+		throws IOException {
+			resp.setContentType("text/xml");
+			resp.getWriter().write("<voidResponse/>");
+		}
+	}
+	
+	private static double run(int port, int requests, boolean reuse) throws Exception {
+		ClientConfiguration config = ClientConfiguration.getDefault();
+		config.setAuthorization("none");
+		config.setSessionReuse(reuse);
+		
+		// Warm up
+		request(port, config);
+		
+		long start = System.nanoTime();
+		for (int i=0; i<requests; i++) {
+			request(port, config);
+		}
+		return (System.nanoTime() - start) / 1e6 / requests;
+	}
+	
+	private static void request(int port, ClientConfiguration config) throws Exception {
+		Client client = new Client("localhost", port);
+		client.setConfiguration(config);
+		try {
+			client.doPost("/null", VoidResponse.class, new ListRequest());
+		} finally {
+			client.close();
+		}
+	}
+	
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: HandshakeBenchmark CERT KEY CACERTDIR [REQUESTS]");
+			System.exit(1);
+		}
+		int requests = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+		
+		ServerConfiguration config = new ServerConfiguration();
+		config.setCertificate(args[0]);
+		config.setKey(args[1]);
+		config.setCacertdir(args[2]);
+		config.setHost("localhost");
+		config.setPort(0);
+		File gridMapfile = File.createTempFile("grid-mapfile", null);
+		gridMapfile.deleteOnExit();
+		config.setGridMapfile(gridMapfile.getPath());
+		config.initialize();
+		
+		GSISocketConnector connector = new GSISocketConnector(config);
+		org.mortbay.jetty.Server server = new org.mortbay.jetty.Server();
+		server.setConnectors(new Connector[] { connector });
+		Context root = new Context(server, "/", Context.NO_SESSIONS);
+		root.addServlet(new ServletHolder(new NullServlet()), "/*");
+		server.start();
+		
+		try {
+			int port = connector.getLocalPort();
+			double handshake = run(port, requests, false);
+			long before = connector.getHandshakes();
+			double reuse = run(port, requests, true);
+			long after = connector.getHandshakes();
+			
+			System.out.println(String.format("%-24s %12s", "client", "ms/request"));
+			System.out.println(String.format("%-24s %12.2f", "handshake per request", handshake));
+			System.out.println(String.format("%-24s %12.2f", "reused (same JVM)", reuse));
+			System.out.println("Handshakes with reused sessions: "+(after-before)+
+					" for "+(requests+1)+" requests");
+			System.out.println("Average handshake time: "+
+					(connector.getHandshakeTime()/connector.getHandshakes())+" ms");
+		} finally {
+			Client.closeSessions();
+			server.stop();
+		}
+	}
+}
@@ -20,6 +20,7 @@ import java.io.File;
 import org.mortbay.jetty.Connector;
 import org.mortbay.jetty.servlet.Context;
 import org.mortbay.jetty.servlet.ServletHolder;
+import org.mortbay.thread.QueuedThreadPool;
 
 import edu.usc.corral.config.ConfigReader;
 import edu.usc.corral.config.ServerConfiguration;
@@ -59,8 +60,15 @@ public class Server {
 		Connector connector = new GSISocketConnector(config);
 		
 		connector.setHost(null);
+		connector.setMaxIdleTime(config.getMaxIdleTime());
+		
+		// Connections are handled, including the GSI handshake, by these threads
+		QueuedThreadPool threadPool = new QueuedThreadPool();
+		threadPool.setMaxThreads(config.getMaxThreads());
+		threadPool.setName("Connection");
 		
 		org.mortbay.jetty.Server server = new org.mortbay.jetty.Server();
+		server.setThreadPool(threadPool);
 		server.setConnectors(new Connector[] { connector });
 		server.setSendServerVersion(false);
 		server.setSendDateHeader(false);
@@ -22,6 +22,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Date;
+import java.util.concurrent.Callable;
 
 import org.apache.log4j.Logger;
 import org.globus.gsi.GlobusCredential;
@@ -29,22 +30,28 @@ import org.globus.gsi.GlobusCredential;
 import edu.usc.corral.api.GlideinException;
 import edu.usc.corral.condor.Condor;
 import edu.usc.corral.condor.CondorEventGenerator;
+import edu.usc.corral.condor.CondorLogCheckpoint;
 import edu.usc.corral.condor.CondorException;
 import edu.usc.corral.condor.CondorGridType;
 import edu.usc.corral.condor.CondorJob;
+import edu.usc.corral.condor.CondorSubmitter;
 import edu.usc.corral.condor.CondorUniverse;
 import edu.usc.corral.config.ConfigurationException;
 import edu.usc.corral.db.Database;
 import edu.usc.corral.db.DatabaseException;
 import edu.usc.corral.db.GlideinDAO;
+import edu.usc.corral.db.StateJournal;
+import edu.usc.corral.db.StateUpdate;
 import edu.usc.corral.nl.NetLogger;
 import edu.usc.corral.nl.NetLoggerEvent;
 import edu.usc.corral.nl.NetLoggerException;
+import edu.usc.corral.service.state.AdmissionController;
 import edu.usc.corral.service.state.Event;
 import edu.usc.corral.service.state.EventQueue;
 import edu.usc.corral.service.state.GlideinEvent;
 import edu.usc.corral.service.state.GlideinEventCode;
 import edu.usc.corral.service.state.GlideinListener;
+import edu.usc.corral.service.state.ResourceCleaner;
 import edu.usc.corral.service.state.SiteEvent;
 import edu.usc.corral.service.state.SiteEventCode;
 import edu.usc.corral.types.EnvironmentVariable;
@@ -57,6 +64,7 @@ import edu.usc.corral.types.SiteState;
 import edu.usc.corral.util.CredentialUtil;
 import edu.usc.corral.util.FilesystemUtil;
 import edu.usc.corral.util.IOUtil;
+import edu.usc.corral.util.ProcessRunner;
 import edu.usc.corral.util.ServiceUtil;
 
 public class GlideinResource implements Resource {
@@ -124,17 +132,36 @@ public class GlideinResource implements Resource {
 	private void updateState(GlideinState state, String shortMessage, String longMessage, Date time) throws GlideinException {
 		info("Changing state to "+state+": "+shortMessage);
 		
+		// Give up the glidein's submission slot or place in line
+		GlideinState previous = glidein.getState();
+		if ((GlideinState.SUBMITTED.equals(previous) ||
+				GlideinState.WAITING.equals(previous)) &&
+				!state.equals(previous) && 
+				!GlideinState.SUBMITTED.equals(state)) {
+			releaseSlot();
+		}
+		
 		// Update object
 		glidein.setState(state);
 		glidein.setShortMessage(shortMessage);
 		glidein.setLongMessage(longMessage);
 		glidein.setLastUpdate(time);
 		
-		// Update database
+		// Update database. The change is written behind, but we wait 
+		// a little while for terminal states to be made durable. If the 
+		// database is down we don't hold up the event thread, the journal
+		// keeps retrying.
 		try {
-			Database db = Database.getDatabase();
-			GlideinDAO dao = db.getGlideinDAO();
-			dao.updateState(glidein.getId(), state, shortMessage, longMessage, time);
+			StateJournal journal = StateJournal.getInstance();
+			StateUpdate<GlideinState> update = journal.updateGlideinState(
+					glidein.getId(), state, shortMessage, longMessage, time);
+			if (GlideinState.FINISHED.equals(state) || 
+					GlideinState.FAILED.equals(state)) {
+				if (!journal.await(update)) {
+					warn("State change to "+state+" not written yet");
+				}
+				scheduleCleanup();
+			}
 		} catch(DatabaseException de) {
 			throw new GlideinException("Unable to update state to "+state,de);
 		}
@@ -186,6 +213,7 @@ public class GlideinResource implements Resource {
 			job.setGridType(CondorGridType.GT4);
 		}
 		job.setGridContact(glideinService.getServiceContact());
+		job.setPollInterval(glideinService);
 		
 		// Set rsl/xml
 		StringBuilder rsl = new StringBuilder();
@@ -309,35 +337,61 @@ public class GlideinResource implements Resource {
 		// Add a listener
 		job.addListener(new GlideinListener(glidein.getId()));
 		
-		// Submit job
+		// Increment the number of submits
 		try {
-			Condor condor = Condor.getInstance();
-			condor.submitJob(job);
-		} catch (CondorException ce) {
-			throw new GlideinException("Unable to submit glidein job",ce);
+			StateJournal journal = StateJournal.getInstance();
+			journal.incrementSubmits(glidein.getId());
+			glidein.setSubmits(glidein.getSubmits()+1);
+		} catch(DatabaseException de) {
+			throw new GlideinException("Unable to increment submits",de);
 		}
 		
-		// Log the condor job id in netlogger
+		// Submit job. The job is submitted in a batch with other 
+		// glideins and the result is reported to the callback.
 		try {
-			NetLoggerEvent event = new NetLoggerEvent("glidein.submit");
-			event.put("glidein.id", glidein.getId());
-			event.put("site.id", site.getId());
-			event.put("condor.id", job.getJobId());
-			
-			NetLogger netlogger = NetLogger.getLog();
-			netlogger.log(event);
-		} catch (NetLoggerException nle) {
-			warn("Unable to log glidein event to NetLogger log",nle);
+			CondorSubmitter submitter = CondorSubmitter.getInstance();
+			submitter.submit(job, new SubmitCallback());
+		} catch (CondorException ce) {
+			throw new GlideinException("Unable to submit glidein job",ce);
+		}
+	}
+	
+	/**
+	 * Logs the condor job ID when the glidein job is submitted, and fails
+	 * the glidein if the submission fails.
+	 */
+	private class SubmitCallback implements CondorSubmitter.Callback {
+		public void submitted(CondorJob job) {
+			// Log the condor job id in netlogger
+			try {
+				NetLoggerEvent event = new NetLoggerEvent("glidein.submit");
+				event.put("glidein.id", glidein.getId());
+				event.put("site.id", glidein.getSiteId());
+				event.put("condor.id", job.getJobId());
+				
+				NetLogger netlogger = NetLogger.getLog();
+				netlogger.log(event);
+			} catch (NetLoggerException nle) {
+				warn("Unable to log glidein event to NetLogger log",nle);
+			}
 		}
 		
-		// Increment the number of submits
+		public void failed(CondorJob job, CondorException exception) {
+			// Fail the glidein
+			queueJobFailure("Unable to submit glidein job", exception);
+		}
+	}
+	
+	private void queueJobFailure(String message, Exception exception) {
 		try {
-			Database db = Database.getDatabase();
-			GlideinDAO dao = db.getGlideinDAO();
-			dao.incrementSubmits(glidein.getId());
-			glidein.setSubmits(glidein.getSubmits()+1);
-		} catch(DatabaseException de) {
-			throw new GlideinException("Unable to load glidein",de);
+			Event event = new GlideinEvent(GlideinEventCode.JOB_FAILURE,
+					new Date(), glidein.getId());
+			event.setProperty("message", message);
+			event.setProperty("exception", exception);
+			EventQueue queue = EventQueue.getInstance();
+			queue.add(event);
+		} catch (ConfigurationException ne) {
+			error("Unable to get event queue",ne);
 		}
 	}
 	
@@ -371,36 +425,96 @@ public class GlideinResource implements Resource {
 		}
 	}
 	
-	private void cancelGlideinJob() throws GlideinException {
+	/**
+	 * Cancel the glidein job if it has not been submitted to condor yet.
+	 * @return REMOVED if the job will never be submitted, CANCELLED if 
+	 * the submitter will remove it, or NOT_PENDING if it was already 
+	 * submitted and must be removed with cancelGlideinJob()
+	 */
+	private CondorSubmitter.Cancel cancelSubmission() throws GlideinException {
+		try {
+			return CondorSubmitter.getInstance().cancel(getJobDirectory());
+		} catch (CondorException ce) {
+			throw new GlideinException("Unable to get condor submitter",ce);
+		}
+	}
+	
+	/**
+	 * Cancel the glidein job. The job id is read in the calling thread,
+	 * but condor_rm is run in the background so that it does not hold up
+	 * the event queue.
+	 * @param failOnError If true, then the glidein fails if condor_rm 
+	 * fails, otherwise the failure is just logged
+	 */
+	private void cancelGlideinJob(final boolean failOnError) 
+	throws GlideinException {
 		info("Cancelling glidein job");
 		
+		final CondorJob job = new CondorJob(getJobDirectory(),
+				glidein.getLocalUsername());
+		job.setJobId(readJobId());
+		
+		// condor_rm job
+		ProcessRunner.getInstance().submit(new Callable<Object>() {
+			public Object call() {
+				try {
+					Condor.getInstance().cancelJob(job);
+				} catch (CondorException ce) {
+					if (failOnError) {
+						queueJobFailure("Unable to cancel glidein job", ce);
+					} else {
+						warn("Unable to cancel glidein job",ce);
+					}
+				}
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Check whether the site has room for the glidein job. If not, the
+	 * glidein is queued and it will get an ADMITTED event later.
+	 * @return true if the glidein job can be submitted now
+	 */
+	private boolean admit() throws GlideinException {
+		Site site = getSiteResource(glidein.getSiteId()).getSite();
 		try {
-			// Find submit dir
-			File dir = getJobDirectory();
-			File jobidFile = new File(dir,"jobid");
-			CondorJob job = new CondorJob(dir,glidein.getLocalUsername());
-			
-			// Read job id from jobid file
-			BufferedReader reader = new BufferedReader(
-					new FileReader(jobidFile));
-			String jobid = reader.readLine();
-			reader.close();
-			job.setJobId(jobid);
-			
-			// condor_rm job
-			Condor.getInstance().cancelJob(job);
-		} catch (IOException ioe) {
-			throw new GlideinException(
-					"Unable to read job id",ioe);
-		} catch (CondorException ce) {
-			throw new GlideinException(
-					"Unable to cancel glidein job",ce);
+			return AdmissionController.getInstance().admit(
+					glidein.getSiteId(), glidein.getId(), 
+					site.getGlideinService());
+		} catch (ConfigurationException ce) {
+			warn("Unable to get admission controller",ce);
+			return true;
+		}
+	}
+	
+	private void releaseSlot() {
+		try {
+			AdmissionController.getInstance().release(
+					glidein.getSiteId(), glidein.getId());
+		} catch (ConfigurationException ce) {
+			warn("Unable to get admission controller",ce);
+		}
+	}
+	
+	private void scheduleCleanup() {
+		try {
+			ResourceCleaner.getInstance().schedule(glidein.getId());
+		} catch (ConfigurationException ce) {
+			warn("Unable to schedule glidein for cleanup",ce);
 		}
 	}
 	
 	private void deleteFromDatabase() throws GlideinException {
 		info("Deleting glidein from database");
+		releaseSlot();
 		try {
+			ResourceCleaner.getInstance().cancel(glidein.getId());
+		} catch (ConfigurationException ce) {
+			warn("Unable to get resource cleaner",ce);
+		}
+		try {
+			StateJournal.getInstance().cancelGlidein(glidein.getId());
 			Database db = Database.getDatabase();
 			GlideinDAO dao = db.getGlideinDAO();
 			dao.delete(glidein.getId());
@@ -508,6 +622,7 @@ public class GlideinResource implements Resource {
 	public synchronized void handleEvent(GlideinEvent event) {
 		try {
 			_handleEvent(event);
+			checkpoint((CondorLogCheckpoint)event.getProperty("checkpoint"));
 		} catch (GlideinException re) {
 			// RemoteException tacks the cause on to the end of
 			// the message. We don't want that in the database.
@@ -549,7 +664,14 @@ public class GlideinResource implements Resource {
 				GlideinState reqd = GlideinState.NEW;
 				if (reqd.equals(state)) {
 					
-					if (siteIsReady()) {
+					if (!siteIsReady()) {
+						
+						// If the site is not ready, we need to wait for it
+						updateState(GlideinState.WAITING, 
+								"Waiting for site to be "+ SiteState.READY, 
+								null,event.getTime());
+						
+					} else if (admit()) {
 						
 						// If the site is ready, submit the glidein job
 						updateState(GlideinState.SUBMITTED,
@@ -558,9 +680,9 @@ public class GlideinResource implements Resource {
 						
 					} else {
 						
-						// Otherwise, we need to wait for the site
+						// Otherwise, wait for the site to have room
 						updateState(GlideinState.WAITING, 
-								"Waiting for site to be "+ SiteState.READY, 
+								"Waiting to be submitted", 
 								null,event.getTime());
 						
 					}
@@ -573,8 +695,9 @@ public class GlideinResource implements Resource {
 			
 			case SITE_READY: {
 				
-				// If we were waiting, then submit the job
-				if (GlideinState.WAITING.equals(state)) {
+				// If we were waiting, then submit the job, unless
+				// the site has no room for it yet
+				if (GlideinState.WAITING.equals(state) && admit()) {
 					updateState(GlideinState.SUBMITTED,
 							"Local job submitted",null,event.getTime());
 					submitGlideinJob();
@@ -582,6 +705,24 @@ public class GlideinResource implements Resource {
 				
 			} break;
 			
+			case ADMITTED: {
+				
+				// The site has room for the glidein now
+				if (GlideinState.WAITING.equals(state)) {
+					if (siteIsReady()) {
+						updateState(GlideinState.SUBMITTED,
+								"Local job submitted",null,event.getTime());
+						submitGlideinJob();
+					} else {
+						// It will ask again when the site is ready
+						releaseSlot();
+					}
+				} else if (!GlideinState.SUBMITTED.equals(state)) {
+					releaseSlot();
+				}
+				
+			} break;
+			
 			case SITE_FAILED: {
 				
 				// If a glidein job has been submitted cancel the job
@@ -589,7 +730,9 @@ public class GlideinResource implements Resource {
 						GlideinState.RUNNING.equals(state) || 
 						GlideinState.QUEUED.equals(state)) {
 					try {
-						cancelGlideinJob();
+						if (cancelSubmission() == CondorSubmitter.Cancel.NOT_PENDING) {
+							cancelGlideinJob(false);
+						}
 					} catch (GlideinException re) {
 						// Just log it so that we can fail properly
 						error("Unable to cancel glidein job",re);
@@ -629,15 +772,33 @@ public class GlideinResource implements Resource {
 			
 			case REMOVE: {
 				
-				if (GlideinState.SUBMITTED.equals(state) || 
+				// The job may still be waiting to be submitted
+				CondorSubmitter.Cancel pending = CondorSubmitter.Cancel.NOT_PENDING;
+				if (GlideinState.SUBMITTED.equals(state)) {
+					pending = cancelSubmission();
+				}
+				
+				if (pending == CondorSubmitter.Cancel.REMOVED) {
+					
+					// The job never reached condor, so just delete it
+					updateState(GlideinState.DELETED,
+							"Glidein deleted",null,event.getTime());
+					delete();
+					
+				} else if (GlideinState.SUBMITTED.equals(state) || 
 						GlideinState.RUNNING.equals(state) || 
 						GlideinState.QUEUED.equals(state)) {
 					
 					updateState(GlideinState.REMOVING, 
 							"Cancelling job",null,event.getTime());
 					
-					// If a glidein job has been submitted cancel the job
-					cancelGlideinJob();
+					// If a glidein job has been submitted cancel the job,
+					// unless the site already cancelled all of its jobs, or
+					// the submitter will remove it when it is submitted
+					if (pending == CondorSubmitter.Cancel.NOT_PENDING &&
+							!Boolean.TRUE.equals(event.getProperty("jobCancelled"))) {
+						cancelGlideinJob(true);
+					}
 					
 					// This will cause an abort event, which will cause
 					// the glidein to be deleted.
@@ -663,9 +824,15 @@ public class GlideinResource implements Resource {
 					if (shouldResubmit() && siteIsReady()) {
 						
 						info("Resubmitting glidein");
-						updateState(GlideinState.SUBMITTED,
-								"Local job submitted",null,event.getTime());
-						submitGlideinJob();
+						if (admit()) {
+							updateState(GlideinState.SUBMITTED,
+									"Local job submitted",null,event.getTime());
+							submitGlideinJob();
+						} else {
+							updateState(GlideinState.WAITING,
+									"Waiting to be resubmitted",
+									null,event.getTime());
+						}
 						
 					} else {
 						
@@ -794,13 +961,35 @@ public class GlideinResource implements Resource {
 			
 		} else if (GlideinState.WAITING.equals(state)) {
 			
-			// If the glidein is waiting for its site, do nothing
+			// If the glidein is waiting for its site, do nothing. If the
+			// site is ready then it was waiting for a submission slot, 
+			// and the admission queue does not survive a restart, so 
+			// ask for a slot again.
+			if (siteIsReady()) {
+				try {
+					EventQueue queue = EventQueue.getInstance();
+					GlideinEvent ready = new GlideinEvent(
+							GlideinEventCode.SITE_READY, 
+							new Date(), glidein.getId());
+					queue.add(ready);
+				} catch (ConfigurationException e) {
+					warn("Unable to queue a site ready event");
+				}
+			}
 			
 		} else if (GlideinState.SUBMITTED.equals(state)) {
 		
 			// If the state is submitted, then the job could be finished,
 			// running, ready, or unready
 			
+			// It still holds a submission slot
+			try {
+				AdmissionController.getInstance().register(
+						glidein.getSiteId(), glidein.getId());
+			} catch (ConfigurationException ce) {
+				warn("Unable to get admission controller",ce);
+			}
+			
 			File jobDir = getJobDirectory();
 			CondorJob job = new CondorJob(jobDir, glidein.getLocalUsername());
 			
@@ -811,8 +1000,7 @@ public class GlideinResource implements Resource {
 				GlideinListener listener = 
 					new GlideinListener(glidein.getId());
 				job.addListener(listener);
-				CondorEventGenerator gen = new CondorEventGenerator(job);
-				gen.start();
+				watchJobLog(job);
 				
 			} else if (getCredentialFile().exists()) {
 				
@@ -838,8 +1026,7 @@ public class GlideinResource implements Resource {
 			GlideinListener listener = 
 				new GlideinListener(glidein.getId());
 			job.addListener(listener);
-			CondorEventGenerator gen = new CondorEventGenerator(job);
-			gen.start();
+			watchJobLog(job);
 			
 		} else if (GlideinState.REMOVING.equals(state)) {
 			
@@ -849,15 +1036,19 @@ public class GlideinResource implements Resource {
 			// If the log is still there, then try to cancel the job
 			if (job.getLog().exists()) {
 				try {
-					cancelGlideinJob();
+					cancelGlideinJob(false);
 				} catch (GlideinException re) {
 					warn("Unable to cancel job on recovery",re);
 				}
 			}
 			
 		} else if (GlideinState.FAILED.equals(state) ||
-				   GlideinState.FINISHED.equals(state) ||
-				   GlideinState.DELETED.equals(state)) {
+				   GlideinState.FINISHED.equals(state)) {
+			
+			// On restarts delete the junk after the retention period
+			scheduleCleanup();
+			
+		} else if (GlideinState.DELETED.equals(state)) {
 			
 			// On restarts automatically delete the junk
 			
@@ -880,6 +1071,58 @@ public class GlideinResource implements Resource {
 		}
 	}
 
+	/**
+	 * Record that the events in the job log up to the checkpoint have 
+	 * been handled. The checkpoint is saved after the state changes they
+	 * caused have been written.
+	 */
+	private void checkpoint(CondorLogCheckpoint checkpoint) {
+		if (checkpoint == null) {
+			return;
+		}
+		
+		// The log is only watched again on recovery in these states
+		GlideinState state = glidein.getState();
+		if (GlideinState.SUBMITTED.equals(state) || 
+				GlideinState.QUEUED.equals(state) ||
+				GlideinState.RUNNING.equals(state)) {
+			try {
+				StateJournal journal = StateJournal.getInstance();
+				journal.checkpointGlidein(glidein.getId(), checkpoint);
+			} catch (DatabaseException de) {
+				warn("Unable to checkpoint job log",de);
+			}
+		}
+	}
+	
+	private void watchJobLog(CondorJob job) throws GlideinException {
+		try {
+			Site site = getSiteResource(glidein.getSiteId()).getSite();
+			job.setPollInterval(site.getGlideinService());
+		} catch (GlideinException ge) {
+			warn("Unable to get site poll interval",ge);
+		}
+		
+		try {
+			CondorEventGenerator gen = new CondorEventGenerator(job);
+			
+			// Skip the events that were handled before the restart
+			try {
+				CondorLogCheckpoint checkpoint = 
+					CondorLogCheckpoint.read(job.getLogCheckpoint());
+				if (checkpoint != null) {
+					gen.resume(checkpoint);
+				}
+			} catch (CondorException ce) {
+				warn("Unable to read job log checkpoint",ce);
+			}
+			
+			gen.start();
+		} catch (CondorException ce) {
+			throw new GlideinException("Unable to watch job log",ce);
+		}
+	}
+	
 	private String logPrefix() {
 		if (glidein == null) {
 			return "";
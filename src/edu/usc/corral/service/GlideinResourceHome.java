@@ -15,6 +15,9 @@
  */
 package edu.usc.corral.service;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import org.apache.log4j.Logger;
 
 import edu.usc.corral.api.GlideinException;
@@ -28,6 +31,8 @@ import edu.usc.corral.nl.NetLogger;
 import edu.usc.corral.nl.NetLoggerEvent;
 import edu.usc.corral.nl.NetLoggerException;
 import edu.usc.corral.types.Glidein;
+import edu.usc.corral.types.GlideinState;
+import edu.usc.corral.types.ListRequest;
 import edu.usc.corral.types.Site;
 import edu.usc.corral.types.SiteState;
 
@@ -35,21 +40,30 @@ public class GlideinResourceHome extends ResourceHome implements Initializable {
 	private final Logger logger = Logger.getLogger(GlideinResourceHome.class);
 	private boolean initialized = false;
 	
-	public void initialize() throws Exception {
+	public synchronized void initialize() throws Exception {
 		try {
 			if (initialized)
 				return;
 			
 			logger.info("Recovering glideins...");
 			
+			// Load all the glideins at once
 			Database db = Database.getDatabase();
 			GlideinDAO dao = db.getGlideinDAO();
-			int[] ids = dao.listIds();
-			for (int id : ids) {
-				GlideinResource resource = find(id);
-				resource.recoverState();
+			ListRequest request = new ListRequest();
+			request.setAllUsers(true);
+			request.setLongFormat(true);
+			Map<Integer,GlideinResource> loaded = 
+				new LinkedHashMap<Integer,GlideinResource>();
+			for (Glidein glidein : dao.list(request)) {
+				loaded.put(glidein.getId(), new GlideinResource(glidein));
 			}
 			
+			// Recover them in the background after the sites
+			startRecovery(loaded, SiteResourceHome.getInstance());
+			
+			startEvictor();
+			
 			initialized = true;
 		} catch (DatabaseException de) {
 			throw new Exception(
@@ -147,16 +161,32 @@ public class GlideinResourceHome extends ResourceHome implements Initializable {
 	}
 
 	public GlideinResource find(int id) throws GlideinException {
-		synchronized (this) {
-			if (contains(id)) {
-				return (GlideinResource)get(id);
-			} else {
-				Glidein g = load(id);
-				GlideinResource r = new GlideinResource(g);
-				add(id, r);
-				return r;
-			}
+		return (GlideinResource)findResource(id);
+	}
+	
+	protected Resource newResource(int id) throws GlideinException {
+		return new GlideinResource(load(id));
+	}
+	
+	protected void recoverResource(Resource resource) throws Exception {
+		GlideinResource glidein = (GlideinResource)resource;
+		
+		// A glidein that is looked up before the bulk recovery gets to 
+		// it is recovered right away, so make sure its site is recovered 
+		// first. Looking up the site recovers it if necessary.
+		try {
+			getSiteResource(glidein.getGlidein().getSiteId());
+		} catch (GlideinException ge) {
+			// The site is gone, which the glidein's recovery handles
 		}
+		
+		glidein.recoverState();
+	}
+	
+	protected boolean isTerminal(Resource resource) {
+		GlideinState state = ((GlideinResource)resource).getGlidein().getState();
+		return GlideinState.FINISHED.equals(state) ||
+			GlideinState.FAILED.equals(state);
 	}
 	
 	public Glidein load(int id) throws GlideinException {
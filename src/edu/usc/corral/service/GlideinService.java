@@ -77,8 +77,14 @@ public class GlideinService extends Service {
 			}
 			Database db = Database.getDatabase();
 			GlideinDAO dao = db.getGlideinDAO();
-			List<Glidein> glideins = dao.list(req.isLongFormat(), req.getUser(), req.isAllUsers());
-			return new ListGlideinsResponse(glideins);
+			List<Glidein> glideins = dao.list(req);
+			ListGlideinsResponse resp = new ListGlideinsResponse(glideins);
+			
+			// If the page is full there may be more
+			if (req.getLimit() > 0 && glideins.size() == req.getLimit()) {
+				resp.setNextAfterId(glideins.get(glideins.size()-1).getId());
+			}
+			return resp;
 		} catch (DatabaseException de) {
 			throw new GlideinException("Unable to list glideins",de);
 		}
@@ -15,36 +15,468 @@
  */
 package edu.usc.corral.service;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
 
 import edu.usc.corral.api.GlideinException;
 
-// TODO Make sure this is synchronized properly
-// TODO Clean up idle resources
+/**
+ * A cache of resources. Lookups of cached resources do not lock. Resources
+ * that are not cached are loaded by the first thread that asks for them 
+ * while other threads asking for the same resource wait. Threads looking up
+ * other resources are not blocked by the load.
+ * 
+ * Only resources in a terminal state are evicted. They are evicted when they
+ * have not been used for maxIdleTime, or, oldest first, when the home holds 
+ * more than maxSize resources. Evicted resources are reloaded from the 
+ * database if they are needed again.
+ * 
+ * On startup, subclasses load all of their resources at once and recover
+ * them in the background using recoveryThreads threads. A lookup of a 
+ * resource that has not been recovered yet recovers it first.
+ */
 public abstract class ResourceHome {
+	private final Logger logger = Logger.getLogger(ResourceHome.class);
+	
+	private ConcurrentHashMap<Integer,Entry> resources;
+	
+	private int maxSize = 10000;
+	private long maxIdleTime = 600000; // 10 mins
+	private long evictionInterval = 60000; // 1 min
+	private Timer evictor;
+	
+	private int recoveryThreads = 4;
+	private ConcurrentHashMap<Integer,Boolean> unrecovered;
+	private CountDownLatch recoveryDone = new CountDownLatch(1);
 	
-	private Map<Integer,Resource> resources;
+	/* Metrics */
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong loads = new AtomicLong();
+	private AtomicLong loadFailures = new AtomicLong();
+	private AtomicLong loadTime = new AtomicLong();
+	private AtomicLong evictions = new AtomicLong();
+	private volatile int recoveryTotal = 0;
+	private AtomicInteger recovered = new AtomicInteger();
+	private AtomicInteger recoveryFailures = new AtomicInteger();
+	private volatile long recoveryTime = 0;
 	
 	public ResourceHome() {
-		resources = new HashMap<Integer,Resource>();
+		resources = new ConcurrentHashMap<Integer,Entry>();
+		unrecovered = new ConcurrentHashMap<Integer,Boolean>();
 	}
-
-	public synchronized <T extends Resource> void add(int id, T resource) {
-		resources.put(id, resource);
+	
+	/**
+	 * Recover resources in the background. This is called by subclasses
+	 * when they are initialized with all of the resources they loaded.
+	 * @param loaded The resources to recover, by id
+	 * @param after Another home whose resources must be recovered before
+	 * these, or null
+	 */
+	protected void startRecovery(Map<Integer,? extends Resource> loaded, 
+			final ResourceHome after) {
+		final List<Integer> ids = new ArrayList<Integer>(loaded.size());
+		for (Map.Entry<Integer,? extends Resource> e : loaded.entrySet()) {
+			// Mark it before adding it so a lookup cannot miss it
+			unrecovered.put(e.getKey(), Boolean.TRUE);
+			if (resources.putIfAbsent(e.getKey(), new Entry(e.getValue())) == null) {
+				ids.add(e.getKey());
+			} else {
+				unrecovered.remove(e.getKey());
+			}
+		}
+		recoveryTotal = ids.size();
+		
+		final String name = getClass().getSimpleName();
+		Thread thread = new Thread(name+"Recovery") {
+			public void run() {
+				long start = System.currentTimeMillis();
+				try {
+					if (after != null) {
+						after.awaitRecovery();
+					}
+					
+					ExecutorService executor = Executors.newFixedThreadPool(
+							recoveryThreads, new ThreadFactory() {
+						private AtomicInteger count = new AtomicInteger();
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, name+"Recovery-"+
+									count.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+					for (final Integer id : ids) {
+						executor.execute(new Runnable() {
+							public void run() {
+								Entry entry = resources.get(id);
+								if (entry != null && entry.resource != null) {
+									recover(id, entry.resource);
+								} else {
+									unrecovered.remove(id);
+								}
+							}
+						});
+					}
+					executor.shutdown();
+					while (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+						logger.info(name+" recovery: "+getRecovered()+" of "+
+								getRecoveryTotal()+" recovered");
+					}
+				} catch (InterruptedException ie) {
+					logger.warn(name+" recovery interrupted");
+				} finally {
+					recoveryTime = System.currentTimeMillis() - start;
+					recoveryDone.countDown();
+					logger.info(name+" recovery finished: "+getRecovered()+
+							" of "+getRecoveryTotal()+" recovered, "+
+							getRecoveryFailures()+" failed in "+
+							recoveryTime+" ms");
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Recover a resource unless it has already been recovered. Other
+	 * threads that look up the resource wait until this is done.
+	 */
+	private void recover(int id, Resource resource) {
+		synchronized (resource) {
+			if (unrecovered.remove(id) == null)
+				return;
+			try {
+				recoverResource(resource);
+				recovered.incrementAndGet();
+			} catch (Exception e) {
+				recoveryFailures.incrementAndGet();
+				logger.error("Unable to recover resource "+id, e);
+			}
+		}
 	}
 	
-	public synchronized void remove(int id) {
+	/**
+	 * Wait until the resources loaded on startup have been recovered.
+	 */
+	public void awaitRecovery() throws InterruptedException {
+		recoveryDone.await();
+	}
+	
+	/**
+	 * Start evicting idle resources. This is called by subclasses 
+	 * when they are initialized.
+	 */
+	protected synchronized void startEvictor() {
+		if (evictor != null || evictionInterval <= 0)
+			return;
+		evictor = new Timer(getClass().getSimpleName()+"Evictor", true);
+		evictor.schedule(new Evictor(), evictionInterval, evictionInterval);
+	}
+	
+	public <T extends Resource> void add(int id, T resource) {
+		resources.put(id, new Entry(resource));
+	}
+	
+	public void remove(int id) {
 		resources.remove(id);
 	}
 	
-	public synchronized boolean contains(int id) {
-		return resources.containsKey(id);
+	public boolean contains(int id) {
+		Entry entry = resources.get(id);
+		return entry != null && entry.resource != null;
+	}
+	
+	public Resource get(int id) {
+		Entry entry = resources.get(id);
+		if (entry == null || entry.resource == null)
+			return null;
+		entry.touch();
+		return entry.resource;
 	}
 	
-	public synchronized Resource get(int id) {
-		return resources.get(id);
+	/**
+	 * Get a resource from the cache, loading it if it is not there.
+	 */
+	protected Resource findResource(int id) throws GlideinException {
+		Entry entry = resources.get(id);
+		if (entry == null) {
+			Entry loading = new Entry();
+			entry = resources.putIfAbsent(id, loading);
+			if (entry == null) {
+				misses.incrementAndGet();
+				return loading.load(id);
+			}
+		}
+		hits.incrementAndGet();
+		Resource resource = entry.get();
+		if (unrecovered.containsKey(id)) {
+			recover(id, resource);
+		}
+		return resource;
 	}
 	
+	/**
+	 * Load a resource that is not in the cache.
+	 */
+	protected abstract Resource newResource(int id) throws GlideinException;
+	
+	/**
+	 * @return true if the resource is in a state it will not leave, 
+	 * which means that it can be evicted.
+	 */
+	protected abstract boolean isTerminal(Resource resource);
+	
+	/**
+	 * Recover the state of a resource loaded on startup.
+	 */
+	protected abstract void recoverResource(Resource resource) throws Exception;
+	
 	abstract public Resource find(int id) throws GlideinException;
+	
+	/**
+	 * Remove terminal resources that are idle, and then, if there are 
+	 * still too many resources, the least recently used terminal resources.
+	 */
+	public void evict() {
+		long cutoff = System.currentTimeMillis() - maxIdleTime;
+		List<Integer> candidates = new ArrayList<Integer>();
+		final List<Long> accessed = new ArrayList<Long>();
+		int evicted = 0;
+		for (Integer id : resources.keySet()) {
+			Entry entry = resources.get(id);
+			if (entry == null || entry.resource == null || 
+					unrecovered.containsKey(id) || !isTerminal(entry.resource))
+				continue;
+			long lastAccess = entry.lastAccess;
+			if (lastAccess < cutoff) {
+				if (resources.remove(id, entry))
+					evicted++;
+			} else {
+				candidates.add(id);
+				accessed.add(lastAccess);
+			}
+		}
+		
+		int excess = resources.size() - maxSize;
+		if (excess > 0 && candidates.size() > 0) {
+			List<Integer> order = new ArrayList<Integer>();
+			for (int i=0; i<candidates.size(); i++) order.add(i);
+			Collections.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return accessed.get(a).compareTo(accessed.get(b));
+				}
+			});
+			for (int i=0; i<order.size() && excess > 0; i++) {
+				int j = order.get(i);
+				Entry entry = resources.get(candidates.get(j));
+				if (entry != null && entry.lastAccess == accessed.get(j) &&
+						resources.remove(candidates.get(j), entry)) {
+					evicted++;
+					excess--;
+				}
+			}
+		}
+		
+		evictions.addAndGet(evicted);
+		if (logger.isDebugEnabled()) {
+			logger.debug("Evicted "+evicted+" resources: "+this);
+		}
+	}
+	
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+	
+	public int getMaxSize() {
+		return maxSize;
+	}
+	
+	public void setMaxIdleTime(long maxIdleTime) {
+		this.maxIdleTime = maxIdleTime;
+	}
+	
+	public long getMaxIdleTime() {
+		return maxIdleTime;
+	}
+	
+	public void setEvictionInterval(long evictionInterval) {
+		this.evictionInterval = evictionInterval;
+	}
+	
+	public long getEvictionInterval() {
+		return evictionInterval;
+	}
+	
+	public void setRecoveryThreads(int recoveryThreads) {
+		this.recoveryThreads = recoveryThreads;
+	}
+	
+	public int getRecoveryThreads() {
+		return recoveryThreads;
+	}
+	
+	/** @return The number of cached resources */
+	public int size() {
+		return resources.size();
+	}
+	
+	/** @return The number of lookups that found a cached resource */
+	public long getHits() {
+		return hits.get();
+	}
+	
+	/** @return The number of lookups that had to load a resource */
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	/** @return The number of resources loaded successfully */
+	public long getLoads() {
+		return loads.get();
+	}
+	
+	/** @return The number of resources that could not be loaded */
+	public long getLoadFailures() {
+		return loadFailures.get();
+	}
+	
+	/** @return The total time spent loading resources (ms) */
+	public long getLoadTime() {
+		return loadTime.get();
+	}
+	
+	/** @return The number of resources evicted */
+	public long getEvictions() {
+		return evictions.get();
+	}
+	
+	/** @return The number of resources loaded on startup */
+	public int getRecoveryTotal() {
+		return recoveryTotal;
+	}
+	
+	/** @return The number of resources recovered */
+	public int getRecovered() {
+		return recovered.get();
+	}
+	
+	/** @return The number of resources that could not be recovered */
+	public int getRecoveryFailures() {
+		return recoveryFailures.get();
+	}
+	
+	/** @return true if startup recovery has finished */
+	public boolean isRecovered() {
+		return recoveryDone.getCount() == 0;
+	}
+	
+	/** @return The time startup recovery took (ms), 0 if not finished */
+	public long getRecoveryTime() {
+		return recoveryTime;
+	}
+	
+	public String toString() {
+		return "size="+size()+" hits="+getHits()+" misses="+getMisses()+
+			" loads="+getLoads()+" loadFailures="+getLoadFailures()+
+			" loadTime="+getLoadTime()+"ms evictions="+getEvictions()+
+			" recovered="+getRecovered()+"/"+getRecoveryTotal()+
+			" recoveryFailures="+getRecoveryFailures();
+	}
+	
+	private class Evictor extends TimerTask {
+		public void run() {
+			try {
+				evict();
+			} catch (Throwable t) {
+				logger.warn("Unable to evict resources", t);
+			}
+		}
+	}
+	
+	/**
+	 * A cached resource, or a resource that is being loaded.
+	 */
+	private class Entry {
+		private volatile Resource resource;
+		private volatile long lastAccess;
+		private GlideinException error;
+		private CountDownLatch loaded = new CountDownLatch(1);
+		
+		/** Create an entry for a resource that is being loaded */
+		public Entry() {
+			touch();
+		}
+		
+		/** Create an entry for a resource that already exists */
+		public Entry(Resource resource) {
+			this.resource = resource;
+			this.loaded.countDown();
+			touch();
+		}
+		
+		public void touch() {
+			lastAccess = System.currentTimeMillis();
+		}
+		
+		public Resource load(int id) throws GlideinException {
+			long start = System.currentTimeMillis();
+			try {
+				resource = newResource(id);
+				loads.incrementAndGet();
+				return resource;
+			} catch (GlideinException ge) {
+				error = ge;
+				throw ge;
+			} catch (RuntimeException re) {
+				error = new GlideinException("Unable to load resource "+id, re);
+				throw re;
+			} finally {
+				loadTime.addAndGet(System.currentTimeMillis() - start);
+				if (resource == null) {
+					// Let the next lookup try again
+					loadFailures.incrementAndGet();
+					resources.remove(id, this);
+				}
+				touch();
+				loaded.countDown();
+			}
+		}
+		
+		public Resource get() throws GlideinException {
+			Resource r = resource;
+			if (r == null) {
+				try {
+					loaded.await();
+				} catch (InterruptedException ie) {
+					throw new GlideinException("Interrupted waiting for resource", ie);
+				}
+				r = resource;
+				if (r == null) {
+					if (error == null) {
+						throw new GlideinException("Unable to load resource");
+					}
+					throw new GlideinException(error.getMessage(), error);
+				}
+			}
+			touch();
+			return r;
+		}
+	}
 }
@@ -22,6 +22,9 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 import org.globus.gsi.GlobusCredential;
@@ -32,14 +35,18 @@ import edu.usc.corral.condor.CondorEventGenerator;
 import edu.usc.corral.condor.CondorException;
 import edu.usc.corral.condor.CondorGridType;
 import edu.usc.corral.condor.CondorJob;
+import edu.usc.corral.condor.CondorSubmitter;
 import edu.usc.corral.condor.CondorUniverse;
 import edu.usc.corral.config.ConfigurationException;
 import edu.usc.corral.db.Database;
 import edu.usc.corral.db.DatabaseException;
 import edu.usc.corral.db.SiteDAO;
+import edu.usc.corral.db.StateJournal;
+import edu.usc.corral.db.StateUpdate;
 import edu.usc.corral.nl.NetLogger;
 import edu.usc.corral.nl.NetLoggerEvent;
 import edu.usc.corral.nl.NetLoggerException;
+import edu.usc.corral.service.state.AdmissionController;
 import edu.usc.corral.service.state.Event;
 import edu.usc.corral.service.state.EventQueue;
 import edu.usc.corral.service.state.GlideinEvent;
@@ -55,11 +62,13 @@ import edu.usc.corral.types.Site;
 import edu.usc.corral.types.SiteState;
 import edu.usc.corral.util.CredentialUtil;
 import edu.usc.corral.util.FilesystemUtil;
+import edu.usc.corral.util.ProcessRunner;
 import edu.usc.corral.util.ServiceUtil;
 
 public class SiteResource implements Resource {
 	private final Logger logger = Logger.getLogger(SiteResource.class);
 	private Site site;
+	private Future<Object> installSubmit;
 	
 	public SiteResource(Site site) {
 		this.site = site;
@@ -129,11 +138,19 @@ public class SiteResource implements Resource {
 		site.setLongMessage(longMessage);
 		site.setLastUpdate(time);
 		
-		// Update database
+		// Update database. The change is written behind, but we wait 
+		// a little while for failures to be made durable. If the database
+		// is down we don't hold up the event thread, the journal keeps 
+		// retrying.
 		try {
-			Database db = Database.getDatabase();
-			SiteDAO dao = db.getSiteDAO();
-			dao.updateState(site.getId(), state, shortMessage, longMessage, time);
+			StateJournal journal = StateJournal.getInstance();
+			StateUpdate<SiteState> update = journal.updateSiteState(
+					site.getId(), state, shortMessage, longMessage, time);
+			if (SiteState.FAILED.equals(state)) {
+				if (!journal.await(update)) {
+					warn("State change to "+state+" not written yet");
+				}
+			}
 		} catch(DatabaseException de) {
 			throw new GlideinException("Unable to change state to "+state,de);
 		}
@@ -197,6 +214,7 @@ public class SiteResource implements Resource {
 			job.setGridType(CondorGridType.GT4);
 		}
 		job.setGridContact(stagingService.getServiceContact());
+		job.setPollInterval(stagingService);
 		
 		// Set rsl/xml
 		if (ServiceType.GT2.equals(stagingService.getServiceType()) ||
@@ -267,24 +285,53 @@ public class SiteResource implements Resource {
 		// Add a listener
 		job.addListener(new InstallSiteListener(site.getId()));
 		
-		// Submit job
-		try {
-			Condor condor = Condor.getInstance();
-			condor.submitJob(job);
-		} catch (CondorException ce) {
-			throw new GlideinException("Unable to submit install job",ce);
-		}
-		
-		// Log the condor job id in netlogger
+		// Submit job in the background
+		installSubmit = submitJob(job, "site.submit.install", 
+				SiteEventCode.INSTALL_FAILED, "Unable to submit install job");
+	}
+	
+	/**
+	 * Submit a site job without holding up the event thread. If the 
+	 * submit fails, then the failure event is queued.
+	 * @return A future that is done when the job has been submitted
+	 */
+	private Future<Object> submitJob(final CondorJob job, final String nlEvent, 
+			final SiteEventCode failure, final String message) {
+		return ProcessRunner.getInstance().submit(new Callable<Object>() {
+			public Object call() {
+				try {
+					Condor condor = Condor.getInstance();
+					condor.submitJob(job);
+				} catch (CondorException ce) {
+					queueFailure(failure, message, ce);
+					return null;
+				}
+				
+				// Log the condor job id in netlogger
+				try {
+					NetLoggerEvent event = new NetLoggerEvent(nlEvent);
+					event.put("site.id", site.getId());
+					event.put("condor.id", job.getJobId());
+					
+					NetLogger netlogger = NetLogger.getLog();
+					netlogger.log(event);
+				} catch (NetLoggerException nle) {
+					warn("Unable to log site event to NetLogger log",nle);
+				}
+				return null;
+			}
+		});
+	}
+	
+	private void queueFailure(SiteEventCode code, String message, Exception exception) {
 		try {
-			NetLoggerEvent event = new NetLoggerEvent("site.submit.install");
-			event.put("site.id", site.getId());
-			event.put("condor.id", job.getJobId());
-			
-			NetLogger netlogger = NetLogger.getLog();
-			netlogger.log(event);
-		} catch (NetLoggerException nle) {
-			warn("Unable to log site event to NetLogger log",nle);
+			Event event = new SiteEvent(code, new Date(), site.getId());
+			event.setProperty("message", message);
+			event.setProperty("exception", exception);
+			EventQueue queue = EventQueue.getInstance();
+			queue.add(event);
+		} catch (ConfigurationException ne) {
+			error("Unable to get event queue",ne);
 		}
 	}
 	
@@ -311,17 +358,56 @@ public class SiteResource implements Resource {
 			throw new GlideinException("Unable to get glidein ids",de);
 		}
 		
-		// Create a remove event for each glidein
+		if (ids.length == 0) {
+			return;
+		}
+		
+		// Jobs that are still waiting to be submitted are cancelled 
+		// first, because condor_rm would not find them.
 		try {
-			EventQueue queue = EventQueue.getInstance();
-			for (int id : ids) {
-				Event event = new GlideinEvent(
-						GlideinEventCode.REMOVE,site.getLastUpdate(),id);
-				queue.add(event);
+			int pending = CondorSubmitter.getInstance().cancel(
+					"CorralSiteId", site.getId());
+			if (pending > 0) {
+				info("Cancelled "+pending+" glidein jobs waiting to be submitted");
 			}
-		} catch (ConfigurationException ne) {
-			throw new GlideinException("Unable to get event queue",ne);
+		} catch (CondorException ce) {
+			warn("Unable to cancel pending glidein jobs",ce);
 		}
+		
+		// Remove all of the site's glidein jobs with one condor_rm in 
+		// the background. If that fails, then each glidein will remove 
+		// its own job.
+		final int[] glideins = ids;
+		final Date time = site.getLastUpdate();
+		ProcessRunner.getInstance().submit(new Callable<Object>() {
+			public Object call() {
+				boolean cancelled = false;
+				try {
+					Condor condor = Condor.getInstance();
+					condor.cancelJobs(
+							"CorralServer == \""+ServiceUtil.getServiceHost()+"\""+
+							" && CorralSiteId == "+site.getId()+
+							" && CorralGlideinId =!= UNDEFINED");
+					cancelled = true;
+				} catch (CondorException ce) {
+					warn("Unable to cancel glidein jobs",ce);
+				}
+				
+				// Create a remove event for each glidein
+				try {
+					EventQueue queue = EventQueue.getInstance();
+					for (int id : glideins) {
+						Event event = new GlideinEvent(
+								GlideinEventCode.REMOVE,time,id);
+						event.setProperty("jobCancelled", cancelled);
+						queue.add(event);
+					}
+				} catch (ConfigurationException ne) {
+					error("Unable to get event queue",ne);
+				}
+				return null;
+			}
+		});
 	}
 	
 	private void notifyGlideinsOfReady() throws GlideinException {
@@ -368,6 +454,27 @@ public class SiteResource implements Resource {
 	
 	private void cancelInstallJob() throws GlideinException {
 		info("Canceling install job");
+		
+		// The install job may not have been submitted yet. If it has not
+		// started, then it never will. Otherwise wait for it to finish.
+		if (installSubmit != null && !installSubmit.isDone()) {
+			if (installSubmit.cancel(false)) {
+				return;
+			}
+			try {
+				installSubmit.get();
+			} catch (InterruptedException ie) {
+				throw new GlideinException("Interrupted waiting for install job",ie);
+			} catch (ExecutionException ee) {
+				// The failure is handled by the submit task
+			}
+		}
+		if (!new File(getInstallDirectory(),"jobid").exists() && 
+				installSubmit != null) {
+			// The submit failed, so there is nothing to cancel
+			return;
+		}
+		
 		try {
 			CondorJob job = new CondorJob(getInstallDirectory(),site.getLocalUsername());
 			String jobid = readJobId(getInstallDirectory());
@@ -443,6 +550,7 @@ public class SiteResource implements Resource {
 			job.setGridType(CondorGridType.GT4);
 		}
 		job.setGridContact(stagingService.getServiceContact());
+		job.setPollInterval(stagingService);
 		
 		// Set rsl/xml
 		if (ServiceType.GT2.equals(stagingService.getServiceType()) ||
@@ -506,31 +614,20 @@ public class SiteResource implements Resource {
 		// Add a listener
 		job.addListener(new UninstallSiteListener(site.getId()));
 		
-		// Submit job
-		try {
-			Condor condor = Condor.getInstance();
-			condor.submitJob(job);
-		} catch (CondorException ce) {
-			throw new GlideinException("Unable to submit uninstall job",ce);
-		}
-		
-		// Log the condor job id in netlogger
-		try {
-			NetLoggerEvent event = new NetLoggerEvent("site.submit.uninstall");
-			event.put("site.id", site.getId());
-			event.put("condor.id", job.getJobId());
-			
-			NetLogger netlogger = NetLogger.getLog();
-			netlogger.log(event);
-		} catch (NetLoggerException nle) {
-			warn("Unable to log site event to NetLogger log",nle);
-		}
-		
+		// Submit job in the background
+		submitJob(job, "site.submit.uninstall", 
+				SiteEventCode.UNINSTALL_FAILED, "Unable to submit uninstall job");
 	}
 	
 	private void deleteFromDatabase() throws GlideinException {
 		info("Deleting site from database");
 		try {
+			AdmissionController.getInstance().removeSite(site.getId());
+		} catch (ConfigurationException ce) {
+			warn("Unable to get admission controller",ce);
+		}
+		try {
+			StateJournal.getInstance().cancelSite(site.getId());
 			Database db = Database.getDatabase();
 			SiteDAO dao = db.getSiteDAO();
 			dao.delete(site.getId());
@@ -807,8 +904,7 @@ public class SiteResource implements Resource {
 				InstallSiteListener listener = 
 					new InstallSiteListener(site.getId());
 				job.addListener(listener);
-				CondorEventGenerator gen = new CondorEventGenerator(job);
-				gen.start();
+				watchJobLog(job);
 				
 			} else if (getCredentialFile().exists()) {
 				
@@ -850,8 +946,7 @@ public class SiteResource implements Resource {
 				UninstallSiteListener listener = 
 					new UninstallSiteListener(site.getId());
 				job.addListener(listener);
-				CondorEventGenerator gen = new CondorEventGenerator(job);
-				gen.start();
+				watchJobLog(job);
 				
 			} else if (getCredentialFile().exists()) {
 				
@@ -888,6 +983,16 @@ public class SiteResource implements Resource {
 		}
 	}
 	
+	private void watchJobLog(CondorJob job) throws GlideinException {
+		job.setPollInterval(site.getStagingService());
+		try {
+			CondorEventGenerator gen = new CondorEventGenerator(job);
+			gen.start();
+		} catch (CondorException ce) {
+			throw new GlideinException("Unable to watch job log",ce);
+		}
+	}
+	
 	private String logPrefix() {
 		if (site == null) {
 			return "";
@@ -15,6 +15,9 @@
  */
 package edu.usc.corral.service;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import org.apache.log4j.Logger;
 
 import edu.usc.corral.api.GlideinException;
@@ -28,7 +31,9 @@ import edu.usc.corral.nl.NetLogger;
 import edu.usc.corral.nl.NetLoggerEvent;
 import edu.usc.corral.nl.NetLoggerException;
 import edu.usc.corral.types.ExecutionService;
+import edu.usc.corral.types.ListRequest;
 import edu.usc.corral.types.Site;
+import edu.usc.corral.types.SiteState;
 
 public class SiteResourceHome extends ResourceHome implements Initializable {
 	private final Logger logger = Logger.getLogger(SiteResourceHome.class);
@@ -42,14 +47,23 @@ public class SiteResourceHome extends ResourceHome implements Initializable {
 			if (initialized)
 				return;
 			
+			// Load all the sites at once
 			Database db = Database.getDatabase();
 			SiteDAO dao = db.getSiteDAO();
-			int[] ids = dao.listIds();
-			for (int id : ids) {
-				SiteResource resource = find(id);
-				resource.recoverState();
+			ListRequest request = new ListRequest();
+			request.setAllUsers(true);
+			request.setLongFormat(true);
+			Map<Integer,SiteResource> loaded = 
+				new LinkedHashMap<Integer,SiteResource>();
+			for (Site site : dao.list(request)) {
+				loaded.put(site.getId(), new SiteResource(site));
 			}
 			
+			// Recover them in the background
+			startRecovery(loaded, null);
+			
+			startEvictor();
+			
 			initialized = true;
 		} catch (DatabaseException de) {
 			throw new Exception(
@@ -114,16 +128,20 @@ public class SiteResourceHome extends ResourceHome implements Initializable {
 	}
 	
 	public SiteResource find(int id) throws GlideinException {
-		synchronized (this) {
-			if (contains(id)) {
-				return (SiteResource)get(id);
-			} else {
-				Site s = load(id);
-				SiteResource r = new SiteResource(s);
-				add(id, r);
-				return r;
-			}
-		}
+		return (SiteResource)findResource(id);
+	}
+	
+	protected Resource newResource(int id) throws GlideinException {
+		return new SiteResource(load(id));
+	}
+	
+	protected void recoverResource(Resource resource) throws Exception {
+		((SiteResource)resource).recoverState();
+	}
+	
+	protected boolean isTerminal(Resource resource) {
+		SiteState state = ((SiteResource)resource).getSite().getState();
+		return SiteState.FAILED.equals(state);
 	}
 	
 	public Site load(int id) throws GlideinException {
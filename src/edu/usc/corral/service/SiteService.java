@@ -37,6 +37,18 @@ import edu.usc.corral.types.VoidResponse;
 
 public class SiteService extends Service {
 
+	private void checkPollInterval(String name, ExecutionService service) 
+	throws GlideinException {
+		Integer min = service.getMinPollInterval();
+		Integer max = service.getMaxPollInterval();
+		if ((min != null && min < 1) || (max != null && max < 1))
+			throw new GlideinException("Invalid "+name+" service: " +
+					"poll intervals must be at least 1 second");
+		if (min != null && max != null && max < min)
+			throw new GlideinException("Invalid "+name+" service: " +
+					"max poll interval is less than min poll interval");
+	}
+	
 	public CreateSiteResponse create(CreateSiteRequest req) throws GlideinException {
 		// Create new site
 		Site site = new Site(req);
@@ -64,6 +76,7 @@ public class SiteService extends Service {
 				stagingService.getServiceType() == null)
 			throw new GlideinException("Invalid staging service: " +
 					"must specify service contact and service type");
+		checkPollInterval("staging", stagingService);
 			
 		// Check glidein service
 		ExecutionService glideinService = site.getGlideinService();
@@ -73,6 +86,13 @@ public class SiteService extends Service {
 				glideinService.getServiceType() == null)
 			throw new GlideinException("Invalid glidein service: " +
 					"must specify service contact and service type");
+		checkPollInterval("glidein", glideinService);
+		if ((glideinService.getMaxSubmitted() != null && 
+				glideinService.getMaxSubmitted() < 1) ||
+			(glideinService.getMaxSubmitRate() != null && 
+				glideinService.getMaxSubmitRate() < 1))
+			throw new GlideinException("Invalid glidein service: " +
+					"submission limits must be at least 1");
 			
 		// Must specify condorPackage or condorVersion
 		if (site.getCondorPackage() == null && site.getCondorVersion() == null)
@@ -102,8 +122,14 @@ public class SiteService extends Service {
 			}
 			Database db = Database.getDatabase();
 			SiteDAO dao = db.getSiteDAO();
-			List<Site> sites = dao.list(req.isLongFormat(),req.getUser(),req.isAllUsers());
-			return new ListSitesResponse(sites);
+			List<Site> sites = dao.list(req);
+			ListSitesResponse resp = new ListSitesResponse(sites);
+			
+			// If the page is full there may be more
+			if (req.getLimit() > 0 && sites.size() == req.getLimit()) {
+				resp.setNextAfterId(sites.get(sites.size()-1).getId());
+			}
+			return resp;
 		} catch (DatabaseException de) {
 			throw new GlideinException("Unable to list sites", de);
 		}
@@ -0,0 +1,323 @@
+/*
+ *  Copyright 2007-2009 University Of Southern California
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.usc.corral.service.state;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import edu.usc.corral.config.ConfigurationException;
+import edu.usc.corral.config.Initializable;
+import edu.usc.corral.config.Registry;
+import edu.usc.corral.types.ExecutionService;
+
+/**
+ * Limits how fast glidein jobs are submitted to each site so that a large
+ * request does not overload the site's gatekeeper.
+ * 
+ * Each site may have at most maxSubmitted glideins in the SUBMITTED state
+ * (i.e. submitted to Condor, but not yet accepted by the remote service),
+ * and glideins are submitted no faster than maxSubmitRate per minute. The
+ * site's glidein service can override both limits. A glidein that is 
+ * not admitted stays WAITING and is queued. Queued glideins are admitted 
+ * in order as slots free up and are sent an ADMITTED event.
+ */
+public class AdmissionController implements Initializable {
+	private static final Logger logger = Logger.getLogger(AdmissionController.class);
+	
+	/** Default maximum number of SUBMITTED glideins per site (0 = no limit) */
+	private int maxSubmitted = 0;
+	
+	/** Default maximum glidein submissions per minute per site (0 = no limit) */
+	private int maxSubmitRate = 0;
+	
+	/** How often queued glideins are checked for admission (ms) */
+	private long interval = 1000;
+	
+	private ConcurrentHashMap<Integer,SiteQueue> sites = 
+		new ConcurrentHashMap<Integer,SiteQueue>();
+	private boolean initialized = false;
+	
+	/* Metrics */
+	private AtomicLong admitted = new AtomicLong();
+	private AtomicLong throttled = new AtomicLong();
+	
+	public synchronized void initialize() throws Exception {
+		if (initialized)
+			return;
+		
+		if (interval <= 0) {
+			throw new IllegalArgumentException("interval must be > 0");
+		}
+		
+		// Start thread to admit queued glideins
+		Thread admit = new Thread(new AdmitThread(), "AdmitThread");
+		admit.setDaemon(true);
+		admit.setPriority(Thread.NORM_PRIORITY);
+		admit.start();
+		
+		initialized = true;
+	}
+	
+	public boolean isInitialized() {
+		return initialized;
+	}
+	
+	public void setMaxSubmitted(int maxSubmitted) {
+		this.maxSubmitted = maxSubmitted;
+	}
+	
+	public int getMaxSubmitted() {
+		return maxSubmitted;
+	}
+	
+	public void setMaxSubmitRate(int maxSubmitRate) {
+		this.maxSubmitRate = maxSubmitRate;
+	}
+	
+	public int getMaxSubmitRate() {
+		return maxSubmitRate;
+	}
+	
+	public void setInterval(long interval) {
+		this.interval = interval;
+	}
+	
+	public long getInterval() {
+		return interval;
+	}
+	
+	/**
+	 * Ask to submit a glidein. If the site has room the glidein gets a
+	 * slot and should be submitted now. Otherwise it is queued and it
+	 * will get an ADMITTED event when it has a slot.
+	 * @param siteId The glidein's site
+	 * @param glideinId The glidein
+	 * @param service The site's glidein service, which may override the
+	 * default limits
+	 * @return true if the glidein can be submitted now
+	 */
+	public boolean admit(int siteId, int glideinId, ExecutionService service) {
+		SiteQueue site = getSite(siteId);
+		synchronized (site) {
+			site.setLimits(service);
+			if (site.submitted.contains(glideinId)) {
+				return true;
+			}
+			if (site.waiting.isEmpty() && site.hasSlot(System.currentTimeMillis())) {
+				site.take(glideinId, System.currentTimeMillis());
+				admitted.incrementAndGet();
+				return true;
+			}
+			if (site.waiting.add(glideinId)) {
+				throttled.incrementAndGet();
+			}
+			return false;
+		}
+	}
+	
+	/**
+	 * Count a glidein that was already submitted, e.g. on recovery. This
+	 * does not check the limits.
+	 * @param siteId The glidein's site
+	 * @param glideinId The glidein
+	 */
+	public void register(int siteId, int glideinId) {
+		SiteQueue site = getSite(siteId);
+		synchronized (site) {
+			site.waiting.remove(glideinId);
+			site.submitted.add(glideinId);
+		}
+	}
+	
+	/**
+	 * Give up a glidein's slot or place in the queue. This is called 
+	 * when a glidein leaves the SUBMITTED or WAITING state, or is deleted.
+	 * @param siteId The glidein's site
+	 * @param glideinId The glidein
+	 */
+	public void release(int siteId, int glideinId) {
+		SiteQueue site = sites.get(siteId);
+		if (site == null) {
+			return;
+		}
+		boolean freed;
+		synchronized (site) {
+			site.waiting.remove(glideinId);
+			freed = site.submitted.remove(glideinId);
+		}
+		if (freed) {
+			admitQueued(site);
+		}
+	}
+	
+	/**
+	 * Forget a site's slots and queue. This is called when the site is 
+	 * deleted.
+	 * @param siteId The site
+	 */
+	public void removeSite(int siteId) {
+		sites.remove(siteId);
+	}
+	
+	private SiteQueue getSite(int siteId) {
+		SiteQueue site = sites.get(siteId);
+		if (site == null) {
+			SiteQueue other = sites.putIfAbsent(siteId, new SiteQueue(siteId));
+			site = other == null ? sites.get(siteId) : other;
+		}
+		return site;
+	}
+	
+	/**
+	 * Admit as many queued glideins as the site's limits allow
+	 */
+	private void admitQueued(SiteQueue site) {
+		int[] ids;
+		synchronized (site) {
+			long now = System.currentTimeMillis();
+			int n = 0;
+			ids = new int[site.waiting.size()];
+			Iterator<Integer> i = site.waiting.iterator();
+			while (i.hasNext() && site.hasSlot(now)) {
+				int id = i.next();
+				i.remove();
+				site.take(id, now);
+				ids[n++] = id;
+			}
+			if (n < ids.length) {
+				int[] tmp = new int[n];
+				System.arraycopy(ids, 0, tmp, 0, n);
+				ids = tmp;
+			}
+		}
+		if (ids.length == 0) {
+			return;
+		}
+		
+		admitted.addAndGet(ids.length);
+		logger.debug("Admitting "+ids.length+" glideins for site "+site.siteId);
+		try {
+			EventQueue queue = EventQueue.getInstance();
+			for (int id : ids) {
+				queue.add(new GlideinEvent(GlideinEventCode.ADMITTED, 
+						new Date(), id));
+			}
+		} catch (ConfigurationException ce) {
+			logger.error("Unable to admit glideins", ce);
+		}
+	}
+	
+	/** @return The number of glideins waiting for a slot */
+	public int getWaiting() {
+		int waiting = 0;
+		for (SiteQueue site : sites.values()) {
+			synchronized (site) {
+				waiting += site.waiting.size();
+			}
+		}
+		return waiting;
+	}
+	
+	/** @return The number of glideins that have been given a slot */
+	public long getAdmitted() {
+		return admitted.get();
+	}
+	
+	/** @return The number of glideins that had to wait for a slot */
+	public long getThrottled() {
+		return throttled.get();
+	}
+	
+	public String toString() {
+		return "waiting="+getWaiting()+" admitted="+getAdmitted()+
+			" throttled="+getThrottled();
+	}
+	
+	private class SiteQueue {
+		private int siteId;
+		private int maxSubmitted;
+		private int maxSubmitRate;
+		private long nextSubmit = 0;
+		private Set<Integer> submitted = new LinkedHashSet<Integer>();
+		private Set<Integer> waiting = new LinkedHashSet<Integer>();
+		
+		public SiteQueue(int siteId) {
+			this.siteId = siteId;
+			setLimits(null);
+		}
+		
+		public void setLimits(ExecutionService service) {
+			maxSubmitted = AdmissionController.this.maxSubmitted;
+			maxSubmitRate = AdmissionController.this.maxSubmitRate;
+			if (service != null && service.getMaxSubmitted() != null) {
+				maxSubmitted = service.getMaxSubmitted();
+			}
+			if (service != null && service.getMaxSubmitRate() != null) {
+				maxSubmitRate = service.getMaxSubmitRate();
+			}
+		}
+		
+		public boolean hasSlot(long now) {
+			if (maxSubmitted > 0 && submitted.size() >= maxSubmitted) {
+				return false;
+			}
+			return maxSubmitRate <= 0 || now >= nextSubmit;
+		}
+		
+		public void take(int glideinId, long now) {
+			submitted.add(glideinId);
+			if (maxSubmitRate > 0) {
+				nextSubmit = now + 60000L/maxSubmitRate;
+			}
+		}
+	}
+	
+	private class AdmitThread implements Runnable {
+		public void run() {
+			
+			logger.debug("AdmitThread starting...");
+			
+			// Wake up periodically to admit glideins that were held 
+			// back by the rate limit
+			while (true) {
+				try {
+					Thread.sleep(interval);
+				} catch(InterruptedException ie) {
+					logger.warn("AdmitThread interrupted");
+					continue;
+				}
+				
+				try {
+					for (SiteQueue site : sites.values()) {
+						admitQueued(site);
+					}
+				} catch (Exception e) {
+					logger.warn("Unable to admit glideins", e);
+				}
+			}
+		}
+	}
+	
+	public static AdmissionController getInstance() throws ConfigurationException {
+		return (AdmissionController)new Registry().lookup("corral/AdmissionController");
+	}
+}
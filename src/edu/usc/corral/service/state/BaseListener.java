@@ -15,12 +15,16 @@
  */
 package edu.usc.corral.service.state;
 
+import java.util.concurrent.Callable;
+
 import org.apache.log4j.Logger;
 
 import edu.usc.corral.condor.Condor;
 import edu.usc.corral.condor.CondorEvent;
 import edu.usc.corral.condor.CondorEventListener;
 import edu.usc.corral.condor.CondorException;
+import edu.usc.corral.condor.CondorJob;
+import edu.usc.corral.util.ProcessRunner;
 
 public abstract class BaseListener implements CondorEventListener {
 	private static final Logger logger = Logger.getLogger(BaseListener.class);
@@ -72,19 +76,27 @@ public abstract class BaseListener implements CondorEventListener {
 			case GRID_RESOURCE_DOWN:
 			case JOB_HELD: {
 				// Some errors cause the job to be held. For those errors
-				// we need to abort the job.
+				// we need to abort the job. This runs in the background 
+				// so that a slow condor_rm does not hold up the threads 
+				// that read the job logs.
 				if (!aborted) { // Only try to abort once
-					try {
-						aborted = true; // Only try to abort once
-						Condor condor = Condor.getInstance();
-						condor.cancelJob(event.getJob());
-					} catch(CondorException ce) {
-						// We are just going to log this because we may be 
-						// recovering the state of a job that has already 
-						// been aborted 
-						logger.warn("Unable to abort failed job: "+
-								event.getJob().getJobId(),ce);
-					}
+					aborted = true; // Only try to abort once
+					final CondorJob job = event.getJob();
+					ProcessRunner.getInstance().submit(new Callable<Object>() {
+						public Object call() {
+							try {
+								Condor condor = Condor.getInstance();
+								condor.cancelJob(job);
+							} catch(CondorException ce) {
+								// We are just going to log this because we 
+								// may be recovering the state of a job that
+								// has already been aborted 
+								logger.warn("Unable to abort failed job: "+
+										job.getJobId(),ce);
+							}
+							return null;
+						}
+					});
 				}
 				failed(event);
 			} break;
@@ -63,4 +63,11 @@ public abstract class Event implements Runnable {
 	public Object getProperty(String key) {
 		return properties.get(key);
 	}
+	
+	/**
+	 * Events with the same key are processed in the order they are added
+	 * to the EventQueue. Events with different keys may run in parallel.
+	 * @return A key identifying the resource this event is for
+	 */
+	public abstract String getKey();
 }
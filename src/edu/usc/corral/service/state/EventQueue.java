@@ -15,6 +15,9 @@
  */
 package edu.usc.corral.service.state;
 
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
@@ -22,15 +25,33 @@ import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.log4j.Logger;
+
 import edu.usc.corral.config.ConfigurationException;
 import edu.usc.corral.config.Initializable;
 import edu.usc.corral.config.Registry;
 
+/**
+ * Processes events using a pool of worker threads. Events for the same
+ * resource (i.e. with the same key) are processed one at a time in the 
+ * order they were added, but events for different resources can be 
+ * processed in parallel.
+ */
 public class EventQueue implements Initializable {
+	private static final Logger logger = Logger.getLogger(EventQueue.class);
+	
 	private int numThreads = 1;
 	private ExecutorService pool;
 	private boolean initialized = false;
 	
+	/** 
+	 * Events waiting behind an event that is queued or running for the 
+	 * same key. A key is present in this map while one of its events is
+	 * queued or running in the pool.
+	 */
+	private Map<String,LinkedList<Event>> pending = 
+		new HashMap<String,LinkedList<Event>>();
+	
 	public EventQueue() { }
 	
 	public void initialize() throws Exception {
@@ -59,7 +80,52 @@ public class EventQueue implements Initializable {
 	}
 	
 	public void add(Event event) {
-		pool.execute(event);
+		String key = event.getKey();
+		synchronized (pending) {
+			LinkedList<Event> events = pending.get(key);
+			if (events != null) {
+				// Another event for this resource is queued or running
+				events.add(event);
+				return;
+			}
+			pending.put(key, new LinkedList<Event>());
+		}
+		pool.execute(new KeyedEvent(key, event));
+	}
+	
+	/**
+	 * Runs one event and then hands off the next event for the same key
+	 * to the back of the pool's queue so that busy resources do not 
+	 * starve the others.
+	 */
+	private class KeyedEvent implements Runnable {
+		private String key;
+		private Event event;
+		
+		public KeyedEvent(String key, Event event) {
+			this.key = key;
+			this.event = event;
+		}
+		
+		public void run() {
+			try {
+				event.run();
+			} catch (Throwable t) {
+				logger.error("Unable to process event "+event.getCode()+
+						" for "+key, t);
+			} finally {
+				Event next;
+				synchronized (pending) {
+					next = pending.get(key).poll();
+					if (next == null) {
+						pending.remove(key);
+					}
+				}
+				if (next != null) {
+					pool.execute(new KeyedEvent(key, next));
+				}
+			}
+		}
 	}
 	
 	public static class EventQueueThreadFactory implements ThreadFactory  {
@@ -32,6 +32,10 @@ public class GlideinEvent extends Event {
 		this.logger = Logger.getLogger(GlideinEvent.class);
 	}
 
+	public String getKey() {
+		return "glidein:"+getId();
+	}
+
 	public void run() {
 		try {
 			GlideinResourceHome home = GlideinResourceHome.getInstance();
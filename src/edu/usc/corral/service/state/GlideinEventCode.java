@@ -26,5 +26,6 @@ public enum GlideinEventCode implements EventCode
 	RUNNING,		/* Running remotely */
 	REMOVE,			/* Remove requested */
 	DELETE,			/* Delete requested */ 
-	SITE_FAILED		/* Site entered failed state */
+	SITE_FAILED,	/* Site entered failed state */
+	ADMITTED		/* Glidein may be submitted to its site */
 }
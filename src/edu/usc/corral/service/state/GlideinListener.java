@@ -90,6 +90,7 @@ public class GlideinListener extends BaseListener {
 			event.setProperty("message", message);
 			event.setProperty("longMessage", longMessage);
 			event.setProperty("exception", exception);
+			event.setProperty("checkpoint", ce.getCheckpoint());
 			EventQueue queue = EventQueue.getInstance();
 			queue.add(event);
 		} catch (ConfigurationException ne) {
@@ -101,6 +102,7 @@ public class GlideinListener extends BaseListener {
 		try {
 			CondorEvent ce = getLastEvent();
 			Event event = new GlideinEvent(code,ce.getTime(),glideinId);
+			event.setProperty("checkpoint", ce.getCheckpoint());
 			EventQueue queue = EventQueue.getInstance();
 			queue.add(event);
 		} catch (ConfigurationException ne) {
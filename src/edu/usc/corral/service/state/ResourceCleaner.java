@@ -16,6 +16,11 @@
 package edu.usc.corral.service.state;
 
 import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
@@ -25,20 +30,61 @@ import edu.usc.corral.config.Registry;
 import edu.usc.corral.db.Database;
 import edu.usc.corral.db.GlideinDAO;
 
+/**
+ * Deletes glideins that have reached a terminal state (FINISHED or FAILED).
+ * 
+ * Glideins are scheduled for cleanup when they change state, and are
+ * deleted after they have been in the terminal state for retention ms.
+ * Deletions are queued at no more than maxRate per second so that a large
+ * number of glideins finishing at once does not flood the event queue.
+ * 
+ * A periodic scan of the database for terminal glideins is kept as a
+ * safety net for glideins that were missed (e.g. because the service 
+ * stopped before they were deleted).
+ */
 public class ResourceCleaner implements Initializable {
+	private static final Logger logger = Logger.getLogger(ResourceCleaner.class);
+	
+	/** How frequently the reconcile scan runs (mins) */
+	private long interval = 60L; // 1 hour
+	
+	/** How long to keep terminal glideins before deleting them (ms) */
+	private long retention = 300000; // 5 mins
+	
+	/** Maximum number of deletions queued per second */
+	private double maxRate = 10.0;
 	
-	private long interval = 30L; // 30 mins
+	private DelayQueue<Cleanup> queue = new DelayQueue<Cleanup>();
+	private ConcurrentHashMap<Integer,Cleanup> pending = 
+		new ConcurrentHashMap<Integer,Cleanup>();
 	private boolean initialized = false;
 	
-	public void initialize() throws Exception {
+	/* Metrics */
+	private AtomicLong scheduled = new AtomicLong();
+	private AtomicLong deleted = new AtomicLong();
+	private AtomicLong reconciled = new AtomicLong();
+	
+	public synchronized void initialize() throws Exception {
 		if (initialized)
 			return;
-			
-		// Start thread to destroy finished glideins
-		Thread thread = new Thread(new CleanupThread(), "CleanupThread");
-		thread.setDaemon(false);
-		thread.setPriority(Thread.NORM_PRIORITY);
-		thread.start();
+		
+		if (maxRate <= 0) {
+			throw new IllegalArgumentException("maxRate must be > 0");
+		}
+		
+		// Start thread to queue deletions
+		Thread cleanup = new Thread(new CleanupThread(), "CleanupThread");
+		cleanup.setDaemon(false);
+		cleanup.setPriority(Thread.NORM_PRIORITY);
+		cleanup.start();
+		
+		// Start thread to find glideins that were missed
+		if (interval > 0) {
+			Thread reconcile = new Thread(new ReconcileThread(), "ReconcileThread");
+			reconcile.setDaemon(true);
+			reconcile.setPriority(Thread.NORM_PRIORITY);
+			reconcile.start();
+		}
 		
 		initialized = true;
 	}
@@ -55,39 +101,163 @@ public class ResourceCleaner implements Initializable {
 		return this.interval;
 	}
 	
-	private class CleanupThread implements Runnable {
+	public void setRetention(long retention) {
+		this.retention = retention;
+	}
+	
+	public long getRetention() {
+		return retention;
+	}
+	
+	public void setMaxRate(double maxRate) {
+		this.maxRate = maxRate;
+	}
+	
+	public double getMaxRate() {
+		return maxRate;
+	}
+	
+	/**
+	 * Schedule a glidein to be deleted after the retention period. This
+	 * does nothing if the glidein is already scheduled.
+	 * @param glideinId The glidein to delete
+	 */
+	public void schedule(int glideinId) {
+		Cleanup cleanup = new Cleanup(glideinId, 
+				System.currentTimeMillis() + retention);
+		if (pending.putIfAbsent(glideinId, cleanup) == null) {
+			queue.add(cleanup);
+			scheduled.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Stop a glidein from being deleted, e.g. because the user already
+	 * deleted it.
+	 * @param glideinId The glidein
+	 */
+	public void cancel(int glideinId) {
+		Cleanup cleanup = pending.remove(glideinId);
+		if (cleanup != null) {
+			queue.remove(cleanup);
+		}
+	}
+	
+	/** @return The number of glideins waiting to be deleted */
+	public int getPending() {
+		return pending.size();
+	}
+	
+	/** @return The number of glideins scheduled for deletion */
+	public long getScheduled() {
+		return scheduled.get();
+	}
+	
+	/** @return The number of delete events queued */
+	public long getDeleted() {
+		return deleted.get();
+	}
+	
+	/** @return The number of glideins found by the reconcile scan */
+	public long getReconciled() {
+		return reconciled.get();
+	}
+	
+	public String toString() {
+		return "pending="+getPending()+" scheduled="+getScheduled()+
+			" deleted="+getDeleted()+" reconciled="+getReconciled();
+	}
+	
+	private static class Cleanup implements Delayed {
+		private int glideinId;
+		private long deadline;
 		
-		private Logger logger = Logger.getLogger(CleanupThread.class);
+		public Cleanup(int glideinId, long deadline) {
+			this.glideinId = glideinId;
+			this.deadline = deadline;
+		}
 		
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(deadline - System.currentTimeMillis(), 
+					TimeUnit.MILLISECONDS);
+		}
+		
+		public int compareTo(Delayed o) {
+			long other = ((Cleanup)o).deadline;
+			return deadline < other ? -1 : (deadline > other ? 1 : 0);
+		}
+	}
+	
+	private class CleanupThread implements Runnable {
 		public void run() {
 			
 			logger.debug("CleanupThread starting...");
 			
-			// Wake up periodically and destroy any FINISHED and FAILED glideins
+			long last = 0;
+			while (true) {
+				try {
+					Cleanup cleanup = queue.take();
+					
+					// Skip it if it was cancelled
+					if (!pending.remove(cleanup.glideinId, cleanup)) {
+						continue;
+					}
+					
+					// Limit the rate of deletions
+					long wait = last + (long)(1000.0/maxRate) - 
+						System.currentTimeMillis();
+					if (wait > 0) {
+						Thread.sleep(wait);
+					}
+					last = System.currentTimeMillis();
+					
+					logger.debug("Cleaning glidein "+cleanup.glideinId);
+					EventQueue queue = EventQueue.getInstance();
+					GlideinEvent delete = new GlideinEvent(
+							GlideinEventCode.DELETE, 
+							new Date(), cleanup.glideinId);
+					queue.add(delete);
+					deleted.incrementAndGet();
+				} catch (InterruptedException ie) {
+					logger.warn("CleanupThread interrupted");
+				} catch (Exception e) {
+					logger.warn("Unable to clean up glidein", e);
+				}
+			}
+		}
+	}
+	
+	private class ReconcileThread implements Runnable {
+		public void run() {
+			
+			logger.debug("ReconcileThread starting...");
+			
+			// Wake up periodically and schedule any FINISHED and FAILED 
+			// glideins that were missed
 			while (true) {
 				try {
 					Thread.sleep(interval*60L*1000L);
 				} catch(InterruptedException ie) {
-					logger.warn("CleanupThread interrupted");
+					logger.warn("ReconcileThread interrupted");
 					continue;
 				}
 				
-				logger.debug("Cleaning up glideins...");
-				
 				try {
 					Database db = Database.getDatabase();
 					GlideinDAO dao = db.getGlideinDAO();
 					int[] ids = dao.listTerminated();
+					int found = 0;
 					for (int id : ids) {
-						logger.debug("Cleaning glidein "+id);
-						EventQueue queue = EventQueue.getInstance();
-						GlideinEvent delete = new GlideinEvent(
-								GlideinEventCode.DELETE, 
-								new Date(), id);
-						queue.add(delete);
+						if (!pending.containsKey(id)) {
+							schedule(id);
+							found++;
+						}
 					}
+					reconciled.addAndGet(found);
+					logger.debug("Reconciled "+found+" glideins: "+
+							ResourceCleaner.this);
 				} catch (Exception e) {
-					logger.warn("Unable to clean up glideins", e);
+					logger.warn("Unable to reconcile glideins", e);
 				}
 			}
 		}
@@ -96,4 +266,4 @@ public class ResourceCleaner implements Initializable {
 	public static ResourceCleaner getInstance() throws ConfigurationException {
 		return (ResourceCleaner)new Registry().lookup("corral/ResourceCleaner");
 	}
-}
\ No newline at end of file
+}
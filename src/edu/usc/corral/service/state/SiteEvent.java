@@ -32,6 +32,10 @@ public class SiteEvent extends Event {
 		this.logger = Logger.getLogger(SiteEvent.class);
 	}
 
+	public String getKey() {
+		return "site:"+getId();
+	}
+
 	public void run() {
 		try {
 			SiteResourceHome home = SiteResourceHome.getInstance();
@@ -22,6 +22,10 @@ public class ExecutionService {
 	private @Element String serviceContact;
 	private @Element(required=false) String project;
 	private @Element(required=false) String queue;
+	private @Element(required=false) Integer minPollInterval;
+	private @Element(required=false) Integer maxPollInterval;
+	private @Element(required=false) Integer maxSubmitted;
+	private @Element(required=false) Integer maxSubmitRate;
 	
 	public String getProject() {
 		return project;
@@ -35,6 +39,46 @@ public class ExecutionService {
 	public void setQueue(String queue) {
 		this.queue = queue;
 	}
+	/**
+	 * @return The minimum time (in seconds) between polls of the logs of
+	 * jobs submitted to this service, or null for the server default
+	 */
+	public Integer getMinPollInterval() {
+		return minPollInterval;
+	}
+	public void setMinPollInterval(Integer minPollInterval) {
+		this.minPollInterval = minPollInterval;
+	}
+	/**
+	 * @return The maximum time (in seconds) between polls of the logs of
+	 * jobs submitted to this service, or null for the server default
+	 */
+	public Integer getMaxPollInterval() {
+		return maxPollInterval;
+	}
+	public void setMaxPollInterval(Integer maxPollInterval) {
+		this.maxPollInterval = maxPollInterval;
+	}
+	/**
+	 * @return The maximum number of jobs that may be waiting to be
+	 * accepted by this service at once, or null for the server default
+	 */
+	public Integer getMaxSubmitted() {
+		return maxSubmitted;
+	}
+	public void setMaxSubmitted(Integer maxSubmitted) {
+		this.maxSubmitted = maxSubmitted;
+	}
+	/**
+	 * @return The maximum number of jobs submitted to this service per
+	 * minute, or null for the server default
+	 */
+	public Integer getMaxSubmitRate() {
+		return maxSubmitRate;
+	}
+	public void setMaxSubmitRate(Integer maxSubmitRate) {
+		this.maxSubmitRate = maxSubmitRate;
+	}
 	public String getServiceContact() {
 		return serviceContact;
 	}
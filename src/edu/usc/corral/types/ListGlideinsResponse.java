@@ -17,6 +17,7 @@ package edu.usc.corral.types;
 
 import java.util.List;
 
+import org.simpleframework.xml.Attribute;
 import org.simpleframework.xml.ElementList;
 import org.simpleframework.xml.Root;
 
@@ -25,6 +26,9 @@ public class ListGlideinsResponse implements Response {
 	@ElementList(inline=true,required=false)
 	private List<Glidein> glideins;
 	
+	/** The afterId for the next page, or null if this is the last page */
+	private @Attribute(required=false) Integer nextAfterId;
+	
 	public ListGlideinsResponse() { }
 	
 	public ListGlideinsResponse(List<Glidein> glideins) {
@@ -38,4 +42,12 @@ public class ListGlideinsResponse implements Response {
 	public void setGlideins(List<Glidein> glideins) {
 		this.glideins = glideins;
 	}
+	
+	public Integer getNextAfterId() {
+		return nextAfterId;
+	}
+	
+	public void setNextAfterId(Integer nextAfterId) {
+		this.nextAfterId = nextAfterId;
+	}
 }
@@ -15,14 +15,35 @@
  */
 package edu.usc.corral.types;
 
+import java.util.List;
+
 import org.simpleframework.xml.Attribute;
+import org.simpleframework.xml.ElementList;
 import org.simpleframework.xml.Root;
 
+/**
+ * A request to list glideins or sites. Results are returned in order of
+ * increasing ID. To page through a large list set limit, then set afterId
+ * to the nextAfterId of the previous response until it is null.
+ */
 @Root
 public class ListRequest implements Request {
 	private @Attribute(required=false) boolean longFormat = false;
 	private @Attribute(required=false) String user;
 	private @Attribute(required=false) boolean allUsers = false;
+	/** Only return resources with IDs greater than this */
+	private @Attribute(required=false) int afterId = 0;
+	/** Return at most this many resources. 0 means no limit. */
+	private @Attribute(required=false) int limit = 0;
+	/** Only return resources in one of these states */
+	private @ElementList(entry="state",inline=true,required=false) List<String> states;
+	/** Only return resources for these sites */
+	private @ElementList(entry="site",inline=true,required=false) List<Integer> sites;
+	/** 
+	 * Optional columns to return in addition to the required ones. 
+	 * Overrides longFormat if present. 
+	 */
+	private @ElementList(entry="column",inline=true,required=false) List<String> columns;
 	
 	public boolean isLongFormat() {
 		return longFormat;
@@ -42,4 +63,34 @@ public class ListRequest implements Request {
 	public void setAllUsers(boolean allUsers) {
 		this.allUsers = allUsers;
 	}
+	public int getAfterId() {
+		return afterId;
+	}
+	public void setAfterId(int afterId) {
+		this.afterId = afterId;
+	}
+	public int getLimit() {
+		return limit;
+	}
+	public void setLimit(int limit) {
+		this.limit = limit;
+	}
+	public List<String> getStates() {
+		return states;
+	}
+	public void setStates(List<String> states) {
+		this.states = states;
+	}
+	public List<Integer> getSites() {
+		return sites;
+	}
+	public void setSites(List<Integer> sites) {
+		this.sites = sites;
+	}
+	public List<String> getColumns() {
+		return columns;
+	}
+	public void setColumns(List<String> columns) {
+		this.columns = columns;
+	}
 }
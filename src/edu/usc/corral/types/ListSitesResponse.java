@@ -17,6 +17,7 @@ package edu.usc.corral.types;
 
 import java.util.List;
 
+import org.simpleframework.xml.Attribute;
 import org.simpleframework.xml.ElementList;
 import org.simpleframework.xml.Root;
 
@@ -24,6 +25,9 @@ import org.simpleframework.xml.Root;
 public class ListSitesResponse implements Response {
 	private @ElementList(inline=true,required=false) List<Site> sites;
 	
+	/** The afterId for the next page, or null if this is the last page */
+	private @Attribute(required=false) Integer nextAfterId;
+	
 	public ListSitesResponse() {	
 	}
 	
@@ -38,4 +42,12 @@ public class ListSitesResponse implements Response {
 	public void setSites(List<Site> sites) {
 		this.sites = sites;
 	}
+	
+	public Integer getNextAfterId() {
+		return nextAfterId;
+	}
+	
+	public void setNextAfterId(Integer nextAfterId) {
+		this.nextAfterId = nextAfterId;
+	}
 }
@@ -150,6 +150,10 @@ public class Site extends CreateSiteRequest implements Response {
 					stagingService.getServiceContact());
 			out.printf("staging-service-project = %s\n", stagingService.getProject());
 			out.printf("staging-service-queue = %s\n", stagingService.getQueue());
+			if (stagingService.getMinPollInterval() != null) {
+				out.printf("staging-service-poll-interval = %s\n", 
+						formatPollInterval(stagingService));
+			}
 		}
 		
 		// Glidein Service
@@ -162,9 +166,31 @@ public class Site extends CreateSiteRequest implements Response {
 					glideinService.getServiceContact());
 			out.printf("glidein-service-project = %s\n", glideinService.getProject());
 			out.printf("glidein-service-queue = %s\n", glideinService.getQueue());
+			if (glideinService.getMinPollInterval() != null) {
+				out.printf("glidein-service-poll-interval = %s\n", 
+						formatPollInterval(glideinService));
+			}
+			if (glideinService.getMaxSubmitted() != null) {
+				out.printf("glidein-service-max-submitted = %s\n", 
+						glideinService.getMaxSubmitted());
+			}
+			if (glideinService.getMaxSubmitRate() != null) {
+				out.printf("glidein-service-max-submit-rate = %s\n", 
+						glideinService.getMaxSubmitRate());
+			}
 		}
 		
 		out.printf("subject = %s\n", getSubject());
 		out.printf("local-username = %s\n", getLocalUsername());
 	}
+	
+	/**
+	 * Format the poll interval limits the same way create-site takes them
+	 */
+	private String formatPollInterval(ExecutionService service) {
+		if (service.getMaxPollInterval() == null) {
+			return String.valueOf(service.getMinPollInterval());
+		}
+		return service.getMinPollInterval()+","+service.getMaxPollInterval();
+	}
 }
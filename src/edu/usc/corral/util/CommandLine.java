@@ -15,14 +15,17 @@
  */
 package edu.usc.corral.util;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 
 /**
  * This class provides a simple interface to the system command line.
@@ -30,6 +33,12 @@ import java.util.Map;
  * @author Gideon Juve <juve@usc.edu>
  */
 public class CommandLine {
+	/** Kills commands that run too long */
+	private static final Timer WATCHDOG = new Timer("CommandLineWatchdog", true);
+	
+	/** Default limit on the amount of output kept from each stream */
+	public static final int DEFAULT_MAX_OUTPUT = 1024*1024;
+	
 	/**
 	 * The arguments for the command
 	 */
@@ -65,6 +74,16 @@ public class CommandLine {
 	 */
 	private StringBuffer error;
 	
+	/**
+	 * The maximum time the command may run (ms), or 0 for no limit
+	 */
+	private long timeout;
+	
+	/**
+	 * The maximum number of characters kept from stdout and stderr
+	 */
+	private int maxOutput;
+	
 	/**
 	 * Create a new command line instance and initialize
 	 * everything to defaults.
@@ -76,6 +95,8 @@ public class CommandLine {
 		command = null;
 		output = new StringBuffer();
 		error = new StringBuffer();
+		timeout = 0;
+		maxOutput = DEFAULT_MAX_OUTPUT;
 	}
 	
 	/**
@@ -227,8 +248,34 @@ public class CommandLine {
 		return exitCode;
 	}
 	
+	/**
+	 * Set the maximum time the command may run. If it runs longer it is
+	 * killed and execute() throws an exception.
+	 * @param timeout The timeout in milliseconds, or 0 for no limit
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+	
+	public long getTimeout() {
+		return timeout;
+	}
+	
+	/**
+	 * Set the maximum number of characters kept from stdout and from 
+	 * stderr. Anything after that is read and discarded.
+	 */
+	public void setMaxOutput(int maxOutput) {
+		this.maxOutput = maxOutput;
+	}
+	
+	public int getMaxOutput() {
+		return maxOutput;
+	}
+	
 	/**
 	 * Execute this command. You can execute it multiple times if you like.
+	 * @throws IOException If the command cannot be run or times out
 	 */
 	public void execute() throws IOException {
 		LinkedList<String> cmdList = new LinkedList<String>();
@@ -251,30 +298,96 @@ public class CommandLine {
 		}
 		
 		// Create process
-		Process p = Runtime.getRuntime().exec(cmd, env, workingDirectory);
-			
-		// Consume stdout and stderr
-		BufferedReader stderr = new BufferedReader(
-				new InputStreamReader(p.getErrorStream()));
-		BufferedReader stdout = new BufferedReader(
-				new InputStreamReader(p.getInputStream()));
-		output = new StringBuffer();
-		error = new StringBuffer();
-		while(true) {
-			String out, err;
-			if((out = stdout.readLine()) != null)
-				output.append(out+"\n");
-			if((err = stderr.readLine()) != null)
-				error.append(err+"\n");
-			if(out == null && err == null)
-				break;
+		final Process p = Runtime.getRuntime().exec(cmd, env, workingDirectory);
+		
+		// Kill the process if it runs too long
+		final boolean[] killed = { false };
+		TimerTask kill = null;
+		if (timeout > 0) {
+			kill = new TimerTask() {
+				public void run() {
+					synchronized (killed) {
+						killed[0] = true;
+					}
+					p.destroy();
+				}
+			};
+			WATCHDOG.schedule(kill, timeout);
 		}
-			
-		// Wait for command to finish
+		
 		try {
-			exitCode = p.waitFor();
-		} catch(InterruptedException ie){
-			/* Ignore */
+			// Consume stderr in another thread so that neither stream
+			// can fill up and block the process
+			output = new StringBuffer();
+			error = new StringBuffer();
+			p.getOutputStream().close();
+			StreamReader stderr = new StreamReader(p.getErrorStream(), error);
+			Thread thread = new Thread(stderr, "CommandLineStderr");
+			thread.setDaemon(true);
+			thread.start();
+			
+			new StreamReader(p.getInputStream(), output).run();
+			
+			// Wait for command to finish
+			try {
+				thread.join();
+				exitCode = p.waitFor();
+			} catch(InterruptedException ie){
+				p.destroy();
+				IOException e = new IOException("Interrupted running "+command);
+				e.initCause(ie);
+				throw e;
+			}
+		} finally {
+			if (kill != null) {
+				kill.cancel();
+			}
+		}
+		
+		synchronized (killed) {
+			if (killed[0]) {
+				throw new IOException(command+" timed out after "+timeout+" ms");
+			}
+		}
+	}
+	
+	/**
+	 * Reads a stream into a buffer, keeping at most maxOutput characters
+	 */
+	private class StreamReader implements Runnable {
+		private InputStream stream;
+		private StringBuffer buffer;
+		
+		public StreamReader(InputStream stream, StringBuffer buffer) {
+			this.stream = stream;
+			this.buffer = buffer;
+		}
+		
+		public void run() {
+			char[] chars = new char[4096];
+			boolean truncated = false;
+			try {
+				Reader reader = new InputStreamReader(stream);
+				try {
+					int n;
+					while ((n = reader.read(chars)) >= 0) {
+						int keep = Math.min(n, maxOutput - buffer.length());
+						if (keep > 0) {
+							buffer.append(chars, 0, keep);
+						}
+						if (keep < n && !truncated) {
+							truncated = true;
+						}
+					}
+				} finally {
+					reader.close();
+				}
+			} catch (IOException ioe) {
+				// The process was killed or closed its output
+			}
+			if (truncated) {
+				buffer.append("\n[output truncated]\n");
+			}
 		}
 	}
 }
@@ -24,21 +24,39 @@ import org.globus.gsi.GlobusCredential;
 import org.globus.gsi.GlobusCredentialException;
 
 public class CredentialUtil {
+	/**
+	 * Save a credential to a file. The credential is written to a new 
+	 * file that is made readable only by the owner before anything is 
+	 * written to it, and then renamed to replace the old file. Readers 
+	 * never see a partially written credential, and the credential is
+	 * never in a file with looser permissions.
+	 */
 	public static void store(GlobusCredential credential, File file) 
 	throws IOException {
-		// Create the file if it doesn't exist
-		if (!file.exists() && !file.createNewFile()) {
-			throw new IOException("Unable to create credential file");
+		File dir = file.getAbsoluteFile().getParentFile();
+		File temp = File.createTempFile(file.getName(), ".tmp", dir);
+		try {
+			// Change file permissions
+			if (!FilesystemUtil.chmod(temp, 600)) {
+				throw new IOException("Unable to set credential file permissions");
+			}
+			
+			// Save the credential to the file
+			FileOutputStream pstream = 
+				new FileOutputStream(temp);
+			try {
+				credential.save(pstream);
+			} finally {
+				pstream.close();
+			}
+			
+			// Replace the old credential
+			if (!temp.renameTo(file)) {
+				throw new IOException("Unable to create credential file");
+			}
+		} finally {
+			temp.delete();
 		}
-		
-		// Change file permissions
-		FilesystemUtil.chmod(file, 600);
-		
-		// Save the credential to the file
-		FileOutputStream pstream = 
-			new FileOutputStream(file);
-		credential.save(pstream);
-		pstream.close();
 	}
 	
 	public static GlobusCredential load(File file) 
@@ -17,16 +17,67 @@ package edu.usc.corral.util;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Method;
 
+/**
+ * File system operations. Deletion is done in Java. Permissions are 
+ * changed in Java when the JVM supports it (Java 6 and later) and the 
+ * mode can be expressed with the File API, otherwise chmod is run. 
+ * Ownership can only be changed by running chown.
+ */
 public class FilesystemUtil {
 	
+	/** java.io.File permission setters from Java 6, or null */
+	private static Method setReadable;
+	private static Method setWritable;
+	private static Method setExecutable;
+	static {
+		try {
+			setReadable = File.class.getMethod("setReadable", boolean.class, boolean.class);
+			setWritable = File.class.getMethod("setWritable", boolean.class, boolean.class);
+			setExecutable = File.class.getMethod("setExecutable", boolean.class, boolean.class);
+		} catch (NoSuchMethodException nsme) {
+			setReadable = null;
+			setWritable = null;
+			setExecutable = null;
+		}
+	}
+	
+	/**
+	 * Change the permissions of a file.
+	 * @param file The file
+	 * @param mode The mode written as decimal digits, e.g. 644
+	 * @return true if the permissions were changed
+	 */
 	public static boolean chmod(File file, int mode) throws IOException {
+		int user = (mode / 100) % 10;
+		int group = (mode / 10) % 10;
+		int other = mode % 10;
+		
+		// The File API can only set a permission for the owner or for 
+		// everyone, so the group and other bits have to be the same
+		if (setReadable != null && group == other && (user & group) == group) {
+			if (!file.exists()) {
+				return false;
+			}
+			try {
+				return setPermission(setReadable, file, user & 4, other & 4) &
+					setPermission(setWritable, file, user & 2, other & 2) &
+					setPermission(setExecutable, file, user & 1, other & 1);
+			} catch (Exception e) {
+				IOException ioe = new IOException(
+					"Unable to chmod file/directory: "+file);
+				ioe.initCause(e);
+				throw ioe;
+			}
+		}
+		
 		try {
 			CommandLine chmod = new CommandLine();
 			chmod.setCommand("chmod");
 			chmod.addArgument(String.valueOf(mode));
 			chmod.addArgument(file.getAbsolutePath());
-			chmod.execute();
+			ProcessRunner.getInstance().execute(chmod);
 			int exitCode = chmod.getExitCode();
 			if(exitCode != 0){
 				return false;
@@ -41,6 +92,17 @@ public class FilesystemUtil {
 		}
 	}
 	
+	private static boolean setPermission(Method setter, File file, 
+			int user, int other) throws Exception {
+		// Clear the permission for everyone, then grant it to the
+		// owner and, if requested, everyone else
+		boolean ok = (Boolean)setter.invoke(file, false, false);
+		if (user != 0) {
+			ok &= (Boolean)setter.invoke(file, true, other == 0);
+		}
+		return ok;
+	}
+	
 	public static boolean chown(File file, String user) throws IOException {
 		try {
 			CommandLine chown = new CommandLine();
@@ -50,7 +112,7 @@ public class FilesystemUtil {
 			}
 			chown.addArgument(user);
 			chown.addArgument(file.getAbsolutePath());
-			chown.execute();
+			ProcessRunner.getInstance().execute(chown);
 			int exitCode = chown.getExitCode();
 			if(exitCode != 0){
 				return false;
@@ -65,27 +127,45 @@ public class FilesystemUtil {
 		}
 	}
 	
+	/**
+	 * Delete a file, or a directory and everything in it, like rm -rf.
+	 * Symbolic links are deleted, but not followed.
+	 * @param file The file or directory to delete
+	 * @return true if the file no longer exists
+	 */
 	public static boolean rm(File file) throws IOException {
 		try {
-			CommandLine rm = new CommandLine();
-			rm.setCommand("rm");
-			if (file.isDirectory()) {
-				rm.addArgument("-r");
-			}
-			rm.addArgument("-f");
-			rm.addArgument(file.getAbsolutePath());
-			rm.execute();
-			int exitCode = rm.getExitCode();
-			if(exitCode != 0){
-				return false;
-			} else {
-				return true;
-			}
-		} catch (IOException ioe) {
+			delete(file.getAbsoluteFile());
+			return !file.exists();
+		} catch (SecurityException se) {
 			IOException e = new IOException(
 				"Unable to rm file/directory: "+file);
-			e.initCause(ioe);
+			e.initCause(se);
 			throw e;
 		}
 	}
+	
+	private static void delete(File file) throws IOException {
+		if (file.isDirectory() && !isSymlink(file)) {
+			File[] children = file.listFiles();
+			if (children != null) {
+				for (File child : children) {
+					delete(child);
+				}
+			}
+		}
+		file.delete();
+	}
+	
+	/**
+	 * Check whether a file is a symbolic link by comparing its 
+	 * canonical path with the canonical path of its parent.
+	 */
+	private static boolean isSymlink(File file) throws IOException {
+		File parent = file.getParentFile();
+		if (parent == null)
+			return false;
+		File resolved = new File(parent.getCanonicalFile(), file.getName());
+		return !resolved.getCanonicalFile().equals(resolved.getAbsoluteFile());
+	}
 }
@@ -0,0 +1,105 @@
+/*
+ *  Copyright 2007-2009 University Of Southern California
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.usc.corral.util;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Times the cleanup of a large number of glidein working directories
+ * and credential chmods using FilesystemUtil, and using one rm/chmod 
+ * process per directory/file the way FilesystemUtil used to.
+ * 
+ * Usage: FilesystemUtilBenchmark [DIRECTORIES]
+ */
+public class FilesystemUtilBenchmark {
+	private static final String[] FILES = {
+		"submit", "log", "jobid", "credential", "status", "output", "error"
+	};
+	
+	private static void seed(File root, int dirs) throws IOException {
+		for (int i=0; i<dirs; i++) {
+			File dir = new File(root, "glidein-"+i);
+			dir.mkdirs();
+			for (String name : FILES) {
+				FileWriter writer = new FileWriter(new File(dir, name));
+				writer.write(name+"\n");
+				writer.close();
+			}
+		}
+	}
+	
+	private static void exec(String... args) throws IOException {
+		CommandLine cmd = new CommandLine();
+		cmd.setCommand(args[0]);
+		for (int i=1; i<args.length; i++) {
+			cmd.addArgument(args[i]);
+		}
+		cmd.execute();
+		if (cmd.getExitCode() != 0) {
+			throw new IOException(args[0]+" failed: "+cmd.getError());
+		}
+	}
+	
+	private static long chmod(File root, int dirs, boolean fork) 
+	throws IOException {
+		long start = System.currentTimeMillis();
+		for (int i=0; i<dirs; i++) {
+			File credential = new File(new File(root, "glidein-"+i), "credential");
+			if (fork) {
+				exec("chmod", "600", credential.getAbsolutePath());
+			} else {
+				FilesystemUtil.chmod(credential, 600);
+			}
+		}
+		return System.currentTimeMillis() - start;
+	}
+	
+	private static long rm(File root, int dirs, boolean fork) 
+	throws IOException {
+		long start = System.currentTimeMillis();
+		for (int i=0; i<dirs; i++) {
+			File dir = new File(root, "glidein-"+i);
+			if (fork) {
+				exec("rm", "-r", "-f", dir.getAbsolutePath());
+			} else {
+				FilesystemUtil.rm(dir);
+			}
+		}
+		return System.currentTimeMillis() - start;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		int dirs = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		
+		File root = File.createTempFile("fsbench", "");
+		root.delete();
+		root.mkdirs();
+		try {
+			for (boolean fork : new boolean[] { true, false }) {
+				String method = fork ? "process" : "java";
+				seed(root, dirs);
+				System.out.println("chmod "+dirs+" files ("+method+"): "+
+						chmod(root, dirs, fork)+" ms");
+				System.out.println("rm "+dirs+" directories ("+method+"): "+
+						rm(root, dirs, fork)+" ms");
+			}
+		} finally {
+			FilesystemUtil.rm(root);
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ *  Copyright 2007-2009 University Of Southern California
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package edu.usc.corral.util;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import edu.usc.corral.config.ConfigurationException;
+import edu.usc.corral.config.Initializable;
+import edu.usc.corral.config.Registry;
+
+/**
+ * Runs external commands. The number of child processes running at the
+ * same time is limited to maxProcesses, and commands that do not set 
+ * their own timeout are killed after the default timeout.
+ * 
+ * Commands can be run in the calling thread with execute(), or in the
+ * background with submit(), which returns a Future. Background work is 
+ * run by at most maxProcesses threads and the rest is queued, so a burst
+ * of submissions does not create a thread for each one.
+ */
+public class ProcessRunner implements Initializable {
+	private static final Logger logger = Logger.getLogger(ProcessRunner.class);
+	
+	/** Used when no runner has been configured, e.g. by standalone tools */
+	private static ProcessRunner defaultRunner;
+	
+	/** The maximum number of child processes */
+	private int maxProcesses = 8;
+	
+	/** Timeout for commands that do not set one (ms) */
+	private long timeout = 300000; // 5 mins
+	
+	private Semaphore permits;
+	private ExecutorService executor;
+	private boolean initialized = false;
+	
+	/* Metrics */
+	private AtomicInteger running = new AtomicInteger();
+	private AtomicInteger waiting = new AtomicInteger();
+	private AtomicLong completed = new AtomicLong();
+	private AtomicLong failed = new AtomicLong();
+	
+	public ProcessRunner() { }
+	
+	public synchronized void initialize() throws Exception {
+		if (initialized)
+			return;
+		
+		permits = new Semaphore(maxProcesses, true);
+		executor = new ThreadPoolExecutor(maxProcesses, maxProcesses, 
+				60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), 
+				new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ProcessRunner-"+count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		
+		initialized = true;
+	}
+	
+	public boolean isInitialized() {
+		return initialized;
+	}
+	
+	public static ProcessRunner getInstance() {
+		try {
+			return (ProcessRunner)new Registry().lookup("corral/ProcessRunner");
+		} catch (ConfigurationException ce) {
+			synchronized (ProcessRunner.class) {
+				if (defaultRunner == null) {
+					defaultRunner = new ProcessRunner();
+					try {
+						defaultRunner.initialize();
+					} catch (Exception e) {
+						throw new IllegalStateException(
+								"Unable to create process runner", e);
+					}
+				}
+				return defaultRunner;
+			}
+		}
+	}
+	
+	public int getMaxProcesses() {
+		return maxProcesses;
+	}
+	
+	public void setMaxProcesses(int maxProcesses) {
+		this.maxProcesses = maxProcesses;
+	}
+	
+	public long getTimeout() {
+		return timeout;
+	}
+	
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+	
+	/**
+	 * Run a command in the calling thread. This waits until fewer than
+	 * maxProcesses commands are running.
+	 * @param cmd The command to run
+	 * @throws IOException If the command could not be run or timed out
+	 */
+	public void execute(CommandLine cmd) throws IOException {
+		if (cmd.getTimeout() <= 0) {
+			cmd.setTimeout(timeout);
+		}
+		
+		waiting.incrementAndGet();
+		try {
+			permits.acquire();
+		} catch (InterruptedException ie) {
+			IOException e = new IOException("Interrupted waiting to run "+
+					cmd.getCommand());
+			e.initCause(ie);
+			throw e;
+		} finally {
+			waiting.decrementAndGet();
+		}
+		
+		running.incrementAndGet();
+		try {
+			cmd.execute();
+			completed.incrementAndGet();
+		} catch (IOException ioe) {
+			failed.incrementAndGet();
+			throw ioe;
+		} finally {
+			running.decrementAndGet();
+			permits.release();
+		}
+	}
+	
+	/**
+	 * Run a command in the background.
+	 * @param cmd The command to run
+	 * @return A future that returns the command when it has finished. 
+	 * Its get() method throws an ExecutionException that wraps an 
+	 * IOException if the command could not be run or timed out.
+	 */
+	public Future<CommandLine> submit(final CommandLine cmd) {
+		return executor.submit(new Callable<CommandLine>() {
+			public CommandLine call() throws IOException {
+				execute(cmd);
+				return cmd;
+			}
+		});
+	}
+	
+	/**
+	 * Run a task that runs commands (e.g. a Condor operation) in the
+	 * background. The commands it runs count towards maxProcesses. 
+	 * The task must not wait for other background work, because it 
+	 * holds one of the background threads while it runs.
+	 * @param task The task to run
+	 * @return A future for the result of the task
+	 */
+	public <T> Future<T> submit(final Callable<T> task) {
+		return executor.submit(new Callable<T>() {
+			public T call() throws Exception {
+				try {
+					return task.call();
+				} catch (Exception e) {
+					logger.debug("Background task failed", e);
+					throw e;
+				}
+			}
+		});
+	}
+	
+	/** @return The number of child processes running */
+	public int getRunning() {
+		return running.get();
+	}
+	
+	/** @return The number of commands waiting to run */
+	public int getWaiting() {
+		return waiting.get();
+	}
+	
+	/** @return The number of commands that ran */
+	public long getCompleted() {
+		return completed.get();
+	}
+	
+	/** @return The number of commands that could not be run or timed out */
+	public long getFailed() {
+		return failed.get();
+	}
+	
+	public String toString() {
+		return "running="+getRunning()+" waiting="+getWaiting()+
+			" completed="+getCompleted()+" failed="+getFailed();
+	}
+}
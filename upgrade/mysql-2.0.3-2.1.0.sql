@@ -0,0 +1,14 @@
+-- Add indexes for queries by state, site and owner. glidein.site is
+-- already indexed by its foreign key constraint.
+CREATE INDEX idx_site_state ON site (state);
+CREATE INDEX idx_site_user_state ON site (localUsername, state);
+CREATE INDEX idx_glidein_state ON glidein (state);
+CREATE INDEX idx_glidein_user_state ON glidein (localUsername, state);
+
+-- Add per-site limits on how often job logs are polled
+ALTER TABLE execution_service ADD COLUMN minPollInterval INTEGER;
+ALTER TABLE execution_service ADD COLUMN maxPollInterval INTEGER;
+
+-- Add per-site limits on glidein submissions
+ALTER TABLE execution_service ADD COLUMN maxSubmitted INTEGER;
+ALTER TABLE execution_service ADD COLUMN maxSubmitRate INTEGER;